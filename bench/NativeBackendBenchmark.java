@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import java.lang.foreign.*;
+import java.lang.invoke.*;
+import com.sun.jna.*;
+
+/**
+ * Compares the JNA and <code>java.lang.foreign</code> backends.  Per-call latency is
+ * measured on <code>labs</code> from the C library (which takes and returns a
+ * <code>long</code>, i.e. a <code>NativeLong</code> for JNA) and, if <code>libmx</code>
+ * is available, on <code>mxGetData</code>.  Bulk-copy throughput is measured by reading
+ * a large native buffer into Java arrays through each backend's {@link NativeData}.
+ * <p>
+ * Run with <code>ant bench</code>; this needs Java 22 or later.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class NativeBackendBenchmark {
+  
+  /** JNA direct mapping of the C library function used for the per-call benchmark. */
+  static class LibC {
+    static native NativeLong labs(NativeLong x);
+    static { Native.register("c"); }
+  }
+  
+  private static final int CALLS = 2000000;
+  private static final int BULK_SIZE = 1 << 22;  // doubles, i.e. 32 MB
+  private static final int ROUNDS = 5;
+  
+  public static void main(String args[]) throws Throwable {
+    NativeBackend jna = new NativeBackend.Jna();
+    NativeBackend ffm = new ForeignBackend();
+    System.out.println("selected backend: " + JNMatLib.getBackend());
+    
+    // per-call latency
+    MethodHandle labs = Linker.nativeLinker().downcallHandle(
+      Linker.nativeLinker().defaultLookup().find("labs").get(),
+      FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG));
+    for (int round = 0; round < ROUNDS; round++) {
+      long sum = 0, t0 = System.nanoTime();
+      for (int i = 0; i < CALLS; i++)
+        sum += LibC.labs(new NativeLong(-i)).longValue();
+      long t1 = System.nanoTime();
+      for (int i = 0; i < CALLS; i++)
+        sum -= (long)labs.invokeExact((long)-i);
+      long t2 = System.nanoTime();
+      if (sum != 0) throw new AssertionError("labs results differ");
+      report(round, "labs() call", "ns/call", (t1 - t0)/(double)CALLS, (t2 - t1)/(double)CALLS);
+    }
+    if (MxLibrary.isLoaded()) {
+      MxArray pm = MxArray.of(new double[] { 1, 2, 3 });
+      try {
+        for (int round = 0; round < ROUNDS; round++) {
+          long t0 = System.nanoTime();
+          for (int i = 0; i < CALLS; i++)
+            jna.getData(pm, 24);
+          long t1 = System.nanoTime();
+          for (int i = 0; i < CALLS; i++)
+            ffm.getData(pm, 24);
+          long t2 = System.nanoTime();
+          report(round, "mxGetData() call", "ns/call", (t1 - t0)/(double)CALLS, (t2 - t1)/(double)CALLS);
+        }
+      } finally {
+        pm.close();
+      }
+    } else
+      System.out.println("libmx not loaded, skipping mxGetData() benchmark");
+    
+    // bulk-copy throughput
+    Memory m = new Memory(8L*BULK_SIZE);
+    for (int i = 0; i < BULK_SIZE; i++)
+      m.setDouble(8L*i, i);
+    NativeData jd = jna.wrap(m, m.size()), fd = ffm.wrap(m, m.size());
+    for (int chunk : new int[] { 64, 8192, BULK_SIZE }) {
+      double buf[] = new double[chunk];
+      for (int round = 0; round < ROUNDS; round++) {
+        long t0 = System.nanoTime();
+        double s1 = copy(jd, buf);
+        long t1 = System.nanoTime();
+        double s2 = copy(fd, buf);
+        long t2 = System.nanoTime();
+        if (s1 != s2) throw new AssertionError("copied data differs");
+        double mb = 8.0*BULK_SIZE/(1 << 20);
+        report(round, "bulk read, " + chunk + " doubles per copy", "MB/s", mb/((t1 - t0)*1e-9), mb/((t2 - t1)*1e-9));
+      }
+    }
+  }
+  
+  /** Reads the whole region into <code>buf</code>, chunk by chunk, and returns a checksum. */
+  private static double copy(NativeData d, double buf[]) {
+    double sum = 0;
+    for (long off = 0; off < d.size(); off += 8L*buf.length) {
+      d.read(off, buf, 0, buf.length);
+      sum += buf[0] + buf[buf.length - 1];
+    }
+    return sum;
+  }
+  
+  private static void report(int round, String what, String unit, double jna, double ffm) {
+    System.out.printf("%s%-36s jna %10.1f %-7s ffm %10.1f %s%n", (round == 0) ? "(warm-up) " : "          ", what, jna, unit, ffm, unit);
+  }
+  
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib.jmh;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Counts the data elements processed by a benchmark, so that JMH reports
+ * throughput in elements per second next to operations per second.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Elements {
+  
+  public long elements;
+  
+  @Setup(Level.Iteration)
+  public void reset() { elements = 0; }
+  
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib.jmh;
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import edu.northwestern.rocs.jnmatlib.*;
+
+/**
+ * Benchmarks reading variables and the variable directory from MAT-files
+ * generated by {@link SyntheticMatFiles}.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatFileBenchmark {
+  
+  /** An open MAT-file containing one variable of each kind. */
+  @State(Scope.Benchmark)
+  public static class Data {
+    @Param({ "100", "10000", "1000000" })
+    public int size;
+    
+    File file;
+    MatFile mf;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      file = SyntheticMatFiles.createTemp(size, SyntheticMatFiles.KINDS);
+      mf = new MatFile(file);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      mf.close();
+      file.delete();
+    }
+  }
+  
+  /** The variable to read. */
+  @State(Scope.Benchmark)
+  public static class Variable {
+    @Param({ "dense", "single", "logical", "complex", "sparse", "struct", "cell" })
+    public String kind;
+  }
+  
+  @Benchmark
+  public long readVariable(Data d, Variable v, Elements count) {
+    MxArray pm = d.mf.readVariable(v.kind);
+    try {
+      count.elements += SyntheticMatFiles.elements(v.kind, d.size);
+      return pm.getNumberOfElements();
+    } finally {
+      pm.close();
+    }
+  }
+  
+  @Benchmark
+  public String[] getVariableNames(Data d) {
+    return d.mf.getVariableNames();
+  }
+  
+  /** Measures the uncached case, which includes opening and closing the file. */
+  @Benchmark
+  public String[] openAndGetVariableNames(Data d) {
+    MatFile mf = new MatFile(d.file);
+    try {
+      return mf.getVariableNames();
+    } finally {
+      mf.close();
+    }
+  }
+  
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib.jmh;
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+import edu.northwestern.rocs.jnmatlib.*;
+
+/**
+ * Benchmarks extracting data from arrays that have been read from MAT-files
+ * generated by {@link SyntheticMatFiles}.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MxArrayBenchmark {
+  
+  /** Maximum number of elements read by one invocation of {@link #getValueAt}. */
+  private static final int VALUE_SAMPLES = 1024;
+  
+  /** A variable that has been read into memory. */
+  public static abstract class Loaded {
+    @Param({ "100", "10000", "1000000" })
+    public int size;
+    
+    MxArray pm;
+    long elements;
+    int M, N;
+    
+    void load(String kind) throws IOException {
+      File file = SyntheticMatFiles.createTemp(size, kind);
+      MatFile mf = new MatFile(file);
+      try {
+        pm = mf.readVariable(kind);
+      } finally {
+        mf.close();
+        file.delete();
+      }
+      elements = SyntheticMatFiles.elements(kind, size);
+      M = (int)pm.getM();
+      N = (int)pm.getN();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() { pm.close(); }
+  }
+  
+  /** A dense numeric or logical matrix. */
+  @State(Scope.Benchmark)
+  public static class Dense extends Loaded {
+    @Param({ "dense", "single", "logical", "complex" })
+    public String kind;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException { load(kind); }
+  }
+  
+  /** A sparse double matrix. */
+  @State(Scope.Benchmark)
+  public static class Sparse extends Loaded {
+    @Setup(Level.Trial)
+    public void setup() throws IOException { load("sparse"); }
+  }
+  
+  @Benchmark
+  public Object getData(Dense s, Elements count) {
+    count.elements += s.elements;
+    return s.pm.getData();
+  }
+  
+  @Benchmark
+  public Object getDataAsMatrix(Dense s, Elements count) {
+    count.elements += s.elements;
+    return s.pm.getDataAsMatrix();
+  }
+  
+  @Benchmark
+  public float[] floatValues(Dense s, Elements count) {
+    count.elements += s.elements;
+    return s.pm.floatValues();
+  }
+  
+  @Benchmark
+  public float[][] floatMatrix(Dense s, Elements count) {
+    count.elements += s.elements;
+    return s.pm.floatMatrix();
+  }
+  
+  /** Reads up to {@link #VALUE_SAMPLES} elements spread evenly over the matrix, one call each. */
+  @Benchmark
+  public void getValueAt(Dense s, Elements count, Blackhole bh) {
+    int n = (int)Math.min(s.elements, VALUE_SAMPLES);
+    long stride = s.elements/n;
+    for (int k = 0; k < n; k++) {
+      long index = k*stride;
+      bh.consume(s.pm.getValueAt((int)(index % s.M), (int)(index/s.M)));
+    }
+    count.elements += n;
+  }
+  
+  /** Reads the same elements as {@link #getValueAt} through the primitive accessor. */
+  @Benchmark
+  public double getDouble(Dense s, Elements count) {
+    int n = (int)Math.min(s.elements, VALUE_SAMPLES);
+    long stride = s.elements/n;
+    double sum = 0;
+    for (int k = 0; k < n; k++) {
+      long index = k*stride;
+      sum += s.pm.getDouble((int)(index % s.M), (int)(index/s.M));
+    }
+    count.elements += n;
+    return sum;
+  }
+  
+  @Benchmark
+  public SparseMatrix getSparseMatrix(Sparse s, Elements count) {
+    count.elements += s.elements;
+    return s.pm.getSparseMatrix();
+  }
+  
+  /** Expands the sparse matrix to a dense Java matrix; counts only the non-zero elements. */
+  @Benchmark
+  public Object getSparseDataAsMatrix(Sparse s, Elements count) {
+    count.elements += s.elements;
+    return s.pm.getDataAsMatrix();
+  }
+  
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib.jmh;
+import java.io.*;
+import java.util.*;
+import com.sun.jna.*;
+import edu.northwestern.rocs.jnmatlib.*;
+
+/**
+ * Generates MAT-files with random data for the benchmarks.  Each file contains one
+ * variable per requested kind, named after the kind:
+ * <dl>
+ *   <dt>dense</dt><dd>a real double matrix</dd>
+ *   <dt>single</dt><dd>a real single matrix</dd>
+ *   <dt>logical</dt><dd>a logical matrix</dd>
+ *   <dt>complex</dt><dd>a complex double matrix</dd>
+ *   <dt>sparse</dt><dd>a sparse double matrix with 1% non-zero elements</dd>
+ *   <dt>struct</dt><dd>a 1x1 struct with three double matrix fields</dd>
+ *   <dt>cell</dt><dd>a 1x16 cell array of double column vectors</dd>
+ * </dl>
+ * Matrices are (nearly) square with about <code>size</code> elements in total.
+ * <p>
+ * Files can also be generated from the command line:
+ * <code>java ...jmh.SyntheticMatFiles file size [kind,kind,...]</code>.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class SyntheticMatFiles {
+  
+  /** All kinds of variables that can be generated. */
+  public static final String KINDS = "dense,single,logical,complex,sparse,struct,cell";
+  
+  /** Fraction of non-zero elements in sparse matrices. */
+  public static final double DENSITY = 0.01;
+  
+  private static final int CELLS = 16;
+  private static final String FIELDS[] = { "x", "y", "z" };
+  
+  /**
+   * Creates a temporary MAT-file with one variable of about <code>size</code> elements
+   * for each of the comma-separated <code>kinds</code>.  The file is deleted on exit.
+   */
+  public static File createTemp(int size, String kinds) throws IOException {
+    File file = File.createTempFile("jnmatlib-bench-", ".mat");
+    file.deleteOnExit();
+    create(file, size, kinds);
+    return file;
+  }
+  
+  /** Writes a MAT-file with one variable of about <code>size</code> elements for each of the comma-separated <code>kinds</code>. */
+  public static void create(File file, int size, String kinds) {
+    if (!JNMatLib.isLoaded())
+      throw new MatLibException("native libraries not loaded", JNMatLib.getError());
+    Random rnd = new Random(size);
+    MatFile mf = new MatFile(file, MatFile.MODE_WRITE);
+    try {
+      for (String kind : kinds.split(",")) {
+        MxArray pm = create(kind.trim(), size, rnd);
+        try {
+          mf.writeVariable(kind.trim(), pm);
+        } finally {
+          MxLibrary.mxDestroyArray(pm);
+        }
+      }
+    } finally {
+      mf.close();
+    }
+  }
+  
+  /** Returns the number of rows of a nearly square matrix with about <code>size</code> elements. */
+  public static int rows(int size) { return Math.max(1, (int)Math.sqrt(size)); }
+  
+  /** Returns the number of columns of a nearly square matrix with about <code>size</code> elements. */
+  public static int cols(int size) { return Math.max(1, size/rows(size)); }
+  
+  /**
+   * Returns the number of data elements in the variable of the given kind that is
+   * generated for <code>size</code>: the number of non-zero elements for sparse
+   * matrices, and the total over all fields or cells for structs and cell arrays.
+   */
+  public static long elements(String kind, int size) {
+    int M = rows(size), N = cols(size);
+    if (kind.equals("sparse")) return (long)Math.max(1, (int)(M*DENSITY))*N;
+    if (kind.equals("struct")) return (long)FIELDS.length*rows(size/FIELDS.length)*cols(size/FIELDS.length);
+    if (kind.equals("cell")) return (long)CELLS*Math.max(1, size/CELLS);
+    return (long)M*N;
+  }
+  
+  // The arrays are created with the raw MxLibrary functions so that they are not
+  // owned by Java objects: fields and cells are owned by their containers, and the
+  // containers are destroyed explicitly after writing.
+  
+  private static MxArray create(String kind, int size, Random rnd) {
+    int M = rows(size), N = cols(size);
+    if (kind.equals("dense")) return dense(MxArrayInfo.DOUBLE_CLASS, false, M, N, rnd);
+    if (kind.equals("single")) return dense(MxArrayInfo.SINGLE_CLASS, false, M, N, rnd);
+    if (kind.equals("logical")) return dense(MxArrayInfo.LOGICAL_CLASS, false, M, N, rnd);
+    if (kind.equals("complex")) return dense(MxArrayInfo.DOUBLE_CLASS, true, M, N, rnd);
+    if (kind.equals("sparse")) return sparse(M, N, rnd);
+    if (kind.equals("struct")) {
+      MxArray res = MxLibrary.mxCreateStructMatrix(new NativeLong(1), new NativeLong(1), FIELDS.length, new StringArray(FIELDS));
+      for (String field : FIELDS)
+        MxLibrary.mxSetField(res, new NativeLong(0), field, dense(MxArrayInfo.DOUBLE_CLASS, false, rows(size/FIELDS.length), cols(size/FIELDS.length), rnd));
+      return res;
+    }
+    if (kind.equals("cell")) {
+      MxArray res = MxLibrary.mxCreateCellMatrix(new NativeLong(1), new NativeLong(CELLS));
+      for (int i = 0; i < CELLS; i++)
+        MxLibrary.mxSetCell(res, new NativeLong(i), dense(MxArrayInfo.DOUBLE_CLASS, false, Math.max(1, size/CELLS), 1, rnd));
+      return res;
+    }
+    throw new IllegalArgumentException("unknown kind of variable: " + kind + " (expected one of " + KINDS + ")");
+  }
+  
+  private static MxArray dense(int classID, boolean complex, int M, int N, Random rnd) {
+    int n = M*N;
+    if (classID == MxArrayInfo.LOGICAL_CLASS) {
+      MxArray res = MxLibrary.mxCreateLogicalMatrix(new NativeLong(M), new NativeLong(N));
+      byte bb[] = new byte[n];
+      for (int i = 0; i < n; i++)
+        bb[i] = (byte)(rnd.nextBoolean() ? 1 : 0);
+      MxLibrary.mxGetLogicals(res).write(0, bb, 0, n);
+      return res;
+    }
+    MxArray res = MxLibrary.mxCreateNumericMatrix(new NativeLong(M), new NativeLong(N), classID, complex ? 1 : 0);
+    fill(MxLibrary.mxGetData(res), classID, n, rnd);
+    if (complex)
+      fill(MxLibrary.mxGetImagData(res), classID, n, rnd);
+    return res;
+  }
+  
+  private static void fill(Pointer p, int classID, int n, Random rnd) {
+    if (classID == MxArrayInfo.SINGLE_CLASS) {
+      float ff[] = new float[n];
+      for (int i = 0; i < n; i++)
+        ff[i] = (float)rnd.nextGaussian();
+      p.write(0, ff, 0, n);
+    } else {
+      double dd[] = new double[n];
+      for (int i = 0; i < n; i++)
+        dd[i] = rnd.nextGaussian();
+      p.write(0, dd, 0, n);
+    }
+  }
+  
+  private static MxArray sparse(int M, int N, Random rnd) {
+    int perColumn = Math.max(1, (int)(M*DENSITY));
+    int nnz = perColumn*N;
+    MxArray res = MxLibrary.mxCreateSparse(new NativeLong(M), new NativeLong(N), new NativeLong(nnz), 0);
+    long ir[] = new long[nnz], jc[] = new long[N + 1];
+    double pr[] = new double[nnz];
+    for (int j = 0, k = 0; j < N; j++) {
+      jc[j] = k;
+      long step = Math.max(1, M/perColumn);
+      for (int i = 0; i < perColumn; i++, k++) {
+        ir[k] = Math.min(M - 1, i*step + rnd.nextInt((int)step));
+        pr[k] = rnd.nextGaussian();
+      }
+    }
+    jc[N] = nnz;
+    MxLibrary.mxGetPr(res).write(0, pr, 0, nnz);
+    writeIndices(MxLibrary.mxGetIr(res).getPointer(), ir);
+    writeIndices(MxLibrary.mxGetJc(res).getPointer(), jc);
+    return res;
+  }
+  
+  /** Writes <code>mwIndex</code> values, which are as wide as a C <code>long</code>. */
+  private static void writeIndices(Pointer p, long ll[]) {
+    if (NativeLong.SIZE == 8)
+      p.write(0, ll, 0, ll.length);
+    else
+      for (int i = 0; i < ll.length; i++)
+        p.setInt(4L*i, (int)ll[i]);
+  }
+  
+  public static void main(String args[]) {
+    if ((args.length < 2) || (args.length > 3)) {
+      System.err.println("usage: SyntheticMatFiles file size [" + KINDS + "]");
+      System.exit(1);
+    }
+    create(new File(args[0]), Integer.parseInt(args[1]), (args.length > 2) ? args[2] : KINDS);
+  }
+  
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import java.lang.foreign.*;
+import java.lang.invoke.*;
+import java.nio.ByteBuffer;
+import com.sun.jna.*;
+
+/**
+ * The {@link NativeBackend} built on <code>java.lang.foreign</code>.  The
+ * <code>mxGetData</code> family is called through downcall handles bound to the
+ * same <code>libmx</code> symbols that JNA resolved, and the returned pointers
+ * become memory segments of the array's data size, which are copied in bulk with
+ * <code>MemorySegment.copy</code>.
+ * <p>
+ * This class is compiled for Java 22 (where the foreign function API became final)
+ * into the versioned part of the multi-release jar, so that it is used on Java 22
+ * and all later releases.  {@link NativeBackend}
+ * falls back to JNA if this class cannot be loaded or instantiated.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+final class ForeignBackend extends NativeBackend {
+  
+  private static final FunctionDescriptor GET_POINTER = FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS);
+  
+  private final Linker linker;
+  private volatile Handles handles = null;
+  
+  ForeignBackend() {
+    linker = Linker.nativeLinker();  // fails if native access is not permitted
+    MemorySegment.ofAddress(0).reinterpret(0);
+  }
+  
+  String getName() { return "ffm"; }
+  
+  NativeData wrap(Pointer p, long size) {
+    if (size == 0) return new Data(MemorySegment.NULL);
+    return (p == null) ? null : new Data(MemorySegment.ofAddress(Pointer.nativeValue(p)).reinterpret(size));
+  }
+  
+  NativeData getData(MxArray pm, long size) { return call(handles().getData, "mxGetData", pm, size); }
+  NativeData getImagData(MxArray pm, long size) { return call(handles().getImagData, "mxGetImagData", pm, size); }
+  NativeData getLogicals(MxArray pm, long size) { return call(handles().getLogicals, "mxGetLogicals", pm, size); }
+  
+  private NativeData call(MethodHandle h, String name, MxArray pm, long size) {
+    MemorySegment res;
+    try {
+      res = (MemorySegment)h.invokeExact(MemorySegment.ofAddress(Pointer.nativeValue(pm.getPointer())));
+    } catch (Throwable t) {
+      throw new MatLibException(name + " failed", t);
+    }
+    if (size == 0) return new Data(MemorySegment.NULL);  // empty arrays have no data pointer
+    return (res.address() == 0) ? null : new Data(res.reinterpret(size));
+  }
+  
+  private Handles handles() {
+    Handles h = handles;
+    if (h == null)  // binding twice in a race is harmless
+      handles = h = new Handles();
+    return h;
+  }
+  
+  /** The downcall handles, bound when first needed because libmx may be loaded late. */
+  private final class Handles {
+    final MethodHandle getData = bind("mxGetData");
+    final MethodHandle getImagData = bind("mxGetImagData");
+    final MethodHandle getLogicals = bind("mxGetLogicals");
+    
+    private MethodHandle bind(String name) {
+      if (!MxLibrary.isLoaded())
+        throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+      Function f = NativeLibrary.getInstance("mx").getFunction(name);
+      return linker.downcallHandle(MemorySegment.ofAddress(Pointer.nativeValue(f)), GET_POINTER);
+    }
+  }
+  
+  /** Native data as a memory segment; the segment does the bounds checking. */
+  private static final class Data extends NativeData {
+    private final MemorySegment seg;
+    
+    Data(MemorySegment seg) {
+      super(seg.byteSize());
+      this.seg = seg;
+    }
+    
+    NativeData share(long offset) { return new Data(seg.asSlice(offset)); }
+    
+    void read(long offset, byte buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_BYTE, offset, buf, index, length); }
+    void read(long offset, short buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_SHORT_UNALIGNED, offset, buf, index, length); }
+    void read(long offset, char buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_CHAR_UNALIGNED, offset, buf, index, length); }
+    void read(long offset, int buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_INT_UNALIGNED, offset, buf, index, length); }
+    void read(long offset, long buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_LONG_UNALIGNED, offset, buf, index, length); }
+    void read(long offset, float buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, buf, index, length); }
+    void read(long offset, double buf[], int index, int length) {
+      MemorySegment.copy(seg, ValueLayout.JAVA_DOUBLE_UNALIGNED, offset, buf, index, length); }
+    
+    byte getByte(long offset) { return seg.get(ValueLayout.JAVA_BYTE, offset); }
+    short getShort(long offset) { return seg.get(ValueLayout.JAVA_SHORT_UNALIGNED, offset); }
+    int getInt(long offset) { return seg.get(ValueLayout.JAVA_INT_UNALIGNED, offset); }
+    long getLong(long offset) { return seg.get(ValueLayout.JAVA_LONG_UNALIGNED, offset); }
+    float getFloat(long offset) { return seg.get(ValueLayout.JAVA_FLOAT_UNALIGNED, offset); }
+    double getDouble(long offset) { return seg.get(ValueLayout.JAVA_DOUBLE_UNALIGNED, offset); }
+    
+    void write(long offset, byte buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_BYTE, offset, length); }
+    void write(long offset, short buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_SHORT_UNALIGNED, offset, length); }
+    void write(long offset, char buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_CHAR_UNALIGNED, offset, length); }
+    void write(long offset, int buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_INT_UNALIGNED, offset, length); }
+    void write(long offset, long buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_LONG_UNALIGNED, offset, length); }
+    void write(long offset, float buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, length); }
+    void write(long offset, double buf[], int index, int length) {
+      MemorySegment.copy(buf, index, seg, ValueLayout.JAVA_DOUBLE_UNALIGNED, offset, length); }
+    
+    protected ByteBuffer byteBuffer(long offset, int length) { return seg.asSlice(offset, length).asByteBuffer(); }
+  }
+  
+}
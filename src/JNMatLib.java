@@ -79,6 +79,17 @@ public class JNMatLib {
    */
   public static Throwable getError() { return error; }
 
+  /**
+   * Returns the name of the binding layer used to access the data of arrays:
+   * <code>"ffm"</code> for the <code>java.lang.foreign</code> backend (Java 22 or
+   * later), <code>"jna"</code> otherwise.  The backend can be
+   * chosen with the system property <code>jnmatlib.backend</code>
+   * (<code>auto</code>, <code>ffm</code> or <code>jna</code>).
+   *
+   * @return the backend name
+   */
+  public static String getBackend() { return NativeBackend.get().getName(); }
+
   // Automatically initialize on start-up; if this fails, the application
   // may try to fix things and call init() again.
   static {
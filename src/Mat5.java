@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+import java.nio.*;
+
+/**
+ * Constants and helper functions shared by {@link Mat5File} and
+ * {@link Mat5Writer} for handling the Level 5 MAT-file format.
+ * The format is described in Mathworks' <em>MAT-File Format</em> document.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+class Mat5 {
+  
+  // data types of data elements
+  static final int miINT8 = 1;
+  static final int miUINT8 = 2;
+  static final int miINT16 = 3;
+  static final int miUINT16 = 4;
+  static final int miINT32 = 5;
+  static final int miUINT32 = 6;
+  static final int miSINGLE = 7;
+  static final int miDOUBLE = 9;
+  static final int miINT64 = 12;
+  static final int miUINT64 = 13;
+  static final int miMATRIX = 14;
+  static final int miCOMPRESSED = 15;
+  static final int miUTF8 = 16;
+  static final int miUTF16 = 17;
+  static final int miUTF32 = 18;
+  
+  /** Size in bytes of one value of the numeric data types, indexed by type. */
+  static final int miSIZE[] = { 0, 1, 1, 2, 2, 4, 4, 4, 0, 8, 0, 0, 8, 8, 0, 0, 1, 2, 4 };
+  
+  // array classes as stored in the array flags (these differ from mxClassID)
+  static final int mxCELL_CLASS = 1;
+  static final int mxSTRUCT_CLASS = 2;
+  static final int mxOBJECT_CLASS = 3;
+  static final int mxCHAR_CLASS = 4;
+  static final int mxSPARSE_CLASS = 5;
+  
+  // array flags
+  static final int FLAG_COMPLEX = 0x0800;
+  static final int FLAG_GLOBAL = 0x0400;
+  static final int FLAG_LOGICAL = 0x0200;
+  
+  /** Length of the file header. */
+  static final int HEADER_SIZE = 128;
+  
+  /** Returns the data type stored in the data element tag at the buffer's position. */
+  static int tagType(ByteBuffer b) {
+    int w = b.getInt(b.position());
+    return ((w >>> 16) != 0) ? (w & 0xFFFF) : w;
+  }
+  
+  /** Returns the number of data bytes of the data element whose tag is at the buffer's position. */
+  static int tagSize(ByteBuffer b) {
+    int w = b.getInt(b.position());
+    return ((w >>> 16) != 0) ? (w >>> 16) : b.getInt(b.position() + 4);
+  }
+  
+  /** Returns <code>true</code> if the tag at the buffer's position is in small data element format. */
+  static boolean isSmall(ByteBuffer b) {
+    return (b.getInt(b.position()) >>> 16) != 0;
+  }
+  
+  /**
+   * Returns the data of the (non-compressed) data element at the buffer's position as
+   * a new buffer with the same byte order, and advances the buffer's position to the
+   * next data element.
+   */
+  static ByteBuffer readElement(ByteBuffer b) {
+    if (b.position() + 8 > b.limit())
+      throw new MatLibException("data element tag at " + b.position() + " extends beyond end of data");
+    int size = tagSize(b), start, next;
+    if (isSmall(b)) {
+      start = b.position() + 4;
+      next = b.position() + 8;
+    } else {
+      start = b.position() + 8;
+      next = start + ((tagType(b) == miCOMPRESSED) ? size : (size + 7) & ~7);
+    }
+    if ((size < 0) || (start + size > b.limit()))
+      throw new MatLibException("data element at " + b.position() + " extends beyond end of data (" + size + " bytes)");
+    ByteBuffer res = slice(b, start, size);
+    b.position(Math.min(next, b.limit()));
+    return res;
+  }
+  
+  /** Returns <code>length</code> bytes starting at <code>offset</code> as a new buffer with the same byte order. */
+  static ByteBuffer slice(ByteBuffer b, int offset, int length) {
+    ByteBuffer d = b.duplicate();
+    d.limit(offset + length).position(offset);
+    return d.slice().order(b.order());
+  }
+  
+  /** Decodes an ASCII string (array names, field names), stopping at the first NUL. */
+  static String toAscii(ByteBuffer b, int offset, int length) {
+    char cc[] = new char[length];
+    int n = 0;
+    while ((n < length) && (b.get(offset + n) != 0)) {
+      cc[n] = (char)(b.get(offset + n) & 0xFF);
+      n++;
+    }
+    return new String(cc, 0, n);
+  }
+  
+  /** Returns the number of values stored in a data element of the given type and size. */
+  static int count(int type, int nbytes) {
+    if ((type <= 0) || (type >= miSIZE.length) || (miSIZE[type] == 0))
+      throw new MatLibException("data type " + type + " is not a numeric type");
+    return nbytes/miSIZE[type];
+  }
+  
+  /** Converts <code>n</code> values of the given data type to <code>double</code>. */
+  static void toDouble(ByteBuffer b, int type, double dst[], int off, int n) {
+    switch (type) {
+      case miDOUBLE: b.asDoubleBuffer().get(dst, off, n); break;
+      case miSINGLE: { FloatBuffer fb = b.asFloatBuffer(); for (int i = 0; i < n; i++) dst[off + i] = fb.get(i); break; }
+      case miINT8: for (int i = 0; i < n; i++) dst[off + i] = b.get(i); break;
+      case miUINT8: case miUTF8: for (int i = 0; i < n; i++) dst[off + i] = b.get(i) & 0xFF; break;
+      case miINT16: { ShortBuffer sb = b.asShortBuffer(); for (int i = 0; i < n; i++) dst[off + i] = sb.get(i); break; }
+      case miUINT16: case miUTF16: { ShortBuffer sb = b.asShortBuffer(); for (int i = 0; i < n; i++) dst[off + i] = sb.get(i) & 0xFFFF; break; }
+      case miINT32: { IntBuffer ib = b.asIntBuffer(); for (int i = 0; i < n; i++) dst[off + i] = ib.get(i); break; }
+      case miUINT32: case miUTF32: { IntBuffer ib = b.asIntBuffer(); for (int i = 0; i < n; i++) dst[off + i] = ib.get(i) & 0xFFFFFFFFL; break; }
+      case miINT64: { LongBuffer lb = b.asLongBuffer(); for (int i = 0; i < n; i++) dst[off + i] = lb.get(i); break; }
+      case miUINT64: { LongBuffer lb = b.asLongBuffer(); for (int i = 0; i < n; i++) dst[off + i] = unsignedToDouble(lb.get(i)); break; }
+      default: throw new MatLibException("data type " + type + " is not a numeric type");
+    }
+  }
+  
+  /**
+   * Converts <code>n</code> values of the given data type to <code>long</code>.
+   * Floating-point values are truncated, and <code>miUINT64</code> values keep their bit pattern.
+   */
+  static void toLong(ByteBuffer b, int type, long dst[], int off, int n) {
+    switch (type) {
+      case miDOUBLE: { DoubleBuffer db = b.asDoubleBuffer(); for (int i = 0; i < n; i++) dst[off + i] = (long)db.get(i); break; }
+      case miSINGLE: { FloatBuffer fb = b.asFloatBuffer(); for (int i = 0; i < n; i++) dst[off + i] = (long)fb.get(i); break; }
+      case miINT8: for (int i = 0; i < n; i++) dst[off + i] = b.get(i); break;
+      case miUINT8: case miUTF8: for (int i = 0; i < n; i++) dst[off + i] = b.get(i) & 0xFF; break;
+      case miINT16: { ShortBuffer sb = b.asShortBuffer(); for (int i = 0; i < n; i++) dst[off + i] = sb.get(i); break; }
+      case miUINT16: case miUTF16: { ShortBuffer sb = b.asShortBuffer(); for (int i = 0; i < n; i++) dst[off + i] = sb.get(i) & 0xFFFF; break; }
+      case miINT32: { IntBuffer ib = b.asIntBuffer(); for (int i = 0; i < n; i++) dst[off + i] = ib.get(i); break; }
+      case miUINT32: case miUTF32: { IntBuffer ib = b.asIntBuffer(); for (int i = 0; i < n; i++) dst[off + i] = ib.get(i) & 0xFFFFFFFFL; break; }
+      case miINT64: case miUINT64: b.asLongBuffer().get(dst, off, n); break;
+      default: throw new MatLibException("data type " + type + " is not a numeric type");
+    }
+  }
+  
+  /** Converts the bit pattern of an unsigned 64-bit integer to the nearest <code>double</code>. */
+  static double unsignedToDouble(long v) {
+    if (v >= 0) return v;
+    return ((v >>> 1) | (v & 1))*2.0;
+  }
+  
+}
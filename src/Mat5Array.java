@@ -0,0 +1,590 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.Charset;
+
+/**
+ * A MATLAB variable read by {@link Mat5File} without the native libraries.
+ * This class mirrors the data retrieval methods of {@link MxArray}, but the
+ * data lives in Java memory: numeric data of variables that are not
+ * compressed are views into the memory-mapped MAT-file, and values are only
+ * converted and copied into Java arrays when requested.
+ * <p>
+ * Class IDs are the same as in {@link MxArrayInfo}, i.e., logical arrays have
+ * class {@link MxArrayInfo#LOGICAL_CLASS} and sparse matrices have class
+ * {@link MxArrayInfo#DOUBLE_CLASS} or {@link MxArrayInfo#LOGICAL_CLASS}.
+ * <p>
+ * Instances of this class cannot be directly created, but are returned by
+ * {@link Mat5File#readVariable} and {@link Mat5File#getVariableInfo}.
+ * The latter returns metadata only; all methods accessing data will throw
+ * a {@link MatLibException} on such instances.
+ *
+ * @see Mat5File
+ * @see MxArray
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class Mat5Array {
+  
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  private String name = "";
+  private int classID = MxArrayInfo.DOUBLE_CLASS;
+  private boolean complex, global, sparse, hasData;
+  private int dims[] = { 0, 0 };
+  private int nzmax;
+  private ByteBuffer re, im, ir, jc;
+  private int reType, imType, irType, jcType;
+  private String fieldNames[];
+  private Mat5Array elements[];
+  
+  Mat5Array() {}
+  
+  /**
+   * Parses the data of a <code>miMATRIX</code> data element.
+   *
+   * @param b the element's data (without the tag), starting at position 0
+   * @param infoOnly if <code>true</code>, only the array flags, dimensions, name,
+   *   and field names are parsed
+   * @throws MatLibException if the data is malformed or truncated
+   */
+  static Mat5Array parse(ByteBuffer b, boolean infoOnly) {
+    Mat5Array a = new Mat5Array();
+    a.hasData = !infoOnly;
+    if (b.remaining() == 0) return a;  // empty cells are stored as empty miMATRIX elements
+    ByteBuffer flags = Mat5.readElement(b);
+    int f = flags.getInt(0), cls = f & 0xFF;
+    a.nzmax = flags.getInt(4);
+    a.complex = (f & Mat5.FLAG_COMPLEX) != 0;
+    a.global = (f & Mat5.FLAG_GLOBAL) != 0;
+    boolean logical = (f & Mat5.FLAG_LOGICAL) != 0;
+    ByteBuffer dd = Mat5.readElement(b);
+    a.dims = new int[dd.limit()/4];
+    for (int i = 0; i < a.dims.length; i++)
+      a.dims[i] = dd.getInt(4*i);
+    ByteBuffer nn = Mat5.readElement(b);
+    a.name = Mat5.toAscii(nn, 0, nn.limit());
+    switch (cls) {
+      case Mat5.mxCELL_CLASS:
+        a.classID = MxArrayInfo.CELL_CLASS;
+        if (infoOnly) break;
+        a.elements = new Mat5Array[a.getNumberOfElementsAsInt()];
+        for (int i = 0; i < a.elements.length; i++)
+          a.elements[i] = parseElement(b);
+        break;
+      case Mat5.mxSTRUCT_CLASS:
+        a.classID = MxArrayInfo.STRUCT_CLASS;
+        int len = Mat5.readElement(b).getInt(0);
+        ByteBuffer names = Mat5.readElement(b);
+        a.fieldNames = new String[(len > 0) ? names.limit()/len : 0];
+        for (int i = 0; i < a.fieldNames.length; i++)
+          a.fieldNames[i] = Mat5.toAscii(names, i*len, len);
+        if (infoOnly) break;
+        a.elements = new Mat5Array[a.getNumberOfElementsAsInt()*a.fieldNames.length];
+        for (int i = 0; i < a.elements.length; i++)
+          a.elements[i] = parseElement(b);
+        break;
+      case Mat5.mxCHAR_CLASS:
+        a.classID = MxArrayInfo.CHAR_CLASS;
+        if (!infoOnly) a.parseData(b);
+        break;
+      case Mat5.mxSPARSE_CLASS:
+        a.classID = logical ? MxArrayInfo.LOGICAL_CLASS : MxArrayInfo.DOUBLE_CLASS;
+        a.sparse = true;
+        if (infoOnly) break;
+        a.irType = Mat5.tagType(b); a.ir = Mat5.readElement(b);
+        a.jcType = Mat5.tagType(b); a.jc = Mat5.readElement(b);
+        a.parseData(b);
+        break;
+      case MxArrayInfo.DOUBLE_CLASS: case MxArrayInfo.SINGLE_CLASS:
+      case MxArrayInfo.INT8_CLASS: case MxArrayInfo.UINT8_CLASS:
+      case MxArrayInfo.INT16_CLASS: case MxArrayInfo.UINT16_CLASS:
+      case MxArrayInfo.INT32_CLASS: case MxArrayInfo.UINT32_CLASS:
+      case MxArrayInfo.INT64_CLASS: case MxArrayInfo.UINT64_CLASS:
+        a.classID = (logical && (cls == MxArrayInfo.UINT8_CLASS)) ? MxArrayInfo.LOGICAL_CLASS : cls;
+        if (!infoOnly) a.parseData(b);
+        break;
+      default:  // objects, function handles, etc.
+        a.classID = MxArrayInfo.UNKNOWN_CLASS;
+        a.hasData = false;
+    }
+    return a;
+  }
+  
+  /** Returns a copy of the metadata <code>info</code> with the given dimensions and data. */
+  static Mat5Array withData(Mat5Array info, int dims[], int reType, ByteBuffer re, int imType, ByteBuffer im) {
+    Mat5Array a = new Mat5Array();
+    a.name = info.name;
+    a.classID = info.classID;
+    a.complex = info.complex;
+    a.global = info.global;
+    a.hasData = true;
+    a.dims = dims;
+    a.reType = reType; a.re = re;
+    a.imType = imType; a.im = im;
+    return a;
+  }
+  
+  /** Writes the metadata (as parsed with <code>infoOnly</code>) to a {@link Mat5File} index. */
+  void writeInfo(DataOutput out) throws IOException {
+    out.writeUTF(name);
+    out.writeByte(classID);
+    out.writeByte((complex ? 1 : 0) | (global ? 2 : 0) | (sparse ? 4 : 0));
+    out.writeInt(nzmax);
+    out.writeByte(dims.length);
+    for (int d : dims) out.writeInt(d);
+    out.writeShort((fieldNames == null) ? -1 : fieldNames.length);
+    if (fieldNames != null)
+      for (String fn : fieldNames) out.writeUTF(fn);
+  }
+  
+  /** Reads metadata written by {@link #writeInfo}. */
+  static Mat5Array readInfo(DataInput in) throws IOException {
+    Mat5Array a = new Mat5Array();
+    a.name = in.readUTF();
+    a.classID = in.readByte();
+    int f = in.readByte();
+    a.complex = (f & 1) != 0;
+    a.global = (f & 2) != 0;
+    a.sparse = (f & 4) != 0;
+    a.nzmax = in.readInt();
+    a.dims = new int[in.readByte()];
+    for (int i = 0; i < a.dims.length; i++) a.dims[i] = in.readInt();
+    int nf = in.readShort();
+    if (nf >= 0) {
+      a.fieldNames = new String[nf];
+      for (int i = 0; i < nf; i++) a.fieldNames[i] = in.readUTF();
+    }
+    return a;
+  }
+  
+  /** Parses a <code>miMATRIX</code> data element nested in a cell or struct. */
+  private static Mat5Array parseElement(ByteBuffer b) {
+    if (Mat5.tagType(b) != Mat5.miMATRIX)
+      throw new MatLibException("expected miMATRIX element at " + b.position() + ", found type " + Mat5.tagType(b));
+    return parse(Mat5.readElement(b), false);
+  }
+  
+  /** Parses the real and (optional) imaginary part data elements. */
+  private void parseData(ByteBuffer b) {
+    reType = Mat5.tagType(b); re = Mat5.readElement(b);
+    if (complex) { imType = Mat5.tagType(b); im = Mat5.readElement(b); }
+  }
+  
+  
+  /** Returns the name of this variable (empty for cell and struct elements). */
+  public String getName() { return name; }
+  
+  /**
+   * Get class ID of this variable's underlying data type.
+   *
+   * @return one of the XXX_CLASS constants in {@link MxArrayInfo}
+   * @see #getClassName
+   */
+  public int getClassID() { return classID; }
+  
+  /** Get class name of this variable's underlying data type. */
+  public String getClassName() { return MxArrayInfo.classnames[classID]; }
+  
+  /** Returns <code>true</code> if this is a cell array. */
+  public boolean isCell() { return classID == MxArrayInfo.CELL_CLASS; }
+  /** Returns <code>true</code> if this is a struct array. */
+  public boolean isStruct() { return classID == MxArrayInfo.STRUCT_CLASS; }
+  /** Returns <code>true</code> if this is a char array. */
+  public boolean isChar() { return classID == MxArrayInfo.CHAR_CLASS; }
+  /** Returns <code>true</code> if this is a logical array. */
+  public boolean isLogical() { return classID == MxArrayInfo.LOGICAL_CLASS; }
+  /** Returns <code>true</code> if this is a numeric (floating-point or integer) array. */
+  public boolean isNumeric() { return (classID >= MxArrayInfo.DOUBLE_CLASS) && (classID <= MxArrayInfo.UINT64_CLASS); }
+  /** Returns <code>true</code> if the underlying data is stored as a sparse matrix. */
+  public boolean isSparse() { return sparse; }
+  /** Returns <code>true</code> if the underlying data are complex numbers. */
+  public boolean isComplex() { return complex; }
+  /** Returns <code>true</code> if the variable lives in the global workspace. */
+  public boolean isFromGlobalWS() { return global; }
+  /** Returns <code>false</code> if this instance only holds metadata. */
+  public boolean hasData() { return hasData; }
+  
+  /** Get this variable's number of dimensions, which is at least two. */
+  public int getDimensionCount() { return dims.length; }
+  /** Get this variable's dimensions. */
+  public int[] getDimensions() { return dims.clone(); }
+  /** Get number of rows. */
+  public long getM() { return dims[0]; }
+  /** Get number of columns (i.e., the product of all but the first dimension). */
+  public long getN() {
+    long n = 1;
+    for (int i = 1; i < dims.length; i++) n *= dims[i];
+    return n;
+  }
+  /** Returns the number of values in this variable. */
+  public long getNumberOfElements() {
+    long n = 1;
+    for (int d : dims) n *= d;
+    return n;
+  }
+  /** Returns the maximum number of non-zeros in a sparse matrix. */
+  public long getNzmax() { return nzmax & 0xFFFFFFFFL; }
+  
+  private int getNumberOfElementsAsInt() {
+    long n = getNumberOfElements();
+    if ((n < 0) || (n > Integer.MAX_VALUE))
+      throw new MatLibException("number of elements is negative or too large: " + n);
+    return (int)n;
+  }
+  
+  
+  /** Returns the number of fields this variable has (assuming it's of type <code>struct</code>). */
+  public int getNumberOfFields() {
+    if (!isStruct())
+      throw new MatLibException("variable is not a struct");
+    return fieldNames.length;
+  }
+  
+  /** Get name of field by field's index. */
+  public String getFieldName(int index) {
+    if (!isStruct())
+      throw new MatLibException("variable is not a struct");
+    return fieldNames[index];
+  }
+  
+  /** Get index of field by field's name, or <code>-1</code> if there is no such field. */
+  public int getFieldIndex(String name) {
+    if (!isStruct())
+      throw new MatLibException("variable is not a struct");
+    for (int i = 0; i < fieldNames.length; i++)
+      if (fieldNames[i].equals(name))
+        return i;
+    return -1;
+  }
+  
+  /**
+   * Returns the cell at the given (linear, column-major) index.
+   *
+   * @param index linear index of the cell
+   */
+  public Mat5Array getCell(int index) {
+    checkData();
+    if (!isCell())
+      throw new MatLibException("variable is not a cell array");
+    return elements[index];
+  }
+  
+  /** Returns the field of the first element of this struct array. */
+  public Mat5Array getField(String fieldname) { return getField(fieldname, 0); }
+  
+  /**
+   * Returns a field of an element of this struct array.
+   *
+   * @param fieldname name of the field
+   * @param index linear index of the element
+   * @return the field's value, or <code>null</code> if there is no such field
+   */
+  public Mat5Array getField(String fieldname, int index) {
+    int k = getFieldIndex(fieldname);
+    return (k < 0) ? null : getFieldByNumber(k, index);
+  }
+  
+  /**
+   * Returns a field of an element of this struct array.
+   *
+   * @param fieldnumber index of the field
+   * @param index linear index of the element
+   */
+  public Mat5Array getFieldByNumber(int fieldnumber, int index) {
+    checkData();
+    if (!isStruct())
+      throw new MatLibException("variable is not a struct");
+    if ((fieldnumber < 0) || (fieldnumber >= fieldNames.length))
+      throw new ArrayIndexOutOfBoundsException(fieldnumber);
+    return elements[index*fieldNames.length + fieldnumber];
+  }
+  
+  
+  private void checkData() {
+    if (!hasData)
+      throw new MatLibException("variable '" + name + "' has no data (metadata only or unsupported class " + getClassName() + ")");
+  }
+  
+  /**
+   * Checks that this is a non-sparse numeric, logical, or char array whose data
+   * elements hold a value for every element, and returns the number of elements.
+   */
+  private int checkNumeric(String method) {
+    checkData();
+    if (!isNumeric() && !isLogical() && !isChar())
+      throw new MatLibException("not a numeric or logical array");
+    if (sparse)
+      throw new MatLibException(method + " cannot handle sparse matrices, use getSparseMatrix() instead");
+    int length = getNumberOfElementsAsInt();
+    checkCount(re, reType, length, "real");
+    if (complex) checkCount(im, imType, length, "imaginary");
+    return length;
+  }
+  
+  /** Checks that the data element <code>b</code> holds at least <code>length</code> values. */
+  private void checkCount(ByteBuffer b, int type, long length, String part) {
+    int n = (b == null) ? 0 : Mat5.count(type, b.limit());
+    if (n < length)
+      throw new MatLibException("variable '" + name + "' has " + length + " elements, but its " + part +
+        " data element has only " + n + " values (malformed or truncated file?)");
+  }
+  
+  /**
+   * Returns a read-only view of the real part of the data as stored in the file,
+   * without copying anything.  The values may be stored in a narrower data type
+   * than the variable's class; use {@link #getStorageClassID} to interpret them.
+   */
+  public ByteBuffer getRealBuffer() {
+    checkData();
+    return (re == null) ? null : re.asReadOnlyBuffer().order(re.order());
+  }
+  
+  /**
+   * Returns a read-only view of the imaginary part of the data as stored in the file.
+   *
+   * @see #getRealBuffer
+   */
+  public ByteBuffer getImagBuffer() {
+    checkData();
+    return (im == null) ? null : im.asReadOnlyBuffer().order(im.order());
+  }
+  
+  /**
+   * Returns the class ID corresponding to the data type in which the real part
+   * is stored in the file (e.g., {@link MxArrayInfo#UINT8_CLASS} for a <code>double</code>
+   * variable that MATLAB decided to store as bytes).
+   */
+  public int getStorageClassID() {
+    checkData();
+    switch (reType) {
+      case Mat5.miDOUBLE: return MxArrayInfo.DOUBLE_CLASS;
+      case Mat5.miSINGLE: return MxArrayInfo.SINGLE_CLASS;
+      case Mat5.miINT8: return MxArrayInfo.INT8_CLASS;
+      case Mat5.miUINT8: return MxArrayInfo.UINT8_CLASS;
+      case Mat5.miINT16: return MxArrayInfo.INT16_CLASS;
+      case Mat5.miUINT16: return MxArrayInfo.UINT16_CLASS;
+      case Mat5.miINT32: return MxArrayInfo.INT32_CLASS;
+      case Mat5.miUINT32: return MxArrayInfo.UINT32_CLASS;
+      case Mat5.miINT64: return MxArrayInfo.INT64_CLASS;
+      case Mat5.miUINT64: return MxArrayInfo.UINT64_CLASS;
+      case Mat5.miUTF8: case Mat5.miUTF16: case Mat5.miUTF32: return MxArrayInfo.CHAR_CLASS;
+      default: return MxArrayInfo.UNKNOWN_CLASS;
+    }
+  }
+  
+  /**
+   * Retrieves all data values in a Java array.  The type of the return value
+   * depends on the data class in the same way as for {@link MxArray#getData}.
+   *
+   * @return a Java array containing all values
+   */
+  public Object getData() {
+    return getArrayFromBuffer(re, reType, checkNumeric("getData()"));
+  }
+  
+  /**
+   * Retrieves all imaginary data values in a Java array.
+   *
+   * @see #getData
+   */
+  public Object getImagData() {
+    int length = checkNumeric("getImagData()");
+    if (!complex)
+      throw new MatLibException("not a complex numeric array");
+    return getArrayFromBuffer(im, imType, length);
+  }
+  
+  private Object getArrayFromBuffer(ByteBuffer b, int type, int length) {
+    switch (classID) {
+      case MxArrayInfo.DOUBLE_CLASS: {
+        double res[] = new double[length];
+        Mat5.toDouble(b, type, res, 0, length);
+        return res;
+      }
+      case MxArrayInfo.SINGLE_CLASS: {
+        float res[] = new float[length];
+        if (type == Mat5.miSINGLE)
+          b.asFloatBuffer().get(res);
+        else
+          for (int i = 0; i < length; i++) res[i] = (float)toDouble(b, type, i);
+        return res;
+      }
+      case MxArrayInfo.LOGICAL_CLASS: {
+        boolean res[] = new boolean[length];
+        for (int i = 0; i < length; i++) res[i] = toDouble(b, type, i) != 0;
+        return res;
+      }
+      case MxArrayInfo.CHAR_CLASS: {
+        if (type == Mat5.miUTF8) {
+          byte bb[] = new byte[b.limit()];
+          b.duplicate().get(bb);
+          return new String(bb, UTF8).toCharArray();
+        }
+        char res[] = new char[length];
+        for (int i = 0; i < length; i++) res[i] = (char)toLong(b, type, i);
+        return res;
+      }
+      case MxArrayInfo.UINT64_CLASS:
+        throw new MatLibException("cannot return uint64 as unsigned Java value");
+      default: {  // integer classes, widened like MxArray.getData does for unsigned types
+        long ll[] = new long[length];
+        Mat5.toLong(b, type, ll, 0, length);
+        switch (classID) {
+          case MxArrayInfo.INT8_CLASS: { byte res[] = new byte[length]; for (int i = 0; i < length; i++) res[i] = (byte)ll[i]; return res; }
+          case MxArrayInfo.INT16_CLASS: case MxArrayInfo.UINT8_CLASS: { short res[] = new short[length]; for (int i = 0; i < length; i++) res[i] = (short)ll[i]; return res; }
+          case MxArrayInfo.INT32_CLASS: case MxArrayInfo.UINT16_CLASS: { int res[] = new int[length]; for (int i = 0; i < length; i++) res[i] = (int)ll[i]; return res; }
+          default: return ll;
+        }
+      }
+    }
+  }
+  
+  private static double toDouble(ByteBuffer b, int type, int i) {
+    switch (type) {
+      case Mat5.miDOUBLE: return b.getDouble(8*i);
+      case Mat5.miSINGLE: return b.getFloat(4*i);
+      default: return toLong(b, type, i);
+    }
+  }
+  
+  private static long toLong(ByteBuffer b, int type, int i) {
+    switch (type) {
+      case Mat5.miDOUBLE: return (long)b.getDouble(8*i);
+      case Mat5.miSINGLE: return (long)b.getFloat(4*i);
+      case Mat5.miINT8: return b.get(i);
+      case Mat5.miUINT8: case Mat5.miUTF8: return b.get(i) & 0xFF;
+      case Mat5.miINT16: return b.getShort(2*i);
+      case Mat5.miUINT16: case Mat5.miUTF16: return b.getShort(2*i) & 0xFFFF;
+      case Mat5.miINT32: return b.getInt(4*i);
+      case Mat5.miUINT32: case Mat5.miUTF32: return b.getInt(4*i) & 0xFFFFFFFFL;
+      case Mat5.miINT64: case Mat5.miUINT64: return b.getLong(8*i);
+      default: throw new MatLibException("data type " + type + " is not a numeric type");
+    }
+  }
+  
+  /**
+   * Returns the values in this array as doubles.  If this array is of type
+   * <code>logical</code>, the returned values are either 1 or 0.  If the data
+   * contains complex numbers, the real part is returned.
+   */
+  public double[] doubleValues() {
+    int length = checkNumeric("doubleValues()");
+    double res[] = new double[length];
+    Mat5.toDouble(re, reType, res, 0, length);
+    return res;
+  }
+  
+  /** Returns the values in this array as floats, as described in {@link #doubleValues}. */
+  public float[] floatValues() {
+    int length = checkNumeric("floatValues()");
+    float res[] = new float[length];
+    if (reType == Mat5.miSINGLE)
+      re.asFloatBuffer().get(res);
+    else
+      for (int i = 0; i < length; i++) res[i] = (float)toDouble(re, reType, i);
+    return res;
+  }
+  
+  /**
+   * Returns the values in this array as longs.  Floating-point values are
+   * truncated, and <code>uint64</code> values keep their bit pattern.
+   */
+  public long[] longValues() {
+    int length = checkNumeric("longValues()");
+    long res[] = new long[length];
+    Mat5.toLong(re, reType, res, 0, length);
+    return res;
+  }
+  
+  /** Returns the values in this array as ints, narrowed as if by a Java cast. */
+  public int[] intValues() {
+    int length = checkNumeric("intValues()");
+    int res[] = new int[length];
+    if ((reType == Mat5.miINT32) || (reType == Mat5.miUINT32))
+      re.asIntBuffer().get(res);
+    else
+      for (int i = 0; i < length; i++) res[i] = (int)toLong(re, reType, i);
+    return res;
+  }
+  
+  /** Returns the values in this array as booleans, i.e., <code>true</code> for every non-zero value. */
+  public boolean[] booleanValues() {
+    int length = checkNumeric("booleanValues()");
+    boolean res[] = new boolean[length];
+    for (int i = 0; i < length; i++) res[i] = toDouble(re, reType, i) != 0;
+    return res;
+  }
+  
+  /**
+   * Returns the contents of a char array as a string.  For character matrices,
+   * the characters are returned in column-major order.
+   */
+  public String getString() {
+    checkData();
+    if (!isChar())
+      throw new MatLibException("not a char array");
+    return new String((char[])getData());
+  }
+  
+  /**
+   * Returns this sparse matrix in compressed sparse column format.
+   *
+   * @see SparseMatrix
+   */
+  public SparseMatrix getSparseMatrix() {
+    checkData();
+    if (!sparse)
+      throw new MatLibException("not a sparse matrix");
+    int N = (int)getN();
+    checkCount(jc, jcType, N + 1L, "column index");
+    long jcc[] = new long[N + 1];
+    Mat5.toLong(jc, jcType, jcc, 0, N + 1);
+    int nnz = (int)jcc[N];
+    if ((nnz < 0) || (jcc[N] != nnz))
+      throw new MatLibException("variable '" + name + "' has a negative or too large number of non-zeros: " + jcc[N]);
+    checkCount(ir, irType, nnz, "row index");
+    checkCount(re, reType, nnz, "real");
+    if (complex) checkCount(im, imType, nnz, "imaginary");
+    int irr[] = new int[nnz];
+    if ((irType == Mat5.miINT32) || (irType == Mat5.miUINT32))
+      ir.asIntBuffer().get(irr, 0, nnz);
+    else
+      for (int k = 0; k < nnz; k++) irr[k] = (int)toLong(ir, irType, k);
+    if (classID == MxArrayInfo.LOGICAL_CLASS) {
+      boolean bb[] = new boolean[nnz];
+      for (int k = 0; k < nnz; k++) bb[k] = toDouble(re, reType, k) != 0;
+      return new SparseMatrix(getM(), N, jcc, irr, null, null, null, bb);
+    }
+    double pr[] = new double[nnz];
+    Mat5.toDouble(re, reType, pr, 0, nnz);
+    double pi[] = null;
+    if (complex) {
+      pi = new double[nnz];
+      Mat5.toDouble(im, imType, pi, 0, nnz);
+    }
+    return new SparseMatrix(getM(), N, jcc, irr, null, pr, pi, null);
+  }
+  
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * This class is used to read Level 5 MAT-files (as written by MATLAB's
+ * <code>save -v6</code> and <code>save -v7</code>) in pure Java, without the
+ * native libraries.  It provides the same basic interface as {@link MatFile},
+ * but returns variables as {@link Mat5Array}s.  MAT-files in the HDF5-based
+ * version 7.3 format are not supported.
+ * <p>
+ * When the file is opened, its data elements are scanned once to build a
+ * directory of all variables, which can be kept in an index file next to the
+ * MAT-file to skip the scan the next time.  Variables that are not compressed
+ * are memory-mapped when read, and their numeric data is accessed through
+ * views of the mapped region.  Compressed variables are inflated straight
+ * from the file into a buffer of the uncompressed size.  When several
+ * variables are requested at once with {@link #readVariables}, compressed
+ * variables are inflated concurrently.
+ * <p>
+ * All methods may throw a {@link MatLibException} if the file cannot be read
+ * or is not a valid Level 5 MAT-file.
+ *
+ * @see Mat5Array
+ * @see MatFile
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class Mat5File implements AutoCloseable {
+  
+  /** Number of bytes decompressed or read to obtain a variable's metadata. */
+  private static final int INFO_SIZE = 1024;
+  /** Minimum size of uncompressed variables to be memory-mapped instead of read. */
+  private static final int MAP_THRESHOLD = 1 << 16;
+  /** Size of the buffer used to read compressed data from the file. */
+  private static final int INPUT_SIZE = 1 << 16;
+  /** First bytes of an index file (&quot;JNMI&quot;) and the version of its format. */
+  private static final int INDEX_MAGIC = 0x4A4E4D49, INDEX_VERSION = 1;
+  
+  /** Directory entry for a top-level data element. */
+  static class Entry {
+    final long offset;  // file offset of the data element tag
+    final int type;  // miMATRIX or miCOMPRESSED
+    final long length;  // number of bytes following the tag
+    Mat5Array info;
+    Entry(long offset, int type, long length) { this.offset = offset; this.type = type; this.length = length; }
+  }
+  
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final ByteOrder order;
+  private final String headerText;
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+  
+  /**
+   * Opens an existing MAT-file for reading.
+   *
+   * @param filename name of the MAT-file
+   */
+  public Mat5File(String filename) {
+    this(new File(filename), false);
+  }
+  
+  /**
+   * Opens an existing MAT-file for reading.
+   *
+   * @param file path to the MAT-file
+   */
+  public Mat5File(File file) {
+    this(file, false);
+  }
+  
+  /**
+   * Opens an existing MAT-file for reading, optionally using an index file.
+   *
+   * @param filename name of the MAT-file
+   * @param useIndex see {@link #Mat5File(File, boolean)}
+   */
+  public Mat5File(String filename, boolean useIndex) {
+    this(new File(filename), useIndex);
+  }
+  
+  /**
+   * Opens an existing MAT-file for reading, optionally using an index file.
+   * The index file (see {@link #getIndexFile}) stores the directory of all variables,
+   * including their metadata and location in the MAT-file, so that the file does
+   * not need to be scanned again the next time it is opened.  The index is only
+   * used if the size and modification time of the MAT-file have not changed since
+   * it was written; otherwise, or if it cannot be read, it is rebuilt.  Failure to write the index file
+   * (e.g., in a read-only directory) is silently ignored.
+   *
+   * @param file path to the MAT-file
+   * @param useIndex if <code>true</code>, the index file is read or written
+   */
+  public Mat5File(File file, boolean useIndex) {
+    if (file == null)
+      throw new NullPointerException("file cannot be null");
+    this.file = file;
+    try {
+      raf = new RandomAccessFile(file, "r");
+    } catch (IOException e) {
+      throw new MatLibException("cannot open file '" + file + "'", e);
+    }
+    channel = raf.getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(Mat5.HEADER_SIZE);
+      if (channel.size() < Mat5.HEADER_SIZE)
+        throw new MatLibException("file '" + file + "' is too short to be a MAT-file");
+      readFully(header, 0);
+      if ((header.get(126) == 'I') && (header.get(127) == 'M'))
+        order = ByteOrder.LITTLE_ENDIAN;
+      else if ((header.get(126) == 'M') && (header.get(127) == 'I'))
+        order = ByteOrder.BIG_ENDIAN;
+      else
+        throw new MatLibException("file '" + file + "' is not a Level 5 MAT-file");
+      header.order(order);
+      int version = header.getShort(124) & 0xFFFF;
+      if (version != 0x0100)
+        throw new MatLibException("MAT-file version 0x" + Integer.toHexString(version) + " is not supported" +
+          ((version == 0x0200) ? " (HDF5-based v7.3 files cannot be read by Mat5File)" : ""));
+      headerText = Mat5.toAscii(header, 0, 116).trim();
+      if (!useIndex || !loadIndex()) {
+        scan();
+        if (useIndex) saveIndex();
+      }
+    } catch (IOException e) {
+      close();
+      throw new MatLibException("error reading file '" + file + "'", e);
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+  
+  /** Builds the directory by walking over all top-level data elements. */
+  private void scan() throws IOException {
+    long size = channel.size(), pos = Mat5.HEADER_SIZE;
+    ByteBuffer tag = ByteBuffer.allocate(8).order(order);
+    while (pos + 8 <= size) {
+      tag.clear();
+      readFully(tag, pos);
+      int type = tag.getInt(0);
+      long length = tag.getInt(4) & 0xFFFFFFFFL;
+      if ((type == Mat5.miMATRIX) || (type == Mat5.miCOMPRESSED)) {
+        Entry e = new Entry(pos, type, length);
+        e.info = readInfo(e);
+        if ((e.info != null) && (e.info.getName().length() > 0))  // skip subsystem data, which has no name
+          entries.put(e.info.getName(), e);
+      }
+      pos += 8 + ((type == Mat5.miCOMPRESSED) ? length : (length + 7) & ~7L);
+    }
+  }
+  
+  /** Returns the index file used by {@link #Mat5File(File, boolean)}, which is the MAT-file's name with <code>.idx</code> appended. */
+  public File getIndexFile() { return new File(file.getPath() + ".idx"); }
+  
+  /** Fills the directory from the index file, or returns <code>false</code> if there is no valid index file. */
+  private boolean loadIndex() {
+    File idx = getIndexFile();
+    if (!idx.isFile()) return false;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+      try {
+        if ((in.readInt() != INDEX_MAGIC) || (in.readInt() != INDEX_VERSION) ||
+            (in.readLong() != channel.size()) || (in.readLong() != file.lastModified()))
+          return false;
+        long size = channel.size();
+        for (int i = 0, n = in.readInt(); i < n; i++) {
+          Entry e = new Entry(in.readLong(), in.readByte(), in.readLong());
+          if (((e.type != Mat5.miMATRIX) && (e.type != Mat5.miCOMPRESSED)) ||
+              (e.offset < Mat5.HEADER_SIZE) || (e.length < 0) || (e.offset + 8 > size - e.length)) {
+            entries.clear();
+            return false;
+          }
+          e.info = Mat5Array.readInfo(in);
+          entries.put(e.info.getName(), e);
+        }
+        return true;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      entries.clear();
+      return false;
+    } catch (RuntimeException e) {  // corrupt index file, e.g. a negative array size
+      entries.clear();
+      return false;
+    }
+  }
+  
+  /** Writes the directory to the index file. */
+  private void saveIndex() {
+    File idx = getIndexFile(), tmp = new File(idx.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeLong(channel.size());
+        out.writeLong(file.lastModified());
+        out.writeInt(entries.size());
+        for (Entry e : entries.values()) {
+          out.writeLong(e.offset);
+          out.writeByte(e.type);
+          out.writeLong(e.length);
+          e.info.writeInfo(out);
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(idx)) {
+        idx.delete();
+        tmp.renameTo(idx);
+      }
+    } catch (IOException e) {
+      tmp.delete();  // never mind...
+    }
+  }
+  
+  /** Parses a variable's metadata from the beginning of its data element. */
+  private Mat5Array readInfo(Entry e) throws IOException {
+    // the inflated size of a compressed element is only known once it has been inflated
+    long max = Math.min((e.type == Mat5.miMATRIX) ? e.length : Long.MAX_VALUE, Integer.MAX_VALUE);
+    for (long n = INFO_SIZE; ; n *= 4) {
+      int limit = (int)Math.min(n, max);
+      ByteBuffer b = readData(e, limit);
+      if (b == null) return null;  // compressed element that does not contain an miMATRIX
+      try {
+        return Mat5Array.parse(b, true);
+      } catch (MatLibException ex) {
+        if ((b.limit() < limit) || (limit == max)) throw ex;  // we already had all data
+      }
+    }
+  }
+  
+  /**
+   * Returns the data of an miMATRIX element (i.e., without the tag), inflating it
+   * if necessary.  Large uncompressed elements are memory-mapped unless <code>limit</code>
+   * is smaller than the element.
+   *
+   * @param limit maximum number of bytes to return
+   * @return the data, or <code>null</code> if a compressed element does not contain an miMATRIX
+   */
+  ByteBuffer readData(Entry e, int limit) throws IOException {
+    if (e.type == Mat5.miMATRIX) {
+      if ((limit < e.length) || (e.length < MAP_THRESHOLD)) {
+        ByteBuffer b = ByteBuffer.allocate((int)Math.min(limit, e.length)).order(order);
+        readFully(b, e.offset + 8);
+        return b;
+      }
+      if (e.length > Integer.MAX_VALUE)
+        throw new MatLibException("variable at offset " + e.offset + " is too large to be mapped (" + e.length + " bytes)");
+      return channel.map(FileChannel.MapMode.READ_ONLY, e.offset + 8, e.length).order(order);
+    }
+    DataInputStream in = new DataInputStream(openCompressed(e));
+    try {
+      byte tag[] = new byte[8];
+      in.readFully(tag);
+      ByteBuffer t = ByteBuffer.wrap(tag).order(order);
+      if (Mat5.tagType(t) != Mat5.miMATRIX)
+        return null;
+      long size = Mat5.tagSize(t) & 0xFFFFFFFFL;
+      if (size > Integer.MAX_VALUE)
+        throw new MatLibException("compressed variable at offset " + e.offset + " is too large (" + size + " bytes)");
+      byte data[] = new byte[(int)Math.min(size, limit)];
+      in.readFully(data);
+      return ByteBuffer.wrap(data).order(order);
+    } catch (EOFException ex) {
+      throw new MatLibException("compressed data at offset " + e.offset + " ends prematurely", ex);
+    } finally {
+      in.close();
+    }
+  }
+  
+  /** Returns a stream that inflates the data of a miCOMPRESSED element directly from the file. */
+  InputStream openCompressed(Entry e) {
+    return new InflaterInputStream(new RegionInputStream(e.offset + 8, e.length), new Inflater(), INPUT_SIZE) {
+      public void close() throws IOException { inf.end(); super.close(); }
+    };
+  }
+  
+  /** Reads a region of the file without moving the channel's position. */
+  private class RegionInputStream extends InputStream {
+    private long pos, end;
+    RegionInputStream(long pos, long length) { this.pos = pos; this.end = pos + length; }
+    public int read() throws IOException {
+      byte b[] = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+    public int read(byte b[], int off, int len) throws IOException {
+      if (pos >= end) return -1;
+      int n = channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, end - pos)), pos);
+      if (n > 0) pos += n;
+      return n;
+    }
+  }
+  
+  /** Fills <code>b</code> with data from the file starting at <code>pos</code>, and flips it. */
+  private void readFully(ByteBuffer b, long pos) throws IOException {
+    while (b.hasRemaining()) {
+      int n = channel.read(b, pos + b.position());
+      if (n < 0)
+        throw new EOFException("unexpected end of file '" + file + "'");
+    }
+    b.flip();
+  }
+  
+  Entry getEntry(String name) {
+    Entry e = entries.get(name);
+    if (e == null)
+      throw new MatLibException("'" + name + "' is not a variable in file '" + file + "'");
+    return e;
+  }
+  
+  /** Returns the descriptive text in the MAT-file header. */
+  public String getHeaderText() { return headerText; }
+  
+  /**
+   * Return the number of variables stored in this MAT-file.
+   *
+   * @return number of variables
+   */
+  public int getVariableCount() { return entries.size(); }
+  
+  /**
+   * Lists the names of all variables in this MAT-file, in the order in which they are stored.
+   *
+   * @return the variable names, or an empty array if the file is empty
+   */
+  public String[] getVariableNames() { return entries.keySet().toArray(new String[entries.size()]); }
+  
+  /**
+   * Provides information on a variable in this MAT-file.
+   *
+   * @return the variable metadata, without any data
+   */
+  public Mat5Array getVariableInfo(String name) { return getEntry(name).info; }
+  
+  /**
+   * Reads a variable from the MAT-file.
+   *
+   * @param name name of the variable
+   * @return the variable
+   */
+  public Mat5Array readVariable(String name) {
+    Entry e = getEntry(name);
+    try {
+      return Mat5Array.parse(readData(e, Integer.MAX_VALUE), false);
+    } catch (IOException ex) {
+      throw new MatLibException("error reading variable '" + name + "' from file '" + file + "'", ex);
+    }
+  }
+  
+  /**
+   * Reads a block of rows and columns of a variable.  Variables with more than two
+   * dimensions are treated as matrices whose columns span all but the first dimension.
+   *
+   * @param name name of the variable
+   * @param rows rows to read
+   * @param cols columns to read
+   * @return the block as a matrix, without the rest of the variable
+   * @see #readVariable(String, Range...)
+   */
+  public Mat5Array readBlock(String name, Range rows, Range cols) {
+    Mat5Array info = getEntry(name).info;
+    return readSlab(name, new int[] { info.getDimensions()[0], (int)Math.min(info.getN(), Integer.MAX_VALUE) },
+      new Range[] { rows, cols });
+  }
+  
+  /**
+   * Reads a hyperslab of a non-sparse numeric, logical, or char variable.  Only the
+   * requested values are read: for uncompressed variables, the contiguous runs of
+   * values are read from the file at their computed offsets; compressed variables
+   * are inflated only up to the last requested value, and everything in front of
+   * the requested values is discarded while inflating.
+   *
+   * @param name name of the variable
+   * @param ranges one range per dimension; missing trailing ranges select whole dimensions
+   * @return the hyperslab, with the dimensions of the variable
+   * @see #readBlock
+   */
+  public Mat5Array readVariable(String name, Range... ranges) {
+    return readSlab(name, getEntry(name).info.getDimensions(), ranges);
+  }
+  
+  private Mat5Array readSlab(String name, int dims[], Range ranges[]) {
+    Entry e = getEntry(name);
+    Mat5Array info = e.info;
+    if ((!info.isNumeric() && !info.isLogical() && !info.isChar()) || info.isSparse())
+      throw new MatLibException("'" + name + "' is not a non-sparse numeric, logical or char array");
+    if (ranges.length > dims.length)
+      throw new MatLibException("'" + name + "' has only " + dims.length + " dimensions, but " + ranges.length + " ranges were given");
+    int sdims[] = new int[Math.max(2, dims.length)];
+    long total = 1;
+    for (int i = 0; i < dims.length; i++) {
+      sdims[i] = ((i < ranges.length) ? ranges[i] : Range.ALL).getLength(dims[i]);
+      total *= sdims[i];
+    }
+    if (dims.length < 2) sdims[1] = 1;
+    try {
+      SlabReader r = new SlabReader(e);
+      try {
+        int reType = r.tagType();
+        ByteBuffer re = r.readSlab(reType, dims, ranges, sdims, total);
+        int imType = 0;
+        ByteBuffer im = null;
+        if (info.isComplex()) {
+          r.next();
+          imType = r.tagType();
+          im = r.readSlab(imType, dims, ranges, sdims, total);
+        }
+        return Mat5Array.withData(info, sdims, reType, re, imType, im);
+      } finally {
+        r.close();
+      }
+    } catch (IOException ex) {
+      throw new MatLibException("error reading variable '" + name + "' from file '" + file + "'", ex);
+    }
+  }
+  
+  /**
+   * Reads parts of the real and imaginary data elements of a variable.  All offsets
+   * are relative to the beginning of the variable's <code>miMATRIX</code> data (after
+   * the tag), and must be increasing so that compressed data can be read as a stream.
+   */
+  private class SlabReader {
+    private final Entry e;
+    private final InputStream in;  // null if not compressed
+    private long inPos = -8;  // offset of the next byte in the stream, which starts with the miMATRIX tag
+    private final ByteBuffer tag = ByteBuffer.allocate(8).order(order);
+    private long tagPos;  // offset of the current data element tag
+    
+    SlabReader(Entry e) throws IOException {
+      this.e = e;
+      in = (e.type == Mat5.miCOMPRESSED) ? openCompressed(e) : null;
+      if (in != null) {
+        read(tag, -8);
+        if (Mat5.tagType(tag) != Mat5.miMATRIX)
+          throw new MatLibException("compressed data at offset " + e.offset + " does not contain a variable");
+      }
+      // skip array flags, dimensions, and name
+      for (int i = 0; i < 3; i++) { tagType(); next(); }
+    }
+    
+    /** Reads the tag at <code>tagPos</code> and returns its data type. */
+    int tagType() throws IOException {
+      tag.clear();
+      read(tag, tagPos);
+      return Mat5.tagType(tag);
+    }
+    
+    /** Advances <code>tagPos</code> to the data element following the one whose tag was read last. */
+    void next() {
+      tagPos += Mat5.isSmall(tag) ? 8 : 8 + ((Mat5.tagSize(tag) + 7) & ~7);
+    }
+    
+    /** Reads the requested values from the data element whose tag was read last. */
+    ByteBuffer readSlab(int type, int dims[], Range ranges[], int sdims[], long total) throws IOException {
+      if ((type == Mat5.miUTF8) || (type <= 0) || (type >= Mat5.miSIZE.length) || (Mat5.miSIZE[type] == 0))
+        throw new MatLibException("data type " + type + " does not allow reading parts of a variable");
+      int size = Mat5.miSIZE[type];
+      if (total*size > Integer.MAX_VALUE)
+        throw new MatLibException("requested part is too large (" + total + " values)");
+      if (Mat5.count(type, Mat5.tagSize(tag)) < count(dims))
+        throw new MatLibException("data element has fewer values than the variable has elements");
+      ByteBuffer res = ByteBuffer.allocate((int)total*size).order(order);
+      ByteBuffer small = Mat5.isSmall(tag) ? Mat5.slice(tag, 4, 4) : null;
+      long data = tagPos + 8;
+      // walk over all runs along the first dimension in column-major order, merging adjacent runs
+      int idx[] = new int[dims.length];
+      long runStart = -1, runEnd = -1;
+      for (long done = 0; done < total; done += sdims[0]) {
+        long off = 0, stride = 1;
+        for (int k = 0; k < dims.length; k++) {
+          off += (((k < ranges.length) ? ranges[k].getStart() : 0) + idx[k])*stride;
+          stride *= dims[k];
+        }
+        if (off != runEnd) {
+          if (runStart >= 0) readRun(res, small, data + runStart*size, (runEnd - runStart)*size);
+          runStart = off;
+        }
+        runEnd = off + sdims[0];
+        for (int k = 1; (k < dims.length) && (++idx[k] == sdims[k]); k++) idx[k] = 0;
+      }
+      if (runStart >= 0) readRun(res, small, data + runStart*size, (runEnd - runStart)*size);
+      res.flip();
+      return res;
+    }
+    
+    private void readRun(ByteBuffer dst, ByteBuffer small, long pos, long length) throws IOException {
+      ByteBuffer d = dst.duplicate();
+      d.limit(d.position() + (int)length);
+      d = d.slice();
+      if (small != null)
+        d.put(Mat5.slice(small, (int)(pos - tagPos - 8), (int)length));
+      else
+        read(d, pos);
+      dst.position(dst.position() + (int)length);
+    }
+    
+    /** Fills the remaining space of <code>b</code> with the data at offset <code>pos</code>. */
+    private void read(ByteBuffer b, long pos) throws IOException {
+      if (in == null) {
+        readFully(b, e.offset + 8 + pos);
+        return;
+      }
+      if (pos < inPos)
+        throw new IllegalStateException("cannot seek backwards in compressed data");
+      while (inPos < pos) {
+        long n = in.skip(pos - inPos);
+        if (n <= 0) throw new EOFException("compressed data at offset " + e.offset + " ends prematurely");
+        inPos += n;
+      }
+      int n = b.remaining();
+      new DataInputStream(in).readFully(b.array(), b.arrayOffset() + b.position(), n);
+      inPos += n;
+      b.position(b.limit());
+      b.flip();
+    }
+    
+    void close() throws IOException { if (in != null) in.close(); }
+  }
+  
+  private static long count(int dims[]) {
+    long n = 1;
+    for (int d : dims) n *= d;
+    return n;
+  }
+  
+  /**
+   * Reads several variables from the MAT-file.  Compressed variables are inflated
+   * concurrently in the common fork-join pool if more than one processor is available.
+   *
+   * @param names names of the variables
+   * @return the variables, in the order of <code>names</code>
+   * @see #readVariables(ExecutorService, String...)
+   */
+  public Map<String, Mat5Array> readVariables(String... names) {
+    return readVariables((Runtime.getRuntime().availableProcessors() > 1) ? ForkJoinPool.commonPool() : null, names);
+  }
+  
+  /**
+   * Reads several variables from the MAT-file.  Compressed variables are inflated
+   * concurrently by the given executor, which thereby bounds the number of threads
+   * used; uncompressed variables are mapped in the calling thread.
+   *
+   * @param executor executor that runs the decompression tasks, or <code>null</code> to read sequentially
+   * @param names names of the variables
+   * @return the variables, in the order of <code>names</code>
+   */
+  public Map<String, Mat5Array> readVariables(ExecutorService executor, String... names) {
+    Map<String, Future<Mat5Array>> tasks = new LinkedHashMap<String, Future<Mat5Array>>();
+    int compressed = 0;
+    for (String name : names)
+      if (getEntry(name).type == Mat5.miCOMPRESSED)
+        compressed++;
+    try {
+      for (final String name : names) {
+        if (tasks.containsKey(name)) continue;
+        if ((executor == null) || (compressed < 2) || (getEntry(name).type != Mat5.miCOMPRESSED))
+          tasks.put(name, null);
+        else
+          tasks.put(name, executor.submit(new Callable<Mat5Array>() {
+            public Mat5Array call() { return readVariable(name); } }));
+      }
+      Map<String, Mat5Array> res = new LinkedHashMap<String, Mat5Array>();
+      for (Map.Entry<String, Future<Mat5Array>> t : tasks.entrySet())
+        res.put(t.getKey(), (t.getValue() == null) ? readVariable(t.getKey()) : t.getValue().get());
+      return res;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MatLibException("interrupted while reading variables from file '" + file + "'", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new MatLibException("error reading variables from file '" + file + "'", e.getCause());
+    } finally {
+      for (Future<Mat5Array> f : tasks.values())
+        if (f != null) f.cancel(false);
+    }
+  }
+  
+  /**
+   * Closes the MAT-file.  Variables that have already been read remain valid.
+   * Calling this method more than once has no effect.
+   */
+  public void close() {
+    try { raf.close(); } catch (IOException e) { /* never mind... */ }
+  }
+  
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+/**
+ * This class is used to write Level 5 MAT-files in pure Java, without the
+ * native libraries.  Variables are streamed to the file while they are being
+ * written, so that the memory used by the writer does not depend on the size
+ * of the variables.
+ * <p>
+ * A variable is started with {@link #beginVariable}, which returns a
+ * {@link Variable} to which the values are appended in column-major order,
+ * e.g., one block of columns at a time.  The last dimension may be given as
+ * {@link #UNKNOWN}, in which case it is determined from the number of values
+ * when the variable is {@link Variable#finish finished}:
+ * <pre>
+ *   try (Mat5Writer w = new Mat5Writer("out.mat")) {
+ *     Mat5Writer.Variable v = w.beginVariable("X", MxArrayInfo.DOUBLE_CLASS, false, 1000, Mat5Writer.UNKNOWN);
+ *     while (simulation.hasNext())
+ *       v.append(simulation.nextColumns());  // any number of 1000-element columns
+ *   }  // finishes the variable
+ * </pre>
+ * Only one variable can be written at a time, and beginning the next variable
+ * finishes the previous one.  Supported are numeric, logical and char arrays;
+ * the Java type of the values must match the class of the variable (see
+ * {@link Variable#append(Object, Object, int, int)}).  The data is not compressed.
+ * <p>
+ * The format limits the size of a single variable to 4&nbsp;GB.  All methods
+ * may throw a {@link MatLibException} if the file cannot be written.
+ *
+ * @see Mat5File
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class Mat5Writer implements AutoCloseable {
+
+  /** Placeholder for the last dimension of a variable whose size is not known in advance. */
+  public static final int UNKNOWN = -1;
+
+  /** Size of the buffers used to write the real and imaginary data. */
+  private static final int BUFFER_SIZE = 1 << 16;
+  /** Largest number of bytes that a data element tag can describe. */
+  private static final long MAX_ELEMENT_SIZE = 0xFFFFFFF8L;
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private long pos;  // end of the last finished variable
+  private Variable current;
+
+  /**
+   * Creates a new MAT-file, overwriting an existing file.
+   *
+   * @param file path to the MAT-file
+   */
+  public Mat5Writer(File file) {
+    if (file == null)
+      throw new NullPointerException("file cannot be null");
+    this.file = file;
+    try {
+      raf = new RandomAccessFile(file, "rw");
+    } catch (IOException e) {
+      throw new MatLibException("cannot create file '" + file + "'", e);
+    }
+    channel = raf.getChannel();
+    try {
+      channel.truncate(0);
+      ByteBuffer header = ByteBuffer.allocate(Mat5.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      String text = "MATLAB 5.0 MAT-file, Platform: " + System.getProperty("os.name") +
+        ", Created on: " + new Date() + " by JNMatLib";
+      for (int i = 0; i < 116; i++)
+        header.put((byte)((i < text.length()) ? text.charAt(i) & 0x7F : ' '));
+      header.putLong(0);  // no subsystem data
+      header.putShort((short)0x0100);
+      header.put((byte)'I').put((byte)'M');
+      header.flip();
+      writeFully(channel, header, 0);
+      pos = Mat5.HEADER_SIZE;
+    } catch (IOException e) {
+      close();
+      throw new MatLibException("error writing file '" + file + "'", e);
+    }
+  }
+
+  /**
+   * Creates a new MAT-file, overwriting an existing file.
+   *
+   * @param filename name of the MAT-file
+   */
+  public Mat5Writer(String filename) {
+    this(new File(filename));
+  }
+
+  /**
+   * Starts writing a new variable.  The previous variable is finished if necessary.
+   *
+   * @param name name of the variable
+   * @param classID one of the numeric <code>XXX_CLASS</code> constants in {@link MxArrayInfo},
+   *   {@link MxArrayInfo#LOGICAL_CLASS}, or {@link MxArrayInfo#CHAR_CLASS}
+   * @param complex if <code>true</code>, the variable has an imaginary part
+   * @param dims dimensions of the variable (at least two); the last one may be {@link #UNKNOWN}
+   * @return the new variable, to which the values are to be appended
+   */
+  public Variable beginVariable(String name, int classID, boolean complex, int... dims) {
+    if (channel == null || !channel.isOpen())
+      throw new MatLibException("file '" + file + "' has been closed");
+    if (current != null)
+      current.finish();
+    checkName(name);
+    if ((dims == null) || (dims.length < 2))
+      throw new IllegalArgumentException("at least two dimensions are required");
+    for (int i = 0; i < dims.length; i++)
+      if ((dims[i] < 0) && !((i == dims.length - 1) && (dims[i] == UNKNOWN)))
+        throw new IllegalArgumentException("invalid dimension " + dims[i] + " at index " + i);
+    if (complex && ((classID == MxArrayInfo.LOGICAL_CLASS) || (classID == MxArrayInfo.CHAR_CLASS)))
+      throw new IllegalArgumentException(MxArrayInfo.classnames[classID] + " arrays cannot be complex");
+    try {
+      current = new Variable(name, classID, complex, dims.clone());
+    } catch (IOException e) {
+      throw new MatLibException("error writing variable '" + name + "' to file '" + file + "'", e);
+    }
+    return current;
+  }
+
+  /** Throws an exception if <code>name</code> is not a valid MATLAB identifier. */
+  private static void checkName(String name) {
+    if (name == null)
+      throw new NullPointerException("name cannot be null");
+    boolean valid = (name.length() > 0) && (name.charAt(0) < 128) && Character.isLetter(name.charAt(0));
+    for (int i = 1; valid && (i < name.length()); i++) {
+      char c = name.charAt(i);
+      valid = (c < 128) && (Character.isLetterOrDigit(c) || (c == '_'));
+    }
+    if (!valid)
+      throw new IllegalArgumentException("'" + name + "' is not a valid variable name");
+  }
+
+  /**
+   * Closes the MAT-file.  A variable that has not been finished yet is finished first.
+   * Calling this method more than once has no effect.
+   */
+  public void close() {
+    try {
+      if ((current != null) && channel.isOpen())
+        current.finish();
+    } finally {
+      try { raf.close(); } catch (IOException e) { /* never mind... */ }
+    }
+  }
+
+  /** Writes all remaining bytes of <code>b</code> to the channel, starting at <code>pos</code>. */
+  private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+    while (b.hasRemaining())
+      pos += ch.write(b, pos);
+  }
+
+  /**
+   * A variable that is being written to a {@link Mat5Writer}.  Values are appended
+   * in column-major order, and the real and imaginary parts of complex variables are
+   * appended together.  The Java type of the values must correspond to the class of
+   * the variable: <code>double[]</code> for double, <code>float[]</code> for single,
+   * <code>byte[]</code> for int8 and uint8, <code>short[]</code> for int16 and uint16,
+   * <code>int[]</code> for int32 and uint32, <code>long[]</code> for int64 and uint64,
+   * <code>boolean[]</code> for logical and <code>char[]</code> for char arrays.
+   * Unsigned values are given by their bit pattern.
+   */
+  public class Variable {
+
+    private final String name;
+    private final int classID, type, size;
+    private final boolean complex;
+    private final int dims[];
+    private final long start;  // file offset of the miMATRIX tag
+    private final long dimsPos, realPos;  // file offsets of the dimensions and of the real data tag
+    private final long expected;  // number of values, or -1 if the last dimension is unknown
+    private final Stream re, im;
+    private final File spool;  // holds the imaginary data if its offset is not known yet
+    private long count;
+    private boolean finished;
+
+    Variable(String name, int classID, boolean complex, int dims[]) throws IOException {
+      this.name = name;
+      this.classID = classID;
+      this.complex = complex;
+      this.dims = dims;
+      this.type = storageType(classID);
+      this.size = Mat5.miSIZE[type];
+      this.start = pos;
+      long n = 1;
+      for (int d : dims) n *= (d == UNKNOWN) ? 1 : d;
+      expected = (dims[dims.length - 1] == UNKNOWN) ? -1 : n;
+      if ((expected >= 0) && (dataSize(expected) > MAX_ELEMENT_SIZE))
+        throw new MatLibException("variable '" + name + "' is too large for a Level 5 MAT-file (" + n + " values)");
+      // write the metadata in front of the data
+      ByteBuffer b = ByteBuffer.allocate(64 + ((4*dims.length + 7) & ~7) + ((name.length() + 7) & ~7)).order(ByteOrder.LITTLE_ENDIAN);
+      b.putInt(Mat5.miMATRIX).putInt(0);
+      int cls = (classID == MxArrayInfo.LOGICAL_CLASS) ? MxArrayInfo.UINT8_CLASS :
+        (classID == MxArrayInfo.CHAR_CLASS) ? Mat5.mxCHAR_CLASS : classID;
+      b.putInt(Mat5.miUINT32).putInt(8);
+      b.putInt(cls | (complex ? Mat5.FLAG_COMPLEX : 0) | ((classID == MxArrayInfo.LOGICAL_CLASS) ? Mat5.FLAG_LOGICAL : 0)).putInt(0);
+      b.putInt(Mat5.miINT32).putInt(4*dims.length);
+      dimsPos = start + b.position();
+      for (int d : dims) b.putInt((d == UNKNOWN) ? 0 : d);
+      pad(b);
+      if (name.length() <= 4) {
+        b.putInt((name.length() << 16) | Mat5.miINT8);
+        for (int i = 0; i < 4; i++) b.put((byte)((i < name.length()) ? name.charAt(i) : 0));
+      } else {
+        b.putInt(Mat5.miINT8).putInt(name.length());
+        for (int i = 0; i < name.length(); i++) b.put((byte)name.charAt(i));
+        pad(b);
+      }
+      realPos = start + b.position();
+      b.putInt(type).putInt((expected >= 0) ? (int)dataSize(expected) : 0);
+      b.flip();
+      writeFully(channel, b, start);
+      re = new Stream(channel, realPos + 8);
+      if (!complex) {
+        im = null;
+        spool = null;
+      } else if (expected >= 0) {
+        im = new Stream(channel, realPos + 8 + padded(dataSize(expected)) + 8);
+        spool = null;
+      } else {
+        spool = File.createTempFile("jnmatlib", ".imag");
+        spool.deleteOnExit();
+        im = new Stream(new RandomAccessFile(spool, "rw").getChannel(), 0);
+      }
+    }
+
+    /** Returns the name of the variable. */
+    public String getName() { return name; }
+
+    /** Returns the number of values that have been appended so far. */
+    public long getCount() { return count; }
+
+    // real values
+    public void append(double re[]) { append(re, null, 0, re.length); }
+    public void append(double re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(float re[]) { append(re, null, 0, re.length); }
+    public void append(float re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(long re[]) { append(re, null, 0, re.length); }
+    public void append(long re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(int re[]) { append(re, null, 0, re.length); }
+    public void append(int re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(short re[]) { append(re, null, 0, re.length); }
+    public void append(short re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(byte re[]) { append(re, null, 0, re.length); }
+    public void append(byte re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(boolean re[]) { append(re, null, 0, re.length); }
+    public void append(boolean re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(char re[]) { append(re, null, 0, re.length); }
+    public void append(char re[], int offset, int length) { append(re, null, offset, length); }
+    public void append(String str) { append(str.toCharArray(), null, 0, str.length()); }
+
+    // complex values
+    public void append(double re[], double im[]) { append(re, im, 0, re.length); }
+    public void append(double re[], double im[], int offset, int length) { append((Object)re, (Object)im, offset, length); }
+    public void append(float re[], float im[]) { append(re, im, 0, re.length); }
+    public void append(float re[], float im[], int offset, int length) { append((Object)re, (Object)im, offset, length); }
+    public void append(long re[], long im[]) { append(re, im, 0, re.length); }
+    public void append(long re[], long im[], int offset, int length) { append((Object)re, (Object)im, offset, length); }
+    public void append(int re[], int im[]) { append(re, im, 0, re.length); }
+    public void append(int re[], int im[], int offset, int length) { append((Object)re, (Object)im, offset, length); }
+    public void append(short re[], short im[]) { append(re, im, 0, re.length); }
+    public void append(short re[], short im[], int offset, int length) { append((Object)re, (Object)im, offset, length); }
+    public void append(byte re[], byte im[]) { append(re, im, 0, re.length); }
+    public void append(byte re[], byte im[], int offset, int length) { append((Object)re, (Object)im, offset, length); }
+
+    /**
+     * Appends values to the variable.  The values are written to the file as soon as
+     * the internal buffer is full; the arrays can be reused when this method returns.
+     *
+     * @param re array holding the real values
+     * @param im array holding the imaginary values (must be <code>null</code> if and only
+     *   if the variable is not complex)
+     * @param offset index of the first value in the arrays
+     * @param length number of values to append
+     */
+    public void append(Object re, Object im, int offset, int length) {
+      if (finished)
+        throw new MatLibException("variable '" + name + "' has already been finished");
+      if (complex != (im != null))
+        throw new MatLibException("variable '" + name + "' is " + (complex ? "" : "not ") + "complex");
+      if ((re.getClass().getComponentType() != javaType(classID)) || ((im != null) && (im.getClass() != re.getClass())))
+        throw new MatLibException("cannot append " + re.getClass().getComponentType() + " values to " +
+          MxArrayInfo.classnames[classID] + " variable '" + name + "'");
+      if ((offset < 0) || (length < 0) || (offset + length > java.lang.reflect.Array.getLength(re)) ||
+          ((im != null) && (offset + length > java.lang.reflect.Array.getLength(im))))
+        throw new IndexOutOfBoundsException("offset " + offset + " and length " + length + " exceed array length");
+      if (((expected >= 0) && (count + length > expected)) || (dataSize(count + length) > MAX_ELEMENT_SIZE))
+        throw new MatLibException("too many values for variable '" + name + "'");
+      try {
+        this.re.put(re, offset, length);
+        if (im != null) this.im.put(im, offset, length);
+      } catch (IOException e) {
+        throw new MatLibException("error writing variable '" + name + "' to file '" + file + "'", e);
+      }
+      count += length;
+    }
+
+    /**
+     * Completes the variable.  If the last dimension was {@link #UNKNOWN}, it is
+     * set such that the dimensions match the number of values appended, which
+     * must be a multiple of the product of the other dimensions.  Otherwise,
+     * exactly the declared number of values must have been appended.
+     */
+    public void finish() {
+      if (finished) return;
+      finished = true;
+      current = null;
+      try {
+        if (expected >= 0) {
+          if (count != expected)
+            throw new MatLibException("variable '" + name + "' has " + count + " values, but " + expected + " were declared");
+        } else {
+          long n = 1;
+          for (int i = 0; i < dims.length - 1; i++) n *= dims[i];
+          if ((n == 0) ? (count != 0) : ((count % n != 0) || (count/n > Integer.MAX_VALUE)))
+            throw new MatLibException("variable '" + name + "' has " + count + " values, which does not match its dimensions");
+          dims[dims.length - 1] = (n == 0) ? 0 : (int)(count/n);
+          writeInt(dimsPos + 4*(dims.length - 1), dims[dims.length - 1]);
+          writeInt(realPos + 4, (int)dataSize(count));
+        }
+        long end = re.finish();
+        if (complex) {
+          writeInt(end, type);
+          writeInt(end + 4, (int)dataSize(count));
+          end += 8;
+          if (spool == null)
+            end = im.finish();
+          else {
+            im.flush();
+            for (long n = 0, len = dataSize(count); n < len; )
+              n += channel.transferFrom(im.ch, end + n, len - n);
+            end = new Stream(channel, end + dataSize(count)).finish();
+          }
+        }
+        if (end - start - 8 > MAX_ELEMENT_SIZE)
+          throw new MatLibException("variable '" + name + "' is too large for a Level 5 MAT-file");
+        writeInt(start + 4, (int)(end - start - 8));
+        pos = end;
+      } catch (IOException e) {
+        throw new MatLibException("error writing variable '" + name + "' to file '" + file + "'", e);
+      } finally {
+        if (spool != null) {
+          try { im.ch.close(); } catch (IOException e) { /* never mind... */ }
+          spool.delete();
+        }
+      }
+    }
+
+    private long dataSize(long n) { return n*size; }
+
+    private void writeInt(long pos, int value) throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      b.putInt(0, value);
+      writeFully(channel, b, pos);
+    }
+
+  }
+
+  /** Buffered sequential output to a channel, starting at a given position. */
+  private static class Stream {
+    final FileChannel ch;
+    final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    long pos;  // file offset at which the buffer contents go
+
+    Stream(FileChannel ch, long pos) { this.ch = ch; this.pos = pos; }
+
+    /** Copies <code>length</code> values from a primitive array into the buffer. */
+    void put(Object src, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (buf.remaining() < 8) flush();
+        int esize = (src instanceof double[] || src instanceof long[]) ? 8 : (src instanceof float[] || src instanceof int[]) ? 4 :
+          (src instanceof short[] || src instanceof char[]) ? 2 : 1;
+        int n = Math.min(length, buf.remaining()/esize);
+        if (src instanceof double[]) buf.asDoubleBuffer().put((double[])src, offset, n);
+        else if (src instanceof float[]) buf.asFloatBuffer().put((float[])src, offset, n);
+        else if (src instanceof long[]) buf.asLongBuffer().put((long[])src, offset, n);
+        else if (src instanceof int[]) buf.asIntBuffer().put((int[])src, offset, n);
+        else if (src instanceof short[]) buf.asShortBuffer().put((short[])src, offset, n);
+        else if (src instanceof char[]) buf.asCharBuffer().put((char[])src, offset, n);
+        else if (src instanceof byte[]) buf.duplicate().put((byte[])src, offset, n);
+        else { boolean bb[] = (boolean[])src; for (int i = 0; i < n; i++) buf.put(buf.position() + i, (byte)(bb[offset + i] ? 1 : 0)); }
+        buf.position(buf.position() + n*esize);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    void flush() throws IOException {
+      buf.flip();
+      long p = pos;
+      pos += buf.remaining();
+      writeFully(ch, buf, p);
+      buf.clear();
+    }
+
+    /** Pads the data to a multiple of 8 bytes, flushes, and returns the file offset of the end. */
+    long finish() throws IOException {
+      while ((pos + buf.position()) % 8 != 0) buf.put((byte)0);
+      flush();
+      return pos;
+    }
+  }
+
+  /** Returns the data type used to store values of the given class. */
+  private static int storageType(int classID) {
+    switch (classID) {
+      case MxArrayInfo.DOUBLE_CLASS: return Mat5.miDOUBLE;
+      case MxArrayInfo.SINGLE_CLASS: return Mat5.miSINGLE;
+      case MxArrayInfo.INT8_CLASS: return Mat5.miINT8;
+      case MxArrayInfo.UINT8_CLASS: return Mat5.miUINT8;
+      case MxArrayInfo.INT16_CLASS: return Mat5.miINT16;
+      case MxArrayInfo.UINT16_CLASS: return Mat5.miUINT16;
+      case MxArrayInfo.INT32_CLASS: return Mat5.miINT32;
+      case MxArrayInfo.UINT32_CLASS: return Mat5.miUINT32;
+      case MxArrayInfo.INT64_CLASS: return Mat5.miINT64;
+      case MxArrayInfo.UINT64_CLASS: return Mat5.miUINT64;
+      case MxArrayInfo.LOGICAL_CLASS: return Mat5.miUINT8;
+      case MxArrayInfo.CHAR_CLASS: return Mat5.miUINT16;
+      default: throw new IllegalArgumentException("class " + classID + " is not supported by Mat5Writer");
+    }
+  }
+
+  /** Returns the Java type of values that can be appended to variables of the given class. */
+  private static Class<?> javaType(int classID) {
+    switch (classID) {
+      case MxArrayInfo.DOUBLE_CLASS: return Double.TYPE;
+      case MxArrayInfo.SINGLE_CLASS: return Float.TYPE;
+      case MxArrayInfo.INT8_CLASS: case MxArrayInfo.UINT8_CLASS: return Byte.TYPE;
+      case MxArrayInfo.INT16_CLASS: case MxArrayInfo.UINT16_CLASS: return Short.TYPE;
+      case MxArrayInfo.INT32_CLASS: case MxArrayInfo.UINT32_CLASS: return Integer.TYPE;
+      case MxArrayInfo.INT64_CLASS: case MxArrayInfo.UINT64_CLASS: return Long.TYPE;
+      case MxArrayInfo.LOGICAL_CLASS: return Boolean.TYPE;
+      case MxArrayInfo.CHAR_CLASS: return Character.TYPE;
+      default: return null;
+    }
+  }
+
+  /** Pads the buffer with zeros to a multiple of 8 bytes. */
+  private static void pad(ByteBuffer b) {
+    while (b.position() % 8 != 0) b.put((byte)0);
+  }
+
+  /** Rounds up to a multiple of 8. */
+  private static long padded(long n) { return (n + 7) & ~7L; }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+import com.sun.jna.*;
+
+/**
+ * Maps MATLAB structs and struct arrays to Java objects and back.  The Java fields
+ * that correspond to struct fields are marked with {@link MatField}:
+ * <pre>
+ * class Node {
+ *   &#64;MatField("id") long id;
+ *   &#64;MatField("pos") double coords[];
+ *   &#64;MatField String label;
+ * }
+ * List&lt;Node&gt; nodes = MatBinder.readList(mf.readVariable("nodes"), Node.class);
+ * MxArray pm = MatBinder.writeList(nodes, Node.class);
+ * </pre>
+ * Classes need a constructor without arguments (of any visibility), and the
+ * annotated fields must not be final.  Records are created through their canonical
+ * constructor, with components that are not annotated set to zero or <code>null</code>.
+ * <p>
+ * The following field types are supported: <code>double</code>, <code>float</code>,
+ * <code>long</code>, <code>int</code>, <code>short</code>, <code>byte</code> and
+ * <code>boolean</code> (read from scalars, converted as by a Java cast); <code>String</code>
+ * (char arrays); 1-D arrays of these primitive types (any numeric or logical array, read
+ * in column-major order); <code>double[][]</code> and <code>float[][]</code> (matrices);
+ * {@link MxArray} (a copy of the field's value); other classes with annotated fields
+ * (scalar structs); and <code>List</code>s of such classes (struct arrays).
+ * <p>
+ * The binding of each class is worked out once, with method handles for the field
+ * accesses, and then cached.  When reading a struct array, the values of each field
+ * are looked up for all elements with {@link MxArray#getFieldColumn}; converting a
+ * scalar value still takes a few calls into libmx per element.  Struct fields that
+ * have no matching Java field are ignored, and Java fields that have no matching
+ * struct field keep their default values.
+ *
+ * @see MatField
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public final class MatBinder {
+  
+  private MatBinder() { }
+  
+  // kinds of bindings; the primitive kinds come first
+  private static final int DOUBLE = 0, FLOAT = 1, LONG = 2, INT = 3, SHORT = 4, BYTE = 5, BOOLEAN = 6;
+  private static final int STRING = 7, DOUBLES = 8, FLOATS = 9, LONGS = 10, INTS = 11, SHORTS = 12,
+    BYTES = 13, BOOLEANS = 14, DOUBLE_MATRIX = 15, FLOAT_MATRIX = 16, ARRAY = 17, STRUCT = 18, LIST = 19;
+  /** Field types of the kinds up to <code>ARRAY</code>, indexed by kind. */
+  private static final Class<?> kindTypes[] = {
+    Double.TYPE, Float.TYPE, Long.TYPE, Integer.TYPE, Short.TYPE, Byte.TYPE, Boolean.TYPE,
+    String.class, double[].class, float[].class, long[].class, int[].class, short[].class,
+    byte[].class, boolean[].class, double[][].class, float[][].class, MxArray.class
+  };
+  
+  /** A Java field bound to a struct field. */
+  private static final class Binding {
+    final String name;  // name of the struct field
+    final Field field;
+    final int kind;
+    final Class<?> type;  // class of the struct (STRUCT) or of the list elements (LIST)
+    final MethodHandle getter;  // (Object)T, with T primitive for primitive kinds and Object otherwise
+    final MethodHandle setter;  // (Object,T)void
+    
+    Binding(String name, Field field, int kind, Class<?> type, MethodHandle getter, MethodHandle setter) {
+      this.name = name; this.field = field; this.kind = kind; this.type = type; this.getter = getter; this.setter = setter;
+    }
+  }
+  
+  /** How to create and fill the objects of one class. */
+  private static final class Plan {
+    final Class<?> type;
+    final Binding bindings[];
+    final String names[];  // struct field names, in the order of bindings
+    final MethodHandle constructor;  // ()Object for classes, (Object[])Object for records
+    final Object defaults[];  // default constructor arguments for records, null for classes
+    
+    Plan(Class<?> type) {
+      this.type = type;
+      if (type.isPrimitive() || type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+        throw new MatLibException("cannot bind to " + type.getName() + ": not a concrete class");
+      boolean record = (type.getSuperclass() != null) && type.getSuperclass().getName().equals("java.lang.Record");
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      List<Field> fields = new ArrayList<Field>();
+      List<Field> components = new ArrayList<Field>();
+      List<Binding> list = new ArrayList<Binding>();
+      Set<String> seen = new HashSet<String>();
+      try {
+        if (record) {
+          components = recordComponents(type);
+          fields.addAll(components);
+        } else {
+          for (Class<?> c = type; c != Object.class; c = c.getSuperclass())
+            fields.addAll(0, Arrays.asList(c.getDeclaredFields()));
+        }
+        if (record) {
+          Class<?> argTypes[] = new Class<?>[components.size()];
+          defaults = new Object[argTypes.length];
+          for (int i = 0; i < argTypes.length; i++) {
+            argTypes[i] = components.get(i).getType();
+            defaults[i] = argTypes[i].isPrimitive() ? Array.get(Array.newInstance(argTypes[i], 1), 0) : null;
+          }
+          Constructor<?> c = type.getDeclaredConstructor(argTypes);
+          c.setAccessible(true);
+          constructor = lookup.unreflectConstructor(c).asSpreader(Object[].class, argTypes.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
+        } else {
+          Constructor<?> c = type.getDeclaredConstructor();
+          c.setAccessible(true);
+          constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+          defaults = null;
+        }
+        for (Field f : fields) {
+          MatField a = f.getAnnotation(MatField.class);
+          if (a == null) continue;
+          String name = a.value().isEmpty() ? f.getName() : a.value();
+          if (Modifier.isStatic(f.getModifiers()))
+            throw new MatLibException("cannot bind static field " + f);
+          if (Modifier.isFinal(f.getModifiers()) && !record)
+            throw new MatLibException("cannot bind final field " + f);
+          if (!seen.add(name))
+            throw new MatLibException("struct field '" + name + "' is bound twice in " + type.getName());
+          int kind = kindOf(f);
+          Class<?> t = (kind == LIST) ? listElementType(f) : f.getType();
+          Class<?> value = (kind <= BOOLEAN) ? f.getType() : Object.class;
+          f.setAccessible(true);
+          MethodHandle getter = lookup.unreflectGetter(f).asType(MethodType.methodType(value, Object.class));
+          MethodHandle setter;
+          if (record)  // records are filled through an Object[] of constructor arguments
+            setter = MethodHandles.insertArguments(MethodHandles.arrayElementSetter(Object[].class), 1, components.indexOf(f));
+          else
+            setter = lookup.unreflectSetter(f);
+          setter = setter.asType(MethodType.methodType(Void.TYPE, Object.class, value));
+          list.add(new Binding(name, f, kind, t, getter, setter));
+        }
+      } catch (ReflectiveOperationException e) {
+        throw new MatLibException("cannot bind to " + type.getName() + ": " + e.getMessage(), e);
+      } catch (SecurityException e) {
+        throw new MatLibException("cannot bind to " + type.getName() + ": " + e.getMessage(), e);
+      }
+      if (list.isEmpty())
+        throw new MatLibException("class " + type.getName() + " has no fields annotated with @MatField");
+      bindings = list.toArray(new Binding[list.size()]);
+      names = new String[bindings.length];
+      for (int i = 0; i < names.length; i++)
+        names[i] = bindings[i].name;
+    }
+    
+    /**
+     * Returns the fields of a record's components, in the order of the canonical
+     * constructor's parameters.  <code>Class.getRecordComponents()</code> is called
+     * reflectively because this class is compiled for Java versions without records.
+     */
+    private static List<Field> recordComponents(Class<?> type) throws ReflectiveOperationException {
+      Object rc[] = (Object[])Class.class.getMethod("getRecordComponents").invoke(type);
+      Method getName = Class.forName("java.lang.reflect.RecordComponent").getMethod("getName");
+      List<Field> res = new ArrayList<Field>(rc.length);
+      for (Object c : rc)
+        res.add(type.getDeclaredField((String)getName.invoke(c)));
+      return res;
+    }
+    
+    boolean isRecord() { return defaults != null; }
+    
+    /** Returns a new object for a class, or the constructor arguments for a record. */
+    Object newTarget() throws Throwable {
+      return isRecord() ? defaults.clone() : (Object)constructor.invokeExact();
+    }
+    
+    /** Returns the object for a target created by {@link #newTarget}. */
+    Object finish(Object target) throws Throwable {
+      return isRecord() ? (Object)constructor.invokeExact((Object[])target) : target;
+    }
+  }
+  
+  private static final ClassValue<Plan> plans = new ClassValue<Plan>() {
+    protected Plan computeValue(Class<?> type) { return new Plan(type); }
+  };
+  
+  /**
+   * Reads a scalar struct into a new object.
+   *
+   * @param pm a 1x1 struct array
+   * @param type class or record with fields annotated by {@link MatField}
+   * @return the new object
+   * @throws MatLibException if <code>pm</code> is not a scalar struct, or if <code>type</code> cannot be bound
+   */
+  public static <T> T read(MxArray pm, Class<T> type) {
+    if (pm.getNumberOfElements() != 1)
+      throw new MatLibException("expected a scalar struct, got " + pm.getNumberOfElements() + " elements");
+    return readList(pm, type).get(0);
+  }
+  
+  /**
+   * Reads each element of a struct array into a new object.
+   *
+   * @param pm a struct array
+   * @param type class or record with fields annotated by {@link MatField}
+   * @return the new objects, in column-major order
+   * @throws MatLibException if <code>pm</code> is not a struct array, or if <code>type</code> cannot be bound
+   */
+  public static <T> List<T> readList(MxArray pm, Class<T> type) {
+    if (!pm.isStruct())
+      throw new MatLibException("not a struct array (class " + pm.getClassName() + ")");
+    Plan plan = plans.get(type);
+    int n = (int)pm.getNumberOfElements();
+    if (n < 0)
+      throw new MatLibException("number of elements is too large: " + pm.getNumberOfElements());
+    try {
+      Object targets[] = new Object[n];
+      for (int i = 0; i < n; i++)
+        targets[i] = plan.newTarget();
+      for (Binding b : plan.bindings) {
+        if (pm.getFieldIndex(b.name) < 0) continue;  // keep the defaults
+        readColumn(b, pm.getFieldColumn(pm.fieldHandle(b.name)), targets);
+      }
+      List<T> res = new ArrayList<T>(n);
+      for (Object t : targets)
+        res.add(type.cast(plan.finish(t)));
+      return res;
+    } catch (Throwable t) {
+      throw rethrow(t, "cannot read struct into " + type.getName());
+    }
+  }
+  
+  /** Converts the field values of all elements and stores them into the targets. */
+  private static void readColumn(Binding b, MxArray col[], Object targets[]) throws Throwable {
+    for (int i = 0; i < col.length; i++) {
+      MxArray pm = col[i];
+      switch (b.kind) {
+        case DOUBLE: b.setter.invokeExact(targets[i], scalar(pm)); break;
+        case FLOAT: b.setter.invokeExact(targets[i], (float)scalar(pm)); break;
+        // not through mxGetScalar, which would round large values
+        case LONG: b.setter.invokeExact(targets[i], isEmpty(pm) ? 0L : pm.getLong(0)); break;
+        case INT: b.setter.invokeExact(targets[i], (int)scalar(pm)); break;
+        case SHORT: b.setter.invokeExact(targets[i], (short)scalar(pm)); break;
+        case BYTE: b.setter.invokeExact(targets[i], (byte)scalar(pm)); break;
+        case BOOLEAN: b.setter.invokeExact(targets[i], scalar(pm) != 0); break;
+        default:
+          if (pm != null)
+            b.setter.invokeExact(targets[i], toJava(b, pm));
+      }
+    }
+  }
+  
+  private static boolean isEmpty(MxArray pm) {
+    return (pm == null) || MxLibrary.mxIsEmpty(pm);
+  }
+  
+  /** Returns the (first) value of a numeric, logical or char array, or 0 if it is empty. */
+  private static double scalar(MxArray pm) {
+    return isEmpty(pm) ? 0 : MxLibrary.mxGetScalar(pm);
+  }
+  
+  /** Converts a field value for a binding of a non-primitive kind. */
+  private static Object toJava(Binding b, MxArray pm) {
+    switch (b.kind) {
+      case STRING:
+        if (!pm.isChar())
+          throw new MatLibException("field '" + b.name + "' is not a char array");
+        return pm.arrayToString();
+      case DOUBLES: return pm.doubleValues();
+      case FLOATS: return pm.floatValues();
+      case LONGS: return pm.longValues();
+      case INTS: return pm.intValues();
+      case SHORTS: return pm.shortValues();
+      case BYTES: return pm.byteValues();
+      case BOOLEANS: return pm.booleanValues();
+      case DOUBLE_MATRIX:
+        if (!pm.isDouble())
+          throw new MatLibException("field '" + b.name + "' is not a double matrix");
+        return pm.getDataAsMatrix();
+      case FLOAT_MATRIX: return pm.floatMatrix();
+      case ARRAY: return MxArrayInfo.own(MxLibrary.mxDuplicateArray(pm));
+      case STRUCT: return isEmpty(pm) ? null : read(pm, b.type);
+      case LIST: return isEmpty(pm) ? new ArrayList<Object>() : readList(pm, b.type);
+      default: throw new AssertionError(b.kind);
+    }
+  }
+  
+  /**
+   * Creates a 1x1 struct from an object.
+   *
+   * @param obj object of a class or record with fields annotated by {@link MatField}
+   * @return the new struct, owned by the returned object
+   * @throws MatLibException if the class of <code>obj</code> cannot be bound
+   */
+  public static MxArray write(Object obj) {
+    return writeAll(Collections.singletonList(obj), obj.getClass());
+  }
+  
+  /**
+   * Creates a 1xN struct array from a list of objects.  Elements that are
+   * <code>null</code> become structs with empty fields, as do fields whose value
+   * is <code>null</code>.
+   *
+   * @param objs the objects
+   * @param type class or record with fields annotated by {@link MatField}
+   * @return the new struct array, owned by the returned object
+   * @throws MatLibException if <code>type</code> cannot be bound
+   */
+  public static <T> MxArray writeList(List<? extends T> objs, Class<T> type) {
+    return writeAll(objs, type);
+  }
+  
+  private static MxArray writeAll(List<?> objs, Class<?> type) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    Plan plan = plans.get(type);
+    MxArray res = MxLibrary.mxCreateStructMatrix(new NativeLong(1), new NativeLong(objs.size()), plan.names.length, new StringArray(plan.names));
+    if (res == null)
+      throw new MatLibException("mxCreateStructMatrix returned null");
+    try {
+      NativeLong index = new NativeLong();
+      for (int i = 0; i < objs.size(); i++) {
+        Object obj = objs.get(i);
+        if (obj == null) continue;
+        index.setValue(i);
+        for (int f = 0; f < plan.bindings.length; f++) {
+          MxArray value = toMatlab(plan.bindings[f], type.cast(obj));
+          if (value != null)  // the struct takes ownership of the value
+            MxLibrary.mxSetFieldByNumber(res, index, f, value);
+        }
+      }
+    } catch (Throwable t) {
+      MxLibrary.mxDestroyArray(res);
+      throw rethrow(t, "cannot write " + type.getName() + " to struct");
+    }
+    return MxArrayInfo.own(res);
+  }
+  
+  /** Converts the value of a bound field to a new array that is not owned by a Java object. */
+  private static MxArray toMatlab(Binding b, Object obj) throws Throwable {
+    switch (b.kind) {
+      case DOUBLE: return MxLibrary.mxCreateDoubleScalar((double)b.getter.invokeExact(obj));
+      case FLOAT: return unowned(MxArray.of(new float[] { (float)b.getter.invokeExact(obj) }, 1, 1));
+      case LONG: return unowned(MxArray.of(new long[] { (long)b.getter.invokeExact(obj) }, 1, 1));
+      case INT: return unowned(MxArray.of(new int[] { (int)b.getter.invokeExact(obj) }, 1, 1));
+      case SHORT: return unowned(MxArray.of(new short[] { (short)b.getter.invokeExact(obj) }, 1, 1));
+      case BYTE: return unowned(MxArray.of(new byte[] { (byte)b.getter.invokeExact(obj) }, 1, 1));
+      case BOOLEAN: return unowned(MxArray.of(new boolean[] { (boolean)b.getter.invokeExact(obj) }, 1, 1));
+    }
+    Object v = (Object)b.getter.invokeExact(obj);
+    if (v == null) return null;
+    switch (b.kind) {
+      case STRING: return unowned(MxArray.of((String)v));
+      case DOUBLES: return unowned(MxArray.of((double[])v));
+      case FLOATS: return unowned(MxArray.of((float[])v));
+      case LONGS: return unowned(MxArray.of((long[])v));
+      case INTS: return unowned(MxArray.of((int[])v));
+      case SHORTS: return unowned(MxArray.of((short[])v));
+      case BYTES: return unowned(MxArray.of((byte[])v));
+      case BOOLEANS: return unowned(MxArray.of((boolean[])v));
+      case DOUBLE_MATRIX: return unowned(MxArray.of((double[][])v));
+      case FLOAT_MATRIX: return unowned(MxArray.of((float[][])v));
+      case ARRAY: return MxLibrary.mxDuplicateArray((MxArray)v);
+      case STRUCT: return unowned(writeAll(Collections.singletonList(v), b.type));
+      case LIST: return unowned(writeAll((List<?>)v, b.type));
+      default: throw new AssertionError(b.kind);
+    }
+  }
+  
+  private static MxArray unowned(MxArray pm) {
+    pm.disown();
+    return pm;
+  }
+  
+  /** Rethrows unchecked exceptions and wraps checked ones. */
+  private static RuntimeException rethrow(Throwable t, String message) {
+    if (t instanceof RuntimeException) throw (RuntimeException)t;
+    if (t instanceof Error) throw (Error)t;
+    return new MatLibException(message, t);
+  }
+  
+  private static int kindOf(Field f) {
+    Class<?> t = f.getType();
+    for (int k = 0; k < kindTypes.length; k++)
+      if (t == kindTypes[k])
+        return k;
+    if (t == List.class) return LIST;
+    if (t.isPrimitive() || t.isArray() || t.isInterface() || t.getName().startsWith("java."))
+      throw new MatLibException("cannot bind field " + f + ": unsupported type " + t.getName());
+    return STRUCT;
+  }
+  
+  private static Class<?> listElementType(Field f) {
+    java.lang.reflect.Type t = f.getGenericType();
+    if (t instanceof ParameterizedType) {
+      java.lang.reflect.Type e = ((ParameterizedType)t).getActualTypeArguments()[0];
+      if (e instanceof Class) return (Class<?>)e;
+    }
+    throw new MatLibException("cannot bind field " + f + ": list element type must be a class");
+  }
+  
+}
@@ -20,6 +20,7 @@
 
 package edu.northwestern.rocs.jnmatlib;
 import java.io.*;
+import java.util.*;
 import com.sun.jna.*;
 import com.sun.jna.ptr.*;
 
@@ -37,7 +38,7 @@ import com.sun.jna.ptr.*;
  * @author Christian Thiemann
  * @version 1.0
  */
-public class MatFile extends PointerType {
+public class MatFile extends PointerType implements AutoCloseable {
   
   /** Open file for reading only */
   public static final String MODE_READ = "r";
@@ -48,6 +49,13 @@ public class MatFile extends PointerType {
   /** Create file in HDF5-based format, capable of string objects larger than 2GB */
   public static final String MODE_WRITE73 = "w7.3";
   
+  /** Cached result of <code>matGetDir</code>, or <code>null</code> if not yet known. */
+  private Set<String> names;
+  /** Name of the file, or <code>null</code> if this object was created from a pointer. */
+  private String filename;
+  /** Closes the file if this object is not closed explicitly. */
+  private NativeCleaner.Cleanable cleanable;
+  
   public MatFile() { super(); }
   public MatFile(Pointer p) { super(p); }  
   
@@ -95,7 +103,11 @@ public class MatFile extends PointerType {
     MatFile mf = MatLibrary.matOpen(filename, mode);
     if (mf == null)
       throw new MatLibException("matOpen returned null for file '" + filename + "' with mode '" + mode + "'");
-    setPointer(mf.getPointer());
+    final Pointer p = mf.getPointer();
+    setPointer(p);
+    this.filename = filename;
+    cleanable = NativeCleaner.register(this, new Runnable() {
+      public void run() { MatLibrary.matClose(new MatFile(p)); } });
   }
   
   /**
@@ -105,15 +117,33 @@ public class MatFile extends PointerType {
    * @see #getVariableNames
    */
   public int getVariableCount() {
-    return getVariableNames().length;
+    return getNames().size();
   }
 
   /**
-   * Lists the names of all variables in this MAT-file.
+   * Lists the names of all variables in this MAT-file.  The list is obtained from
+   * <code>libmat</code> only once and is updated when variables are written or deleted
+   * through this object.
    *
    * @return the variable names, or an empty array if the file is empty
    */
   public String[] getVariableNames() {
+    return getNames().toArray(new String[0]);
+  }
+  
+  /**
+   * Checks whether a variable exists in this MAT-file.
+   *
+   * @param name name of the variable
+   * @return <code>true</code> if there is a variable with this name
+   */
+  public boolean hasVariable(String name) {
+    return getNames().contains(name);
+  }
+  
+  private Set<String> getNames() {
+    if (names != null)
+      return names;
     if (!MatLibrary.isLoaded())
       throw new MatLibException("MatLibrary (libmat) not loaded", MatLibrary.getError());
     IntByReference num = new IntByReference(0);
@@ -121,10 +151,14 @@ public class MatFile extends PointerType {
     if (num.getValue() < 0)
       throw new MatLibException("matGetDir reported " + num.getValue() + " variables");
     if (num.getValue() == 0)
-      return new String[0];
+      return names = new LinkedHashSet<String>();
     if (p == null)
       throw new MatLibException("matGetDir reported " + num.getValue() + " variables, but returned a null pointer");
-    return p.getStringArray(0, num.getValue());
+    try {
+      return names = new LinkedHashSet<String>(Arrays.asList(p.getStringArray(0, num.getValue())));
+    } finally {
+      MxLibrary.mxFree(p);  // the pointer array and the strings are one block
+    }
   }
   
   /**
@@ -138,7 +172,104 @@ public class MatFile extends PointerType {
     MxArrayInfo res = MatLibrary.matGetVariableInfo(this, name);
     if (res == null)
       throw new MatLibException("matGetVariableInfo returned null; maybe '" + name + "' is not a variable?");
-    return res;
+    return MxArrayInfo.own(res);
+  }
+  
+  /**
+   * Returns an iterator that reads all variables of the MAT-file in the order in
+   * which they are stored, using {@link MatLibrary#matGetNextVariable}.  This reads
+   * the file once from front to back, which is much faster than calling
+   * {@link #readVariable} for each name if there are many variables.  Variables can
+   * be skipped with {@link VariableIterator#skip}, which only reads their metadata.
+   * <p>
+   * The iterator opens the file a second time, so that other methods of this object
+   * can be used during the iteration.  (If this object was not opened by name,
+   * the iterator uses this object's file handle, which must not be used otherwise
+   * until the iteration is complete.)  The second handle is closed when the
+   * iteration is complete or when {@link VariableIterator#close} is called.
+   *
+   * @return iterator over (name, variable) pairs
+   */
+  public VariableIterator<MxArray> variables() {
+    return new VariableIterator<MxArray>(false);
+  }
+  
+  /**
+   * Returns an iterator over the metadata of all variables of the MAT-file, in the
+   * order in which they are stored, using {@link MatLibrary#matGetNextVariableInfo}.
+   *
+   * @return iterator over (name, metadata) pairs
+   * @see #variables
+   */
+  public VariableIterator<MxArrayInfo> variableInfos() {
+    return new VariableIterator<MxArrayInfo>(true);
+  }
+  
+  /**
+   * Sequential iterator over the variables in a MAT-file.
+   *
+   * @see MatFile#variables
+   * @see MatFile#variableInfos
+   */
+  public class VariableIterator<T extends MxArrayInfo> implements Iterator<Map.Entry<String, T>> {
+    
+    private final boolean infoOnly;
+    private final int count;
+    private MatFile mf;
+    private int index;
+    
+    VariableIterator(boolean infoOnly) {
+      this.infoOnly = infoOnly;
+      count = getVariableCount();
+      if (filename == null)
+        mf = MatFile.this;
+      else if (count > 0)
+        mf = new MatFile(filename, MODE_READ);
+    }
+    
+    public boolean hasNext() { return index < count; }
+    
+    /** Reads the next variable (or its metadata, for {@link MatFile#variableInfos}). */
+    @SuppressWarnings("unchecked")
+    public Map.Entry<String, T> next() {
+      return (Map.Entry<String, T>)read(infoOnly);
+    }
+    
+    /**
+     * Skips the next variable, reading only its metadata.
+     *
+     * @return the name of the skipped variable
+     */
+    public String skip() {
+      return read(true).getKey();
+    }
+    
+    private Map.Entry<String, ? extends MxArrayInfo> read(boolean info) {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      if (!MatLibrary.isLoaded())
+        throw new MatLibException("MatLibrary (libmat) not loaded", MatLibrary.getError());
+      PointerByReference name = new PointerByReference();
+      MxArray res = info ? MatLibrary.matGetNextVariableInfo(mf, name) : MatLibrary.matGetNextVariable(mf, name);
+      if ((res == null) || (name.getValue() == null)) {
+        close();
+        throw new MatLibException("matGetNextVariable" + (info ? "Info" : "") + " returned null for variable " + (index + 1) + " of " + count);
+      }
+      String n = name.getValue().getString(0);
+      if (++index == count) close();
+      return new AbstractMap.SimpleImmutableEntry<String, MxArrayInfo>(n, MxArrayInfo.own(res));
+    }
+    
+    /** Not supported. */
+    public void remove() { throw new UnsupportedOperationException(); }
+    
+    /** Ends the iteration and closes the file handle used by the iterator. */
+    public void close() {
+      index = count;
+      if ((mf != null) && (mf != MatFile.this)) mf.close();
+      mf = null;
+    }
+    
   }
   
   /**
@@ -153,7 +284,7 @@ public class MatFile extends PointerType {
     MxArray res = MatLibrary.matGetVariable(this, name);
     if (res == null)
       throw new MatLibException("matGetVariable returned null; maybe '" + name + "' is not a variable?");
-    return res;
+    return MxArrayInfo.own(res);
   }
   
   /**
@@ -177,6 +308,7 @@ public class MatFile extends PointerType {
   public void writeVariable(String name, MxArray pm, boolean asGlobal) {
     if (!MatLibrary.isLoaded())
       throw new MatLibException("MatLibrary (libmat) not loaded", MatLibrary.getError());
+    names = null;
     if ((asGlobal ? MatLibrary.matPutVariableAsGlobal(this, name, pm) : MatLibrary.matPutVariable(this, name, pm)) != 0)
       throw new MatLibException("matPutVariable return non-zero value (name = \"" + name + "\")");
   }
@@ -189,20 +321,23 @@ public class MatFile extends PointerType {
   public void deleteVariable(String name) {
     if (!MatLibrary.isLoaded())
       throw new MatLibException("MatLibrary (libmat) not loaded", MatLibrary.getError());
+    names = null;
     if (MatLibrary.matDeleteVariable(this, name) != 0)
       throw new MatLibException("matDeleteVariable returned non-zero value (name = \"" + name + "\")");
   }
   
   /**
-   * Closes the MAT-file.
+   * Closes the MAT-file.  Calling this method more than once has no effect.
+   * Files that are not closed explicitly are closed when this object becomes
+   * unreachable.
    */
   public void close() {
-    if (MatLibrary.matClose(this) != 0)
+    if (getPointer() == null) return;  // already closed
+    if (cleanable != null) cleanable.cancel();
+    int res = MatLibrary.matClose(this);
+    setPointer(null);
+    if (res != 0)
       throw new MatLibException("matClose returned non-zero value");
   }
   
-  public void finalize() {
-    try { close(); super.finalize(); } catch (Throwable t) { /* never mind... */ }
-  }
-  
 }
\ No newline at end of file
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A pool of independent read-only handles on the same MAT-file.  A {@link MatFile}
+ * must not be used by more than one thread at a time, so threads that want to read
+ * variables concurrently {@link #acquire} a handle of their own and {@link #release}
+ * it when done.  {@link #readVariables(Collection)} does this for a whole list of
+ * variables, reading them with as many threads as the pool has handles.
+ * <p>
+ * Handles are opened when needed, up to the maximum pool size, and are closed after
+ * they have not been used for the idle timeout.  Closing the pool closes all idle
+ * handles; handles that are still leased are closed when they are released.
+ *
+ * @see MatFile
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class MatFilePool implements AutoCloseable {
+  
+  /** Default idle timeout in seconds. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 60;
+  
+  /** Closes idle handles of all pools. */
+  private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "JNMatLib MatFilePool Reaper");
+      t.setDaemon(true);
+      return t;
+    } });
+  
+  /** An idle handle and the time at which it was released. */
+  private static class Idle {
+    final MatFile mf;
+    final long since;
+    Idle(MatFile mf, long since) { this.mf = mf; this.since = since; }
+  }
+  
+  private final String filename;
+  private final int maxHandles;
+  private final long idleTimeout;  // in nanoseconds, or 0 for never
+  private final Semaphore permits;
+  /** Idle handles, most recently released first. */
+  private final Deque<Idle> idle = new ArrayDeque<Idle>();
+  /** Handles that are currently leased. */
+  private final Set<MatFile> leased = Collections.newSetFromMap(new IdentityHashMap<MatFile, Boolean>());
+  private final ScheduledFuture<?> reaping;
+  private volatile boolean closed = false;
+  /** Threads used by {@link #readVariables(Collection)}, created when first needed. */
+  private ThreadPoolExecutor workers = null;
+  
+  /**
+   * Creates a pool with one handle per available processor and the default idle timeout.
+   *
+   * @param filename name of the MAT-file
+   */
+  public MatFilePool(String filename) {
+    this(filename, Runtime.getRuntime().availableProcessors(), DEFAULT_IDLE_TIMEOUT, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Creates a pool with at most <code>maxHandles</code> handles and the default idle timeout.
+   *
+   * @param filename name of the MAT-file
+   * @param maxHandles maximum number of handles that are open at the same time
+   */
+  public MatFilePool(String filename, int maxHandles) {
+    this(filename, maxHandles, DEFAULT_IDLE_TIMEOUT, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Creates a pool with at most <code>maxHandles</code> handles.
+   *
+   * @param file path to the MAT-file
+   * @param maxHandles maximum number of handles that are open at the same time
+   * @param idleTimeout time after which unused handles are closed, or 0 to keep them open
+   * @param unit unit of <code>idleTimeout</code>
+   */
+  public MatFilePool(File file, int maxHandles, long idleTimeout, TimeUnit unit) {
+    this(file.getAbsolutePath(), maxHandles, idleTimeout, unit);
+  }
+  
+  /**
+   * Creates a pool with at most <code>maxHandles</code> handles.  One handle is
+   * opened immediately, so that an unreadable file is reported here.
+   *
+   * @param filename name of the MAT-file
+   * @param maxHandles maximum number of handles that are open at the same time
+   * @param idleTimeout time after which unused handles are closed, or 0 to keep them open
+   * @param unit unit of <code>idleTimeout</code>
+   */
+  public MatFilePool(String filename, int maxHandles, long idleTimeout, TimeUnit unit) {
+    if (filename == null)
+      throw new NullPointerException("filename cannot be null");
+    if (maxHandles < 1)
+      throw new IllegalArgumentException("maxHandles must be positive: " + maxHandles);
+    if (idleTimeout < 0)
+      throw new IllegalArgumentException("idleTimeout must be non-negative: " + idleTimeout);
+    this.filename = filename;
+    this.maxHandles = maxHandles;
+    this.idleTimeout = unit.toNanos(idleTimeout);
+    permits = new Semaphore(maxHandles, true);
+    idle.push(new Idle(new MatFile(filename, MatFile.MODE_READ), System.nanoTime()));
+    if (this.idleTimeout > 0) {
+      long period = Math.max(this.idleTimeout/2, TimeUnit.MILLISECONDS.toNanos(100));
+      reaping = reaper.scheduleWithFixedDelay(new Runnable() {
+        public void run() { closeIdle(); } }, period, period, TimeUnit.NANOSECONDS);
+    } else
+      reaping = null;
+  }
+  
+  /** Returns the name of the MAT-file. */
+  public String getFilename() { return filename; }
+  
+  /** Returns the maximum number of handles that are open at the same time. */
+  public int getMaxHandles() { return maxHandles; }
+  
+  /** Returns the number of handles that are currently open, whether leased or idle. */
+  public synchronized int getOpenHandles() { return idle.size() + leased.size(); }
+  
+  /**
+   * Leases a handle to the calling thread, waiting until one is available.
+   * The handle must be returned with {@link #release} and must not be closed
+   * or used by other threads in the meantime.
+   *
+   * @return an open read-only handle on the file
+   * @throws MatLibException if the pool is closed, the file cannot be opened, or the thread is interrupted
+   */
+  public MatFile acquire() {
+    checkOpen();
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MatLibException("interrupted while waiting for a handle on file '" + filename + "'", e);
+    }
+    MatFile mf = null;
+    try {
+      synchronized (this) {
+        checkOpen();
+        Idle h = idle.poll();
+        if (h != null) {
+          mf = h.mf;
+          leased.add(mf);
+          return mf;
+        }
+      }
+      mf = new MatFile(filename, MatFile.MODE_READ);  // opened outside the lock, this may take a while
+      synchronized (this) {
+        leased.add(mf);
+        if (closed) { leased.remove(mf); mf.close(); checkOpen(); }
+      }
+      return mf;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+  
+  /**
+   * Returns a handle obtained from {@link #acquire} to the pool.  A handle that has
+   * been closed in the meantime is discarded.
+   *
+   * @param mf the handle
+   * @throws IllegalArgumentException if <code>mf</code> is not leased from this pool
+   */
+  public void release(MatFile mf) {
+    synchronized (this) {
+      if (!leased.remove(mf))
+        throw new IllegalArgumentException("handle is not leased from this pool");
+      if (closed)
+        mf.close();
+      else if (mf.getPointer() != null)
+        idle.push(new Idle(mf, System.nanoTime()));
+    }
+    permits.release();
+  }
+  
+  /**
+   * Lists the names of all variables in the MAT-file.
+   *
+   * @see MatFile#getVariableNames
+   */
+  public String[] getVariableNames() {
+    MatFile mf = acquire();
+    try {
+      return mf.getVariableNames();
+    } finally {
+      release(mf);
+    }
+  }
+  
+  /**
+   * Reads a variable from the MAT-file, using any available handle.
+   *
+   * @param name name of the variable
+   * @return the variable
+   * @see MatFile#readVariable
+   */
+  public MxArray readVariable(String name) {
+    MatFile mf = acquire();
+    try {
+      return mf.readVariable(name);
+    } finally {
+      release(mf);
+    }
+  }
+  
+  /**
+   * Reads several variables concurrently, with one thread per handle in the pool.
+   *
+   * @param names names of the variables
+   * @return the variables, in the order of <code>names</code>
+   * @see #readVariables(ExecutorService, Collection)
+   */
+  public Map<String, MxArray> readVariables(Collection<String> names) {
+    return readVariables(getWorkers(), names);
+  }
+  
+  /**
+   * Reads several variables concurrently.  Up to {@link #getMaxHandles} tasks are
+   * submitted to the executor; each leases one handle and reads variables from a
+   * shared queue until all have been read, so the file is never opened more often
+   * than the pool allows.  If any variable cannot be read, the variables that have
+   * already been read are closed and the exception is rethrown.
+   *
+   * @param executor executor that runs the read tasks, or <code>null</code> to read in the calling thread
+   * @param names names of the variables
+   * @return the variables, in the order of <code>names</code>
+   */
+  public Map<String, MxArray> readVariables(ExecutorService executor, Collection<String> names) {
+    Set<String> unique = new LinkedHashSet<String>(names);
+    ReadTask task = new ReadTask(unique);
+    try {
+      if ((executor == null) || (unique.size() < 2))
+        task.call();
+      else {
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+        ExecutionException error = null;
+        try {
+          for (int i = Math.min(maxHandles, unique.size()); i > 0; i--)
+            tasks.add(executor.submit(task));
+        } finally {
+          for (Future<Void> f : tasks)  // wait for all tasks, so that no reads are still running on failure
+            try { f.get(); } catch (ExecutionException e) { if (error == null) error = e; }
+        }
+        if (error != null) throw error;
+      }
+      Map<String, MxArray> res = new LinkedHashMap<String, MxArray>();
+      for (String name : unique)
+        res.put(name, task.read.get(name));
+      return res;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      task.failed.set(true);
+      closeAll(task.read.values());
+      throw new MatLibException("interrupted while reading variables from file '" + filename + "'", e);
+    } catch (ExecutionException e) {
+      closeAll(task.read.values());
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new MatLibException("error reading variables from file '" + filename + "'", e.getCause());
+    } catch (RuntimeException e) {
+      task.failed.set(true);
+      closeAll(task.read.values());
+      throw e;
+    }
+  }
+  
+  /** Leases a handle and reads variables from a shared queue until it is empty or a read has failed. */
+  private class ReadTask implements Callable<Void> {
+    final Queue<String> queue;
+    final Map<String, MxArray> read = new ConcurrentHashMap<String, MxArray>();
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    
+    ReadTask(Collection<String> names) { queue = new ConcurrentLinkedQueue<String>(names); }
+    
+    public Void call() {
+      if (queue.isEmpty() || failed.get()) return null;
+      MatFile mf = acquire();
+      try {
+        for (String name; !failed.get() && ((name = queue.poll()) != null); )
+          read.put(name, mf.readVariable(name));
+      } catch (RuntimeException e) {
+        failed.set(true);
+        throw e;
+      } finally {
+        release(mf);
+      }
+      return null;
+    }
+  }
+  
+  private static void closeAll(Collection<MxArray> arrays) {
+    for (MxArray pm : arrays)
+      pm.close();
+  }
+  
+  private synchronized ExecutorService getWorkers() {
+    checkOpen();
+    if (workers == null) {
+      workers = new ThreadPoolExecutor(maxHandles, maxHandles,
+        (idleTimeout > 0) ? idleTimeout : Long.MAX_VALUE, TimeUnit.NANOSECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private int n = 0;
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JNMatLib MatFilePool " + (++n));
+            t.setDaemon(true);
+            return t;
+          } });
+      workers.allowCoreThreadTimeOut(true);
+    }
+    return workers;
+  }
+  
+  /** Closes the handles that have been idle for longer than the idle timeout. */
+  private void closeIdle() {
+    List<MatFile> expired = new ArrayList<MatFile>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      while (!idle.isEmpty() && (now - idle.peekLast().since > idleTimeout))
+        expired.add(idle.pollLast().mf);
+    }
+    for (MatFile mf : expired)
+      mf.close();
+  }
+  
+  private void checkOpen() {
+    if (closed)
+      throw new MatLibException("pool for file '" + filename + "' is closed");
+  }
+  
+  /**
+   * Closes all idle handles and stops the worker threads.  Leased handles are
+   * closed when they are released.  Calling this method more than once has no effect.
+   */
+  public void close() {
+    List<Idle> toClose;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      toClose = new ArrayList<Idle>(idle);
+      idle.clear();
+      if (workers != null) workers.shutdown();
+    }
+    if (reaping != null) reaping.cancel(false);
+    for (Idle h : toClose)
+      h.mf.close();
+  }
+  
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+import java.util.*;
+
+/**
+ * A scope that destroys all native arrays created or read in it at once.
+ * While an arena is open, every {@link MxArray} or {@link MxArrayInfo} that is
+ * read by {@link MatFile} or created by the <code>MxArray.of</code> factories
+ * in the same thread is added to it, and {@link #close} destroys them all:
+ * <pre>
+ *   try (MxArena arena = new MxArena()) {
+ *     MxArray a = mf.readVariable("a");
+ *     MxArray b = MxArray.of(a.doubleValues(), 2, 2);
+ *     ...
+ *   }  // a and b are destroyed here
+ * </pre>
+ * Arenas can be nested; arrays are added to the innermost open arena.  Use
+ * {@link #detach} to keep an array beyond the arena's lifetime.
+ * <p>
+ * Arrays that are not in an arena are destroyed by {@link MxArrayInfo#close}
+ * or, as a safety net, when they become unreachable.
+ *
+ * @see MxArray
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class MxArena implements AutoCloseable {
+  
+  private static final ThreadLocal<MxArena> current = new ThreadLocal<MxArena>();
+  
+  private final MxArena parent;
+  private final Thread thread;
+  private final List<MxArrayInfo> arrays = new ArrayList<MxArrayInfo>();
+  private volatile boolean closed;
+  
+  /** Opens a new arena, which becomes the current thread's innermost arena. */
+  public MxArena() {
+    parent = current.get();
+    thread = Thread.currentThread();
+    current.set(this);
+  }
+  
+  /** Returns the current thread's innermost open arena, or <code>null</code> if there is none. */
+  public static MxArena current() {
+    MxArena a = current.get();
+    while ((a != null) && a.closed) a = a.parent;  // in case arenas were closed out of order
+    return a;
+  }
+  
+  /**
+   * Adds an array to this arena, so that it is destroyed when the arena is closed.
+   *
+   * @return the array
+   */
+  public synchronized <T extends MxArrayInfo> T add(T pm) {
+    if (closed)
+      throw new IllegalStateException("arena has been closed");
+    arrays.add(pm);
+    return pm;
+  }
+  
+  /**
+   * Removes an array from this arena, so that it survives the arena.  It will then be
+   * destroyed by its {@link MxArrayInfo#close} method or when it becomes unreachable.
+   *
+   * @return the array
+   */
+  public synchronized <T extends MxArrayInfo> T detach(T pm) {
+    for (int i = arrays.size() - 1; i >= 0; i--)
+      if (arrays.get(i) == pm)
+        arrays.remove(i);
+    return pm;
+  }
+  
+  /** Returns the number of arrays in this arena. */
+  public synchronized int size() { return arrays.size(); }
+  
+  /**
+   * Destroys all arrays in this arena, in reverse order of their addition,
+   * and makes the enclosing arena the current one again.
+   */
+  public void close() {
+    List<MxArrayInfo> list;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      list = new ArrayList<MxArrayInfo>(arrays);
+      arrays.clear();
+    }
+    if ((Thread.currentThread() == thread) && (current.get() == this)) {
+      if (parent != null) current.set(parent); else current.remove();
+    }
+    for (int i = list.size() - 1; i >= 0; i--)
+      list.get(i).close();
+  }
+  
+}
@@ -22,6 +22,11 @@ package edu.northwestern.rocs.jnmatlib;
 import com.sun.jna.*;
 import com.sun.jna.ptr.*;
 import java.lang.reflect.Array;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
  
 /**
  * This class is used to manipulate MATLAB variables.
@@ -45,7 +50,308 @@ import java.lang.reflect.Array;
  */
 public class MxArray extends MxArrayInfo {
 
-  // FIXME: implement methods to create new MxArrays and write data to them
+  /**
+   * Creates a new <code>double</code> array from column-major data.
+   * If no dimensions are given, a column vector is created.
+   *
+   * @param data the values, in MATLAB's column-major order
+   * @param dims the dimensions of the new array; their product must equal <code>data.length</code>
+   * @return the new array
+   * @see #of(double[][])
+   */
+  public static MxArray of(double data[], int... dims) {
+    MxArray res = create(DOUBLE_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>single</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(float data[], int... dims) {
+    MxArray res = create(SINGLE_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int64</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(long data[], int... dims) {
+    MxArray res = create(INT64_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int32</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(int data[], int... dims) {
+    MxArray res = create(INT32_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int16</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(short data[], int... dims) {
+    MxArray res = create(INT16_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int8</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(byte data[], int... dims) {
+    MxArray res = create(INT8_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>logical</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(boolean data[], int... dims) {
+    MxArray res = create(LOGICAL_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeLogicals(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>char</code> array from column-major data.
+   *
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(char data[], int... dims) {
+    MxArray res = create(CHAR_CLASS, false, checkDimensions(data.length, dims));
+    writeToNative(data, 0, data.length, res.getNativeData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>char</code> row vector containing the given string.
+   *
+   * @param str the string
+   * @return the new array
+   */
+  public static MxArray of(String str) {
+    return of(str.toCharArray(), 1, str.length());
+  }
+
+  /**
+   * Creates a new <code>double</code> matrix from a row-major Java array.
+   * The data is transposed into MATLAB's column-major order in blocks.
+   *
+   * @param rows the values, with <code>rows[i][j]</code> being the element in row <code>i</code> and column <code>j</code>
+   * @return the new array
+   * @see #of(double[], int...)
+   */
+  public static MxArray of(double rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(DOUBLE_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 8, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>single</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(float rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(SINGLE_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 4, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int64</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(long rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(INT64_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 8, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int32</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(int rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(INT32_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 4, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int16</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(short rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(INT16_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 2, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>int8</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(byte rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(INT8_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 1, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>logical</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(boolean rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(LOGICAL_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeLogicals(), 1, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new <code>char</code> matrix from a row-major Java array.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray of(char rows[][]) {
+    int Nc = checkMatrix(rows);
+    MxArray res = create(CHAR_CLASS, false, new int[] { rows.length, Nc });
+    transposeToNative(rows, res.getNativeData(), 2, rows.length, Nc);
+    return res;
+  }
+
+  /**
+   * Creates a new complex <code>double</code> array from column-major data.
+   *
+   * @param re the real parts, in MATLAB's column-major order
+   * @param im the imaginary parts, in MATLAB's column-major order
+   * @param dims the dimensions of the new array; their product must equal <code>re.length</code>
+   * @return the new array
+   * @see #of(double[], int...)
+   */
+  public static MxArray ofComplex(double re[], double im[], int... dims) {
+    if (im.length != re.length)
+      throw new IllegalArgumentException("real and imaginary parts differ in length (" + re.length + " vs. " + im.length + ")");
+    MxArray res = create(DOUBLE_CLASS, true, checkDimensions(re.length, dims));
+    writeToNative(re, 0, re.length, res.getNativeData(), 0);
+    writeToNative(im, 0, im.length, res.getNativeImagData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new complex <code>single</code> array from column-major data.
+   *
+   * @see #ofComplex(double[], double[], int...)
+   */
+  public static MxArray ofComplex(float re[], float im[], int... dims) {
+    if (im.length != re.length)
+      throw new IllegalArgumentException("real and imaginary parts differ in length (" + re.length + " vs. " + im.length + ")");
+    MxArray res = create(SINGLE_CLASS, true, checkDimensions(re.length, dims));
+    writeToNative(re, 0, re.length, res.getNativeData(), 0);
+    writeToNative(im, 0, im.length, res.getNativeImagData(), 0);
+    return res;
+  }
+
+  /**
+   * Creates a new complex <code>double</code> matrix from row-major Java arrays.
+   *
+   * @see #of(double[][])
+   */
+  public static MxArray ofComplex(double re[][], double im[][]) {
+    int Nc = checkMatrix(re);
+    if ((im.length != re.length) || (checkMatrix(im) != Nc))
+      throw new IllegalArgumentException("real and imaginary parts differ in size");
+    MxArray res = create(DOUBLE_CLASS, true, new int[] { re.length, Nc });
+    transposeToNative(re, res.getNativeData(), 8, re.length, Nc);
+    transposeToNative(im, res.getNativeImagData(), 8, re.length, Nc);
+    return res;
+  }
+
+  /** Allocates a new array through <code>libmx</code>. */
+  private static MxArray create(int classID, boolean complex, int dims[]) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    NativeLong ndim = new NativeLong(dims.length);
+    NativeLongArray pdims = new NativeLongArray(dims);
+    MxArray res;
+    switch (classID) {
+      case LOGICAL_CLASS:
+        res = MxLibrary.mxCreateLogicalArray(ndim, pdims);
+        if (res == null)
+          throw new MatLibException("mxCreateLogicalArray returned null");
+        break;
+      case CHAR_CLASS:
+        res = MxLibrary.mxCreateCharArray(ndim, pdims);
+        if (res == null)
+          throw new MatLibException("mxCreateCharArray returned null");
+        break;
+      default:
+        res = MxLibrary.mxCreateNumericArray(ndim, pdims, classID, complex ? 1 : 0);
+        if (res == null)
+          throw new MatLibException("mxCreateNumericArray returned null");
+    }
+    return own(res);
+  }
+
+  /**
+   * Returns the dimensions for a new array of <code>length</code> elements,
+   * which is a column vector if <code>dims</code> is empty.
+   */
+  private static int[] checkDimensions(int length, int dims[]) {
+    if (dims.length == 0)
+      return new int[] { length, 1 };
+    if (dims.length == 1)
+      dims = new int[] { dims[0], 1 };
+    long n = 1;
+    for (int d : dims) {
+      if (d < 0)
+        throw new IllegalArgumentException("negative dimension: " + d);
+      n *= d;
+    }
+    if (n != length)
+      throw new IllegalArgumentException("dimensions do not match number of values (" + n + " vs. " + length + ")");
+    return dims;
+  }
+
+  /** Checks that all rows of a 2-D Java array have the same length and returns that length. */
+  private static int checkMatrix(Object rows[]) {
+    int Nc = (rows.length > 0) ? Array.getLength(rows[0]) : 0;
+    for (int i = 1; i < rows.length; i++)
+      if (Array.getLength(rows[i]) != Nc)
+        throw new IllegalArgumentException("row " + i + " has length " + Array.getLength(rows[i]) + ", expected " + Nc);
+    return Nc;
+  }
 
   /**
    * Tests whether all of the variable's dimensions are zero.
@@ -53,9 +359,7 @@ public class MxArray extends MxArrayInfo {
    * @return <code>true</code> if the variable contains no data
    */
   public boolean isEmpty() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsEmpty(this);
+    return getNumberOfElements() == 0;
   }
   
   /**
@@ -72,30 +376,140 @@ public class MxArray extends MxArrayInfo {
     return MxLibrary.mxIsLogicalScalarTrue(this);
   }
   
+  /**
+   * Returns the value at the given 0-based subscripts as a boxed number of the type
+   * listed in {@link #getData} (<code>Byte</code> for logical arrays, and
+   * <code>BigInteger</code> for <code>uint64</code> arrays).  For reading
+   * many values, the primitive accessors such as {@link #getDouble(int, int)} avoid
+   * boxing and the varargs array.
+   *
+   * @see #getLinearIndex(int...)
+   */
   public Number getValueAt(int... subs) {
-    long index = MxLibrary.mxCalcSingleSubscript(this, new NativeLong(subs.length), new NativeLongArray(subs)).longValue();
-    if (MxLibrary.mxIsLogical(this)) {
-      return MxLibrary.mxGetLogicals(this).getByte(index*1);
-    }
-    Pointer p = MxLibrary.mxGetData(this);
-    switch (MxLibrary.mxGetClassID(this)) {
-      case LOGICAL_CLASS: return p.getByte(index*1);
-      case DOUBLE_CLASS: return p.getDouble(index*8);
-      case SINGLE_CLASS: return p.getFloat(index*4);
-      case INT8_CLASS: return p.getByte(index*1);
-      case INT16_CLASS: return p.getShort(index*2);
-      case INT32_CLASS: return p.getInt(index*4);
-      case INT64_CLASS: return p.getLong(index*8);
-      case UINT8_CLASS: return 0xFF & (short)p.getByte(index*1);
-      case UINT16_CLASS: return 0xFFFF & (int)p.getByte(index*1);
-      case UINT32_CLASS: return 0xFFFFFFFF & (long)p.getByte(index*1);
-      case UINT64_CLASS:
-        throw new MatLibException("cannot return uint64 as unsigned Java value");
-      default:
-        throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
+    long index = getLinearIndex(subs);
+    NativeData p = getElementData();
+    try {
+      switch (getClassID()) {
+        case LOGICAL_CLASS: return p.getByte(index);
+        case DOUBLE_CLASS: return p.getDouble(index*8);
+        case SINGLE_CLASS: return p.getFloat(index*4);
+        case INT8_CLASS: return p.getByte(index);
+        case INT16_CLASS: return p.getShort(index*2);
+        case INT32_CLASS: return p.getInt(index*4);
+        case INT64_CLASS: return p.getLong(index*8);
+        case UINT8_CLASS: return p.getByte(index) & 0xFF;
+        case UINT16_CLASS: return p.getShort(index*2) & 0xFFFF;
+        case UINT32_CLASS: return p.getInt(index*4) & 0xFFFFFFFFL;
+        case UINT64_CLASS: return new java.math.BigInteger(Long.toUnsignedString(p.getLong(index*8)));
+        default:
+          throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(this);
+    }
+  }
+  
+  // Element accessors.  The linear index is computed in Java from the cached
+  // dimensions, and the data region is cached with the metadata, so reading an
+  // element allocates nothing and makes no call into libmx.  Each read ends with
+  // a reachability fence, as in copyFromNative.
+  
+  /** Returns the data region used for element access, obtaining it on first use. */
+  private NativeData getElementData() {
+    NativeData p = getCachedData();
+    if (p == null) {
+      p = getDataPointer("element access");
+      setCachedData(p);
+    }
+    return p;
+  }
+  
+  /**
+   * Returns the element at the given column-major linear index as a <code>double</code>,
+   * converted as in {@link #doubleValues}.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public double getDouble(long index) {
+    NativeData p = getElementData();
+    try {
+      switch (getClassID()) {
+        case DOUBLE_CLASS: return p.getDouble(index*8);
+        case SINGLE_CLASS: return p.getFloat(index*4);
+        case INT8_CLASS: return p.getByte(index);
+        case LOGICAL_CLASS: case UINT8_CLASS: return p.getByte(index) & 0xFF;
+        case INT16_CLASS: return p.getShort(index*2);
+        case UINT16_CLASS: return p.getShort(index*2) & 0xFFFF;
+        case INT32_CLASS: return p.getInt(index*4);
+        case UINT32_CLASS: return p.getInt(index*4) & 0xFFFFFFFFL;
+        case INT64_CLASS: return p.getLong(index*8);
+        case UINT64_CLASS: return unsignedToDouble(p.getLong(index*8));
+        default:
+          throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(this);
+    }
+  }
+  
+  /** Returns the element in row <code>i</code> and column <code>j</code> as a <code>double</code>. */
+  public double getDouble(int i, int j) { return getDouble(getLinearIndex(i, j)); }
+  
+  /** Returns the element at the subscripts <code>(i, j, k)</code> as a <code>double</code>. */
+  public double getDouble(int i, int j, int k) { return getDouble(getLinearIndex(i, j, k)); }
+  
+  /**
+   * Returns the element at the given column-major linear index as a <code>long</code>.
+   * Floating-point values are truncated as by a Java cast, and <code>uint64</code>
+   * values keep their bit pattern.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public long getLong(long index) {
+    NativeData p = getElementData();
+    try {
+      switch (getClassID()) {
+        case DOUBLE_CLASS: return (long)p.getDouble(index*8);
+        case SINGLE_CLASS: return (long)p.getFloat(index*4);
+        case INT8_CLASS: return p.getByte(index);
+        case LOGICAL_CLASS: case UINT8_CLASS: return p.getByte(index) & 0xFF;
+        case INT16_CLASS: return p.getShort(index*2);
+        case UINT16_CLASS: return p.getShort(index*2) & 0xFFFF;
+        case INT32_CLASS: return p.getInt(index*4);
+        case UINT32_CLASS: return p.getInt(index*4) & 0xFFFFFFFFL;
+        case INT64_CLASS: case UINT64_CLASS: return p.getLong(index*8);
+        default:
+          throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(this);
+    }
+  }
+  
+  /** Returns the element in row <code>i</code> and column <code>j</code> as a <code>long</code>. */
+  public long getLong(int i, int j) { return getLong(getLinearIndex(i, j)); }
+  
+  /** Returns the element at the subscripts <code>(i, j, k)</code> as a <code>long</code>. */
+  public long getLong(int i, int j, int k) { return getLong(getLinearIndex(i, j, k)); }
+  
+  /**
+   * Returns <code>true</code> if the element at the given column-major linear index is non-zero.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public boolean getBoolean(long index) {
+    switch (getClassID()) {
+      case DOUBLE_CLASS: case SINGLE_CLASS: return getDouble(index) != 0;
+      default: return getLong(index) != 0;
     }
   }
   
+  /** Returns <code>true</code> if the element in row <code>i</code> and column <code>j</code> is non-zero. */
+  public boolean getBoolean(int i, int j) { return getBoolean(getLinearIndex(i, j)); }
+  
+  /** Returns <code>true</code> if the element at the subscripts <code>(i, j, k)</code> is non-zero. */
+  public boolean getBoolean(int i, int j, int k) { return getBoolean(getLinearIndex(i, j, k)); }
+  
   public boolean booleanValue() { return booleanValue(0); }
   public boolean booleanValue(int... subs) { return getValueAt(subs).byteValue() != 0; }
   public byte byteValue() { return byteValue(0); }
@@ -131,6 +545,9 @@ public class MxArray extends MxArrayInfo {
    *   <dt>logical</dt><dd><code>boolean[]</code></dd>
    *   <dt>char</dt><dd><code>char[]</code></dd>
    * </dl>
+   * Unsigned values are widened to the next larger Java type, which doubles the
+   * memory needed; {@link #getRawData} and {@link #getUnsignedView} avoid that and
+   * also handle <code>uint64</code>.
    *
    * @return a Java array containing all values
    * @see #isNumeric
@@ -139,21 +556,38 @@ public class MxArray extends MxArrayInfo {
    * @see java.lang.reflect.Array
    */
   public Object getData() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    if (!isNumeric() && !isLogical())
-      throw new MatLibException("not a numeric or logical array");
-    if (isSparse())
-      throw new MatLibException("getData() cannot handle sparse matrices, use getDataAsMatrix() instead");
-    Pointer p = isNumeric() ? MxLibrary.mxGetData(this) : MxLibrary.mxGetLogicals(this);
-    if (p == null)
-      throw new MatLibException((isNumeric() ? "mxGetData" : "mxGetLogicals") + " returned null");
-    if ((getClassID() < 0) || (getClassID() >= classtypes.length))
-      throw new MatLibException("illegal data class " + getClassID() + " (" + getClassName() + ")");
-    int length = (int)getNumberOfElements();
-    if (length < 0)
-      throw new MatLibException("number of elements is negative or too large: " + getNumberOfElements());
-    return getArrayFromNative(p, length);
+    return getArrayFromNative(getDataPointer("getData()"), getDataLength());
+  }
+
+  /**
+   * Retrieves all data values in a Java array of the same width as the data class,
+   * without converting them.  This is the same as {@link #getData}, except that
+   * unsigned classes are returned with their raw bits: <code>uint8</code> as
+   * <code>byte[]</code>, <code>uint16</code> as <code>short[]</code>,
+   * <code>uint32</code> as <code>int[]</code> and <code>uint64</code> as
+   * <code>long[]</code>, and <code>logical</code> as <code>byte[]</code>.
+   *
+   * @return a Java array containing all values
+   * @see #getUnsignedView
+   */
+  public Object getRawData() {
+    return getRawArrayFromNative(getDataPointer("getRawData()"), getDataLength());
+  }
+
+  /**
+   * Returns the values of an unsigned integer array in a Java array of the same
+   * width, with a view that converts them to unsigned numbers on access.
+   *
+   * @throws MatLibException if this is not a <code>uint8</code>, <code>uint16</code>,
+   *   <code>uint32</code> or <code>uint64</code> array
+   * @see #getRawData
+   */
+  public UnsignedView getUnsignedView() {
+    NativeData p = getDataPointer("getUnsignedView()");
+    int cid = getClassID();
+    if ((cid != UINT8_CLASS) && (cid != UINT16_CLASS) && (cid != UINT32_CLASS) && (cid != UINT64_CLASS))
+      throw new MatLibException("not an unsigned integer array (class " + getClassName() + ")");
+    return UnsignedView.of(cid, getRawArrayFromNative(p, getDataLength()));
   }
 
   /**
@@ -186,137 +620,1138 @@ public class MxArray extends MxArrayInfo {
       throw new MatLibException("not a complex numeric array");
     if (isSparse())
       throw new MatLibException("getImagData() cannot handle sparse matrices, use getImagDataAsMatrix() instead");
-    Pointer p = MxLibrary.mxGetImagData(this);
+    NativeData p = getNativeImagData();
     if (p == null)
-      throw new MatLibException((isNumeric() ? "mxGetImagData" : "mxGetLogicals") + " returned null");
+      throw new MatLibException("mxGetImagData returned null");
     if ((getClassID() < 0) || (getClassID() >= classtypes.length))
       throw new MatLibException("illegal data class " + getClassID() + " (" + getClassName() + ")");
-    int length = (int)getNumberOfElements();
-    if (length < 0)
-      throw new MatLibException("number of elements is negative or too large: " + getNumberOfElements());
-    return getArrayFromNative(p, length);
-  }
-
-  private Object getRawArrayFromNative(Pointer p, int length) {
-    switch (MxLibrary.mxGetClassID(this)) {
-      case LOGICAL_CLASS: return p.getByteArray(0, length);  // FIXME: is "logical" always 8-bit?
-      case CHAR_CLASS: return p.getCharArray(0, length);  // FIXME: does Matlab always use 2-byte chars?
-      case DOUBLE_CLASS: return p.getDoubleArray(0, length);
-      case SINGLE_CLASS: return p.getFloatArray(0, length);
-      case INT8_CLASS: return p.getByteArray(0, length);
-      case INT16_CLASS: return p.getShortArray(0, length);
-      case INT32_CLASS: return p.getIntArray(0, length);
-      case INT64_CLASS: return p.getLongArray(0, length);
-      case UINT8_CLASS: return p.getByteArray(0, length);
-      case UINT16_CLASS: return p.getShortArray(0, length);
-      case UINT32_CLASS: return p.getIntArray(0, length);
-      case UINT64_CLASS: return p.getLongArray(0, length);
-      default:
-        throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
+    return getArrayFromNative(p, getDataLength());
+  }
+
+  private Object getRawArrayFromNative(NativeData p, int length) {
+    try {
+      switch (getClassID()) {
+        case LOGICAL_CLASS: return p.getByteArray(0, length);  // FIXME: is "logical" always 8-bit?
+        case CHAR_CLASS: return p.getCharArray(0, length);  // FIXME: does Matlab always use 2-byte chars?
+        case DOUBLE_CLASS: return p.getDoubleArray(0, length);
+        case SINGLE_CLASS: return p.getFloatArray(0, length);
+        case INT8_CLASS: return p.getByteArray(0, length);
+        case INT16_CLASS: return p.getShortArray(0, length);
+        case INT32_CLASS: return p.getIntArray(0, length);
+        case INT64_CLASS: return p.getLongArray(0, length);
+        case UINT8_CLASS: return p.getByteArray(0, length);
+        case UINT16_CLASS: return p.getShortArray(0, length);
+        case UINT32_CLASS: return p.getIntArray(0, length);
+        case UINT64_CLASS: return p.getLongArray(0, length);
+        default:
+          throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(this);
     }
   }
   
-  private Object getArrayFromNative(Pointer p, int length) {
-    switch (MxLibrary.mxGetClassID(this)) {
+  /** Number of elements converted per bulk read from native memory. */
+  private static final int CHUNK_SIZE = 8192;
+
+  private Object getArrayFromNative(NativeData p, int length) {
+    // unsigned and logical data have to be widened/converted; copyFromNative
+    // reads chunks of the raw data into a scratch buffer and converts from
+    // there instead of making one native call per element
+    switch (getClassID()) {
       case LOGICAL_CLASS:
         boolean bb[] = new boolean[length];
-        for (int i = 0; i < length; i++)
-          bb[i] = p.getByte(i) != 0;
+        copyFromNative(p, length, bb, 0);
         return bb;
       case UINT8_CLASS:
         short ss[] = new short[length];
-        for (int i = 0; i < length; i++)
-          ss[i] = (short)(0xFF & (short)p.getByte(i));
+        copyFromNative(p, length, ss, 0);
         return ss;
       case UINT16_CLASS:
         int ii[] = new int[length];
-        for (int i = 0; i < length; i++)
-          ii[i] = 0xFFFF & (int)p.getShort(i*2);
+        copyFromNative(p, length, ii, 0);
         return ii;
       case UINT32_CLASS:
         long ll[] = new long[length];
-        for (int i = 0; i < length; i++)
-          ll[i] = 0xFFFFFFFFL & (long)p.getInt(i*4);
+        copyFromNative(p, length, ll, 0);
         return ll;
       case UINT64_CLASS:
-        throw new MatLibException("cannot return uint64 as unsigned Java value");
+        throw new MatLibException("cannot return uint64 as unsigned Java value, use getRawData() or getUnsignedView() instead");
       default:
         return getRawArrayFromNative(p, length);
     }
   }
+
+  /**
+   * Checks that this variable is a non-sparse numeric or logical array and
+   * returns its (real) data as a bounded native region.
+   *
+   * @param method name of the calling method, used in error messages
+   */
+  private NativeData getDataPointer(String method) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isNumeric() && !isLogical())
+      throw new MatLibException("not a numeric or logical array");
+    if (isSparse())
+      throw new MatLibException(method + " cannot handle sparse matrices, use getDataAsMatrix() instead");
+    NativeData p = isNumeric() ? getNativeData() : getNativeLogicals();
+    if (p == null)
+      throw new MatLibException((isNumeric() ? "mxGetData" : "mxGetLogicals") + " returned null");
+    if ((getClassID() < 0) || (getClassID() >= classtypes.length))
+      throw new MatLibException("illegal data class " + getClassID() + " (" + getClassName() + ")");
+    return p;
+  }
+
+  // The data of an mxArray is accessed as a bounded NativeData region through
+  // the backend selected at start-up (JNA or java.lang.foreign).
+  
+  /** Returns the size in bytes of the real (or imaginary) data of this array. */
+  private long getDataSize() {
+    long n = isSparse() ? MxLibrary.mxGetNzmax(this).longValue() : getNumberOfElements();
+    return n*getElementSize();
+  }
+  
+  private NativeData getNativeData() { return NativeBackend.get().getData(this, getDataSize()); }
+  private NativeData getNativeImagData() { return NativeBackend.get().getImagData(this, getDataSize()); }
+  private NativeData getNativeLogicals() { return NativeBackend.get().getLogicals(this, getDataSize()); }
   
+  /** Returns the number of elements as an <code>int</code>, suitable as Java array length. */
+  private int getDataLength() {
+    long n = getNumberOfElements();
+    if ((n < 0) || (n > Integer.MAX_VALUE))  // a plain cast could wrap around to a positive length
+      throw new MatLibException("number of elements is negative or too large for a Java array: " + n
+        + "; use getDataBuffers() or into(long, double[], int, int) instead");
+    return (int)n;
+  }
+
+  /** Checks that <code>length</code> values fit into an array of length <code>dstLength</code> at <code>offset</code>. */
+  private static void checkDestination(int dstLength, int offset, int length) {
+    if ((offset < 0) || (offset > dstLength - length))
+      throw new ArrayIndexOutOfBoundsException("cannot copy " + length + " values into array of length " + dstLength + " at offset " + offset);
+  }
+
+  /** Converts the bit pattern of an unsigned 64-bit integer to the nearest <code>double</code>. */
+  private static double unsignedToDouble(long v) {
+    if (v >= 0) return v;
+    return ((v >>> 1) | (v & 1))*2.0;
+  }
+
+  /**
+   * Returns the values in this array as doubles. Values of any numeric or
+   * logical data class are converted as if by a Java cast, with unsigned
+   * classes treated as unsigned. If this array is of type <code>logical</code>,
+   * the returned values are either 1 or 0. If the data contains complex
+   * numbers, the real part is returned.
+   *
+   * @see #getData
+   * @see #into(double[], int)
+   */
+  public double[] doubleValues() {
+    NativeData p = getDataPointer("doubleValues()");
+    double res[] = new double[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
+  }
+
   /**
    * Returns the values in this array as floats. If this array is of type
    * <code>logical</code>, the returned values are either 1 or 0.
    *
    * @see #getData
+   * @see #doubleValues
    */
   public float[] floatValues() {
-    Object data = getData();
-    if (data.getClass().getComponentType() == Float.TYPE)
-      return (float[])data;
-    else {
-      float res[] = new float[Array.getLength(data)];
-      if (data.getClass().getComponentType() == Boolean.TYPE)
-        for (int i = 0; i < res.length; i++)
-          res[i] = ((boolean[])data)[i] ? 1 : 0;
-      else
-        for (int i = 0; i < res.length; i++)
-          res[i] = ((Number)Array.get(data, i)).floatValue();  // FIXME: can we prevent the detour over Number?
-      return res;
-    }
+    NativeData p = getDataPointer("floatValues()");
+    float res[] = new float[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
   }
-  
+
   /**
-   * Returns the real values stored in this variable as a 2-D array.
-   * This only works if the variable is a 2-D array, obviously.
-   *
-   * @return a Java array which type depends on the variable's data class
+   * Returns the values in this array as longs. Floating-point values are
+   * truncated, and <code>uint64</code> values keep their bit pattern.
    *
    * @see #getData
-   * @see java.lang.reflect.Array
+   * @see #doubleValues
    */
-  public Object getDataAsMatrix() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    if (getDimensionCount() != 2)
-      throw new MatLibException("variable is not a matrix (num dim = " + getDimensionCount() + ")");
-    if (!isNumeric() && !isLogical())
-      throw new MatLibException("not a numeric or logical array");
-    Pointer p = isNumeric() ? MxLibrary.mxGetData(this) : MxLibrary.mxGetLogicals(this);
-    if (p == null)
-      throw new MatLibException((isNumeric() ? "mxGetData" : "mxGetLogicals") + " returned null");
-    return getMatrixFromNative(p);
+  public long[] longValues() {
+    NativeData p = getDataPointer("longValues()");
+    long res[] = new long[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
   }
-  
+
   /**
-   * Returns the imaginary values stored in this variable as a 2-D array.
-   * This only works if the variable is a complex 2-D array, obviously.
+   * Returns the values in this array as ints. Wider values are narrowed
+   * as if by a Java cast.
    *
-   * @return a Java array which type depends on the variable's data class
+   * @see #getData
+   * @see #doubleValues
+   */
+  public int[] intValues() {
+    NativeData p = getDataPointer("intValues()");
+    int res[] = new int[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
+  }
+
+  /**
+   * Returns the values in this array as shorts. Wider values are narrowed
+   * as if by a Java cast.
    *
    * @see #getData
-   * @see java.lang.reflect.Array
+   * @see #doubleValues
    */
-  public Object getImagDataAsMatrix() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    if (getDimensionCount() != 2)
-      throw new MatLibException("variable is not a matrix (num dim = " + getDimensionCount() + ")");
-    if (!isNumeric() || !isComplex())
-      throw new MatLibException("not a complex numeric array");
-    Pointer p = MxLibrary.mxGetImagData(this);
-    if (p == null)
-      throw new MatLibException((isNumeric() ? "mxGetData" : "mxGetLogicals") + " returned null");
-    return getMatrixFromNative(p);
+  public short[] shortValues() {
+    NativeData p = getDataPointer("shortValues()");
+    short res[] = new short[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
   }
-  
-  private Object getMatrixFromNative(Pointer p) {
-    int Nr = MxLibrary.mxGetM(this).intValue(), Nc = MxLibrary.mxGetN(this).intValue();
+
+  /**
+   * Returns the values in this array as bytes. Wider values are narrowed
+   * as if by a Java cast.
+   *
+   * @see #getData
+   * @see #doubleValues
+   */
+  public byte[] byteValues() {
+    NativeData p = getDataPointer("byteValues()");
+    byte res[] = new byte[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
+  }
+
+  /**
+   * Returns the values in this array as booleans, i.e., <code>true</code>
+   * for every non-zero value.
+   *
+   * @see #getData
+   * @see #doubleValues
+   */
+  public boolean[] booleanValues() {
+    NativeData p = getDataPointer("booleanValues()");
+    boolean res[] = new boolean[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #doubleValues}.
+   *
+   * @param dst destination array
+   * @param offset index in <code>dst</code> where the first value is stored
+   * @throws ArrayIndexOutOfBoundsException if the values do not fit into <code>dst</code>
+   */
+  public void into(double dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Copies <code>length</code> values, starting at the (column-major) linear
+   * <code>index</code>, into an existing array, converting them as described in
+   * {@link #doubleValues}.  This reads arrays with more than
+   * <code>Integer.MAX_VALUE</code> elements piece by piece.
+   *
+   * @param index linear index of the first value to copy
+   * @param dst destination array
+   * @param offset index in <code>dst</code> where the first value is stored
+   * @param length number of values to copy
+   * @throws IndexOutOfBoundsException if the range is not within this array
+   * @throws ArrayIndexOutOfBoundsException if the values do not fit into <code>dst</code>
+   */
+  public void into(long index, double dst[], int offset, int length) {
+    NativeData p = getDataPointer("into()");
+    if ((index < 0) || (length < 0) || (index > getNumberOfElements() - length))
+      throw new IndexOutOfBoundsException("cannot copy " + length + " values at index " + index + " of array of " + getNumberOfElements() + " elements");
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p.share(index*getElementSize()), length, dst, offset);
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #floatValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(float dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #longValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(long dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #intValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(int dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #shortValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(short dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #byteValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(byte dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Copies the values in this array into an existing array, converting them
+   * as described in {@link #booleanValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(boolean dst[], int offset) {
+    NativeData p = getDataPointer("into()");
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /**
+   * Returns the UTF-16 code units of this char array in column-major order,
+   * copied from the native <code>mxChar</code> data in one bulk read.
+   *
+   * @throws MatLibException if this is not a char array
+   * @see #getChars
+   * @see #charRows
+   */
+  public char[] charValues() {
+    NativeData p = getCharData();
+    char res[] = new char[getDataLength()];
+    copyFromNative(p, res.length, res, 0);
+    return res;
+  }
+
+  /**
+   * Copies the characters of this char array into an existing array, as described
+   * in {@link #charValues}.
+   *
+   * @see #into(double[], int)
+   */
+  public void into(char dst[], int offset) {
+    NativeData p = getCharData();
+    int length = getDataLength();
+    checkDestination(dst.length, offset, length);
+    copyFromNative(p, length, dst, offset);
+  }
+
+  /** Checks that this variable is a char array and returns its data. */
+  private NativeData getCharData() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isChar())
+      throw new MatLibException("not a char array (class " + getClassName() + ")");
+    NativeData p = getNativeData();
+    if (p == null)
+      throw new MatLibException("mxGetData returned null");
+    return p;
+  }
+
+  /** Maximum size in bytes of each buffer returned by {@link #getDataBuffers}. */
+  private static final long MAX_BUFFER_SIZE = 1L << 30;
+
+  /**
+   * Returns the (real) data of this non-sparse numeric or logical array as a
+   * direct buffer in native byte order, without copying it.  Use, e.g.,
+   * <code>asDoubleBuffer()</code> for typed access.  Writing to the buffer changes
+   * the array.  If this object owns the array, the array is not destroyed by the
+   * cleaner while the buffer (or a view derived from it) is reachable, so
+   * <code>mf.readVariable("x").getDataBuffer()</code> is safe; it is still destroyed
+   * by {@link #close}, after which the buffer must not be used.  Arrays that belong
+   * to a parent array (cells and fields) live as long as the parent does.
+   *
+   * @throws MatLibException if the data is larger than 2 GB
+   * @see #getDataBuffers
+   */
+  public ByteBuffer getDataBuffer() {
+    ByteBuffer res = getDataPointer("getDataBuffer()").asByteBuffer(0, getDataSize());
+    keepAlive(res);
+    return res;
+  }
+
+  /**
+   * Returns the (real) data of this non-sparse numeric or logical array as direct
+   * buffers in native byte order of at most 1 GB each, without copying it.  Each
+   * buffer holds a whole number of elements, so that the data can be streamed
+   * buffer by buffer regardless of its total size.  The buffers keep the array
+   * alive as described in {@link #getDataBuffer}.
+   *
+   * @see #getDataBuffer
+   * @see #getImagDataBuffers
+   */
+  public ByteBuffer[] getDataBuffers() {
+    return toBuffers(getDataPointer("getDataBuffers()"));
+  }
+
+  /**
+   * Returns the imaginary data of this complex array as direct buffers, as
+   * described in {@link #getDataBuffers}.
+   */
+  public ByteBuffer[] getImagDataBuffers() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isNumeric() || !isComplex())
+      throw new MatLibException("not a complex numeric array");
+    if (isSparse())
+      throw new MatLibException("getImagDataBuffers() cannot handle sparse matrices");
+    NativeData p = getNativeImagData();
+    if (p == null)
+      throw new MatLibException("mxGetImagData returned null");
+    return toBuffers(p);
+  }
+
+  private ByteBuffer[] toBuffers(NativeData p) {
+    long size = getDataSize(), elsize = getElementSize();
+    long chunk = MAX_BUFFER_SIZE - MAX_BUFFER_SIZE % elsize;
+    ByteBuffer res[] = new ByteBuffer[(int)Math.max(1, (size + chunk - 1)/chunk)];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = p.asByteBuffer(i*chunk, Math.min(chunk, size - i*chunk));
+      keepAlive(res[i]);  // views such as asDoubleBuffer() refer to res[i]
+    }
+    return res;
+  }
+
+  /**
+   * Returns an N-dimensional view of the (real) data of this array, without
+   * copying it.  Works on non-sparse numeric, logical and char arrays.
+   *
+   * @see NdView
+   * @see #getImagNdView
+   */
+  public NdView getNdView() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isNumeric() && !isLogical() && !isChar())
+      throw new MatLibException("not a numeric, logical or char array");
+    if (isSparse())
+      throw new MatLibException("getNdView() cannot handle sparse matrices");
+    NativeData p = isLogical() ? getNativeLogicals() : getNativeData();
+    if (p == null)
+      throw new MatLibException((isLogical() ? "mxGetLogicals" : "mxGetData") + " returned null");
+    return new NdView(this, p, getClassID(), getLongDimensions());
+  }
+
+  /**
+   * Returns an N-dimensional view of the imaginary data of this complex array,
+   * without copying it.
+   *
+   * @see #getNdView
+   */
+  public NdView getImagNdView() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isNumeric() || !isComplex())
+      throw new MatLibException("not a complex numeric array");
+    if (isSparse())
+      throw new MatLibException("getImagNdView() cannot handle sparse matrices");
+    NativeData p = getNativeImagData();
+    if (p == null)
+      throw new MatLibException("mxGetImagData returned null");
+    return new NdView(this, p, getClassID(), getLongDimensions());
+  }
+
+  /**
+   * Returns the values in this array as interleaved complex numbers: the real part
+   * of element <code>k</code> (in column-major order) is at index <code>2*k</code>
+   * and its imaginary part at <code>2*k + 1</code>, the layout expected by most FFT
+   * libraries.  The real and imaginary data are read in one pass, converted as
+   * described in {@link #doubleValues}.  Real arrays have imaginary parts of 0.
+   * For sparse matrices, the non-zeros are returned in the order of
+   * {@link SparseMatrix#getValues}.
+   *
+   * @see #into(double[], double[], int)
+   * @see #complexFloatValues
+   */
+  public double[] complexValues() {
+    int length = getComplexLength("complexValues()");
+    if (length > Integer.MAX_VALUE/2)
+      throw new MatLibException("too many values for an interleaved array: " + length);
+    double res[] = new double[2*length];
+    NativeData re = getComplexPointer(false), im = getComplexPointer(true);
+    int chunk = Math.min(length, CHUNK_SIZE);
+    double bre[] = new double[chunk], bim[] = (im == null) ? null : new double[chunk];
+    long elsize = getElementSize();
+    for (int off = 0; off < length; off += chunk) {
+      int n = Math.min(chunk, length - off);
+      copyFromNative(re.share(off*elsize), n, bre, 0);
+      if (im != null) copyFromNative(im.share(off*elsize), n, bim, 0);
+      for (int i = 0, k = 2*off; i < n; i++, k += 2) {
+        res[k] = bre[i];
+        res[k + 1] = (im == null) ? 0 : bim[i];
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Returns the values in this array as interleaved complex numbers of single
+   * precision, as described in {@link #complexValues}.
+   *
+   * @see #into(float[], float[], int)
+   */
+  public float[] complexFloatValues() {
+    int length = getComplexLength("complexFloatValues()");
+    if (length > Integer.MAX_VALUE/2)
+      throw new MatLibException("too many values for an interleaved array: " + length);
+    float res[] = new float[2*length];
+    NativeData re = getComplexPointer(false), im = getComplexPointer(true);
+    int chunk = Math.min(length, CHUNK_SIZE);
+    float bre[] = new float[chunk], bim[] = (im == null) ? null : new float[chunk];
+    long elsize = getElementSize();
+    for (int off = 0; off < length; off += chunk) {
+      int n = Math.min(chunk, length - off);
+      copyFromNative(re.share(off*elsize), n, bre, 0);
+      if (im != null) copyFromNative(im.share(off*elsize), n, bim, 0);
+      for (int i = 0, k = 2*off; i < n; i++, k += 2) {
+        res[k] = bre[i];
+        res[k + 1] = (im == null) ? 0 : bim[i];
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Copies the real and imaginary parts of the values in this array into two
+   * existing arrays, converting them as described in {@link #doubleValues}.
+   * The imaginary parts of real arrays are set to 0.  For sparse matrices, the
+   * non-zeros are copied in the order of {@link SparseMatrix#getValues}.
+   *
+   * @param re destination array for the real parts
+   * @param im destination array for the imaginary parts
+   * @param offset index in both arrays where the first value is stored
+   * @throws ArrayIndexOutOfBoundsException if the values do not fit into <code>re</code> or <code>im</code>
+   * @see #complexValues
+   */
+  public void into(double re[], double im[], int offset) {
+    int length = getComplexLength("into()");
+    checkDestination(re.length, offset, length);
+    checkDestination(im.length, offset, length);
+    copyFromNative(getComplexPointer(false), length, re, offset);
+    NativeData pi = getComplexPointer(true);
+    if (pi != null)
+      copyFromNative(pi, length, im, offset);
+    else
+      Arrays.fill(im, offset, offset + length, 0);
+  }
+
+  /**
+   * Copies the real and imaginary parts of the values in this array into two
+   * existing arrays of single precision, as described in {@link #into(double[], double[], int)}.
+   */
+  public void into(float re[], float im[], int offset) {
+    int length = getComplexLength("into()");
+    checkDestination(re.length, offset, length);
+    checkDestination(im.length, offset, length);
+    copyFromNative(getComplexPointer(false), length, re, offset);
+    NativeData pi = getComplexPointer(true);
+    if (pi != null)
+      copyFromNative(pi, length, im, offset);
+    else
+      Arrays.fill(im, offset, offset + length, 0);
+  }
+
+  /**
+   * Checks that this variable is a numeric or logical array, sparse or not, and
+   * returns the number of values (the number of non-zeros for sparse matrices).
+   */
+  private int getComplexLength(String method) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isNumeric() && !isLogical())
+      throw new MatLibException(method + " needs a numeric or logical array");
+    if (!isSparse())
+      return getDataLength();
+    long N = getN();
+    if ((N < 0) || (N >= Integer.MAX_VALUE))
+      throw new MatLibException("number of columns is negative or too large: " + N);
+    long nnz = MxLibrary.mxGetJc(this).longValues(1, (int)N)[0];
+    if ((nnz < 0) || (nnz > Integer.MAX_VALUE))
+      throw new MatLibException("number of non-zeros is negative or too large: " + nnz);
+    return (int)nnz;
+  }
+
+  /**
+   * Returns the real (or logical) data, or the imaginary data if <code>imag</code>
+   * is <code>true</code> (<code>null</code> if this array is not complex).
+   */
+  private NativeData getComplexPointer(boolean imag) {
+    if (imag && !isComplex()) return null;
+    String method = imag ? "mxGetImagData" : isNumeric() ? "mxGetData" : "mxGetLogicals";
+    NativeData p = imag ? getNativeImagData() : isNumeric() ? getNativeData() : getNativeLogicals();
+    if (p == null)
+      throw new MatLibException(method + " returned null");
+    return p;
+  }
+
+  // The copyFromNative methods convert length values of this array's data class
+  // at p into dst, starting at dst[offset].  Each data class gets its own loop
+  // so that no boxing or reflection is involved.  They end with a reachability
+  // fence, so that the cleaner cannot destroy the array while it is being read.
+
+  private void copyFromNative(NativeData p, int length, double dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS: {
+        int m = (cid == INT8_CLASS) ? -1 : 0xFF;
+        byte buf[] = new byte[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT16_CLASS: case UINT16_CLASS: {
+        int m = (cid == INT16_CLASS) ? -1 : 0xFFFF;
+        short buf[] = new short[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*2L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT32_CLASS: case UINT32_CLASS: {
+        long m = (cid == INT32_CLASS) ? -1L : 0xFFFFFFFFL;
+        int buf[] = new int[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT64_CLASS: case UINT64_CLASS: {
+        boolean u = (cid == UINT64_CLASS);
+        long buf[] = new long[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = u ? unsignedToDouble(buf[i]) : buf[i];
+        }
+        break;
+      }
+      case SINGLE_CLASS: {
+        float buf[] = new float[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i];
+        }
+        break;
+      }
+      case DOUBLE_CLASS:
+        p.read(0, dst, offset, length);
+        break;
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  private void copyFromNative(NativeData p, int length, float dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS: {
+        int m = (cid == INT8_CLASS) ? -1 : 0xFF;
+        byte buf[] = new byte[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT16_CLASS: case UINT16_CLASS: {
+        int m = (cid == INT16_CLASS) ? -1 : 0xFFFF;
+        short buf[] = new short[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*2L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT32_CLASS: case UINT32_CLASS: {
+        long m = (cid == INT32_CLASS) ? -1L : 0xFFFFFFFFL;
+        int buf[] = new int[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT64_CLASS: case UINT64_CLASS: {
+        boolean u = (cid == UINT64_CLASS);
+        long buf[] = new long[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = u ? (float)unsignedToDouble(buf[i]) : buf[i];
+        }
+        break;
+      }
+      case SINGLE_CLASS:
+        p.read(0, dst, offset, length);
+        break;
+      case DOUBLE_CLASS: {
+        double buf[] = new double[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (float)buf[i];
+        }
+        break;
+      }
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  private void copyFromNative(NativeData p, int length, long dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS: {
+        int m = (cid == INT8_CLASS) ? -1 : 0xFF;
+        byte buf[] = new byte[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT16_CLASS: case UINT16_CLASS: {
+        int m = (cid == INT16_CLASS) ? -1 : 0xFFFF;
+        short buf[] = new short[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*2L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT32_CLASS: case UINT32_CLASS: {
+        long m = (cid == INT32_CLASS) ? -1L : 0xFFFFFFFFL;
+        int buf[] = new int[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT64_CLASS: case UINT64_CLASS:
+        p.read(0, dst, offset, length);
+        break;
+      case SINGLE_CLASS: {
+        float buf[] = new float[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (long)buf[i];
+        }
+        break;
+      }
+      case DOUBLE_CLASS: {
+        double buf[] = new double[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (long)buf[i];
+        }
+        break;
+      }
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  private void copyFromNative(NativeData p, int length, int dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS: {
+        int m = (cid == INT8_CLASS) ? -1 : 0xFF;
+        byte buf[] = new byte[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT16_CLASS: case UINT16_CLASS: {
+        int m = (cid == INT16_CLASS) ? -1 : 0xFFFF;
+        short buf[] = new short[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*2L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] & m;
+        }
+        break;
+      }
+      case INT32_CLASS: case UINT32_CLASS:
+        p.read(0, dst, offset, length);
+        break;
+      case INT64_CLASS: case UINT64_CLASS: {
+        long buf[] = new long[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (int)buf[i];
+        }
+        break;
+      }
+      case SINGLE_CLASS: {
+        float buf[] = new float[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (int)buf[i];
+        }
+        break;
+      }
+      case DOUBLE_CLASS: {
+        double buf[] = new double[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (int)buf[i];
+        }
+        break;
+      }
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  private void copyFromNative(NativeData p, int length, short dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS: {
+        int m = (cid == INT8_CLASS) ? -1 : 0xFF;
+        byte buf[] = new byte[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (short)(buf[i] & m);
+        }
+        break;
+      }
+      case INT16_CLASS: case UINT16_CLASS:
+        p.read(0, dst, offset, length);
+        break;
+      case INT32_CLASS: case UINT32_CLASS: {
+        int buf[] = new int[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (short)buf[i];
+        }
+        break;
+      }
+      case INT64_CLASS: case UINT64_CLASS: {
+        long buf[] = new long[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (short)buf[i];
+        }
+        break;
+      }
+      case SINGLE_CLASS: {
+        float buf[] = new float[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (short)buf[i];
+        }
+        break;
+      }
+      case DOUBLE_CLASS: {
+        double buf[] = new double[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (short)buf[i];
+        }
+        break;
+      }
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  private void copyFromNative(NativeData p, int length, byte dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS:
+        p.read(0, dst, offset, length);
+        break;
+      case INT16_CLASS: case UINT16_CLASS: {
+        short buf[] = new short[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*2L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (byte)buf[i];
+        }
+        break;
+      }
+      case INT32_CLASS: case UINT32_CLASS: {
+        int buf[] = new int[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (byte)buf[i];
+        }
+        break;
+      }
+      case INT64_CLASS: case UINT64_CLASS: {
+        long buf[] = new long[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (byte)buf[i];
+        }
+        break;
+      }
+      case SINGLE_CLASS: {
+        float buf[] = new float[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (byte)buf[i];
+        }
+        break;
+      }
+      case DOUBLE_CLASS: {
+        double buf[] = new double[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = (byte)buf[i];
+        }
+        break;
+      }
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  private void copyFromNative(NativeData p, int length, char dst[], int offset) {
+    if (getClassID() != CHAR_CLASS)
+      throw new MatLibException("cannot copy " + getClassName() + " data into a char array");
+    p.read(0, dst, offset, length);  // mxChar is a UTF-16 code unit
+    NativeCleaner.reachabilityFence(this);
+  }
+
+  private void copyFromNative(NativeData p, int length, boolean dst[], int offset) {
+    int cid = getClassID();
+    int chunk = Math.min(length, CHUNK_SIZE);
+    switch (cid) {
+      case LOGICAL_CLASS: case INT8_CLASS: case UINT8_CLASS: {
+        byte buf[] = new byte[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] != 0;
+        }
+        break;
+      }
+      case INT16_CLASS: case UINT16_CLASS: {
+        short buf[] = new short[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*2L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] != 0;
+        }
+        break;
+      }
+      case INT32_CLASS: case UINT32_CLASS: {
+        int buf[] = new int[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] != 0;
+        }
+        break;
+      }
+      case INT64_CLASS: case UINT64_CLASS: {
+        long buf[] = new long[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] != 0;
+        }
+        break;
+      }
+      case SINGLE_CLASS: {
+        float buf[] = new float[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*4L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] != 0;
+        }
+        break;
+      }
+      case DOUBLE_CLASS: {
+        double buf[] = new double[chunk];
+        for (int off = 0; off < length; off += chunk) {
+          int n = Math.min(chunk, length - off);
+          p.read(off*8L, buf, 0, n);
+          for (int i = 0; i < n; i++)
+            dst[offset + off + i] = buf[i] != 0;
+        }
+        break;
+      }
+      default:
+        throw new MatLibException("cannot handle data class " + cid + " (" + getClassName() + ")");
+    }
+    NativeCleaner.reachabilityFence(this);
+  }
+  
+  /**
+   * Returns the real values stored in this variable as a 2-D array.
+   * This only works if the variable is a 2-D array, obviously.
+   *
+   * @return a Java array which type depends on the variable's data class
+   *
+   * @see #getData
+   * @see java.lang.reflect.Array
+   */
+  public Object getDataAsMatrix() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (getDimensionCount() != 2)
+      throw new MatLibException("variable is not a matrix (num dim = " + getDimensionCount() + ")");
+    if (!isNumeric() && !isLogical())
+      throw new MatLibException("not a numeric or logical array");
+    NativeData p = isNumeric() ? getNativeData() : getNativeLogicals();
+    if (p == null)
+      throw new MatLibException((isNumeric() ? "mxGetData" : "mxGetLogicals") + " returned null");
+    return getMatrixFromNative(p);
+  }
+  
+  /**
+   * Returns the imaginary values stored in this variable as a 2-D array.
+   * This only works if the variable is a complex 2-D array, obviously.
+   *
+   * @return a Java array which type depends on the variable's data class
+   *
+   * @see #getData
+   * @see java.lang.reflect.Array
+   */
+  public Object getImagDataAsMatrix() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (getDimensionCount() != 2)
+      throw new MatLibException("variable is not a matrix (num dim = " + getDimensionCount() + ")");
+    if (!isNumeric() || !isComplex())
+      throw new MatLibException("not a complex numeric array");
+    NativeData p = getNativeImagData();
+    if (p == null)
+      throw new MatLibException("mxGetImagData returned null");
+    return getMatrixFromNative(p);
+  }
+  
+  private Object getMatrixFromNative(NativeData p) {
+    int Nr = (int)getM(), Nc = (int)getN();
     if (Nr < 0)
-      throw new MatLibException("number of rows is negative or too large: " + MxLibrary.mxGetM(this).longValue());
+      throw new MatLibException("number of rows is negative or too large: " + getM());
     if (Nc < 0)
-      throw new MatLibException("number of columns is negative or too large: " + MxLibrary.mxGetN(this).longValue());
+      throw new MatLibException("number of columns is negative or too large: " + getN());
     if (isSparse()) {  // sparse can only be double or logical
       int jc[] = MxLibrary.mxGetJc(this).intValues(Nc + 1);
       int ir[] = MxLibrary.mxGetIr(this).intValues(jc[Nc]);
@@ -325,6 +1760,7 @@ public class MxArray extends MxArrayInfo {
         case DOUBLE_CLASS:
           double ddres[][] = new double[Nr][Nc];  // matrix return value
           double dd[] = p.getDoubleArray(0, jc[Nc]);  // data vector
+          NativeCleaner.reachabilityFence(this);
           for (int j = 0; j < Nc; j++)  // current column index
             while (l < jc[j+1])  // ir[l] is current row index
               ddres[ir[l]][j] = dd[l++];
@@ -332,6 +1768,7 @@ public class MxArray extends MxArrayInfo {
         case LOGICAL_CLASS:
           boolean bbres[][] = new boolean[Nr][Nc];  // matrix return value
           byte bb[] = p.getByteArray(0, jc[Nc]);  // data vector
+          NativeCleaner.reachabilityFence(this);
           for (int j = 0; j < Nc; j++)  // current column index
             while (l < jc[j+1])  // ir[l] is current row index
               bbres[ir[l]][j] = bb[l++] != 0;
@@ -340,17 +1777,71 @@ public class MxArray extends MxArrayInfo {
           throw new MatLibException("uh, hm... don't know how to handle non-double, non-logical sparse matrices");
       }
     } else {
-      Object data = getData();
-      Object res = Array.newInstance(data.getClass().getComponentType(), new int[] { Nr, Nc });
-      for (int i = 0; i < Nr; i++) {
-        Object row = Array.get(res, i);
-        for (int j = 0; j < Nc; j++)
-          Array.set(row, j, Array.get(data, j*Nc + i));  // FIXME: can we avoid the boxing and unboxing?
+      Object res;
+      switch (getClassID()) {
+        case LOGICAL_CLASS: res = new boolean[Nr][Nc]; break;
+        case DOUBLE_CLASS: res = new double[Nr][Nc]; break;
+        case SINGLE_CLASS: res = new float[Nr][Nc]; break;
+        case INT8_CLASS: res = new byte[Nr][Nc]; break;
+        case INT16_CLASS: res = new short[Nr][Nc]; break;
+        case INT32_CLASS: res = new int[Nr][Nc]; break;
+        case INT64_CLASS: res = new long[Nr][Nc]; break;
+        case UINT8_CLASS: res = new short[Nr][Nc]; break;
+        case UINT16_CLASS: res = new int[Nr][Nc]; break;
+        case UINT32_CLASS: res = new long[Nr][Nc]; break;
+        case UINT64_CLASS:
+          throw new MatLibException("cannot return uint64 as unsigned Java value");
+        default:
+          throw new MatLibException("cannot handle data class " + getClassID() + " (" + getClassName() + ")");
       }
+      transposeFromNative(p, res, Nr, Nc);
       return res;
     }
   }
   
+  /**
+   * Returns this sparse matrix in compressed sparse column format without
+   * expanding it to a dense matrix.  Works for double (real or complex) and
+   * logical sparse matrices.
+   *
+   * @return the sparse matrix
+   * @see #isSparse
+   * @see SparseMatrix
+   */
+  public SparseMatrix getSparseMatrix() {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (!isSparse())
+      throw new MatLibException("not a sparse matrix");
+    long M = getM(), N = getN();
+    if ((N < 0) || (N >= Integer.MAX_VALUE))
+      throw new MatLibException("number of columns is negative or too large: " + N);
+    long jc[] = MxLibrary.mxGetJc(this).longValues((int)N + 1);
+    long nnz = jc[(int)N];
+    if ((nnz < 0) || (nnz > Integer.MAX_VALUE))
+      throw new MatLibException("number of non-zeros is negative or too large: " + nnz);
+    NativeLongArray irp = MxLibrary.mxGetIr(this);
+    int ir[] = null;
+    long irLong[] = null;
+    if (M <= Integer.MAX_VALUE)
+      ir = irp.intValues((int)nnz);
+    else
+      irLong = irp.longValues((int)nnz);
+    switch (getClassID()) {
+      case DOUBLE_CLASS:
+        double pr[] = getNativeData().getDoubleArray(0, (int)nnz);
+        double pi[] = isComplex() ? getNativeImagData().getDoubleArray(0, (int)nnz) : null;
+        NativeCleaner.reachabilityFence(this);
+        return new SparseMatrix(M, (int)N, jc, ir, irLong, pr, pi, null);
+      case LOGICAL_CLASS:
+        boolean bb[] = new boolean[(int)nnz];
+        copyFromNative(getNativeLogicals(), bb.length, bb, 0);
+        return new SparseMatrix(M, (int)N, jc, ir, irLong, null, null, bb);
+      default:
+        throw new MatLibException("uh, hm... don't know how to handle non-double, non-logical sparse matrices");
+    }
+  }
+  
   /**
    * Returns the values in this array as a 2-D array of floats.
    * If this array is of type <code>logical</code>, the returned
@@ -359,57 +1850,760 @@ public class MxArray extends MxArrayInfo {
    * @see #getDataAsMatrix
    */
   public float[][] floatMatrix() {
-    Object matrix = getDataAsMatrix();
-    if (matrix.getClass().getComponentType().getComponentType() == Float.TYPE)
-      return (float[][])matrix;
-    else {
-      int Nr = MxLibrary.mxGetM(this).intValue(), Nc = MxLibrary.mxGetN(this).intValue();  // FIXME: handle overflow
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    if (getDimensionCount() != 2)
+      throw new MatLibException("variable is not a matrix (num dim = " + getDimensionCount() + ")");
+    if (isSparse()) {
+      Object matrix = getDataAsMatrix();
+      int Nr = (int)getM(), Nc = (int)getN();
       float res[][] = new float[Nr][Nc];
-      for (int i = 0; i < Nr; i++) {
-        Object row = Array.get(matrix, i);
-        for (int j = 0; j < Nc; j++)
-          res[i][j] = ((Number)Array.get(row, j)).floatValue();  // FIXME: can we prevent the detour over Number?
+      if (matrix instanceof boolean[][]) {
+        for (int i = 0; i < Nr; i++)
+          for (int j = 0; j < Nc; j++)
+            res[i][j] = ((boolean[][])matrix)[i][j] ? 1 : 0;
+      } else {
+        for (int i = 0; i < Nr; i++)
+          for (int j = 0; j < Nc; j++)
+            res[i][j] = (float)((double[][])matrix)[i][j];
       }
       return res;
     }
+    NativeData p = getDataPointer("floatMatrix()");
+    int Nr = (int)getM(), Nc = (int)getN();
+    if ((Nr < 0) || (Nc < 0))
+      throw new MatLibException("matrix dimensions are negative or too large: " + getM() + " x " + getN());
+    float res[][] = new float[Nr][Nc];
+    transposeFromNative(p, res, Nr, Nc);
+    return res;
+  }
+  
+  // Dense matrices are stored column-major in native memory but returned as
+  // row-major Java arrays.  The transpose reads blocks of whole columns (or
+  // column segments, for very tall matrices) into a scratch buffer and copies
+  // them into the rows in TILE_SIZE x TILE_SIZE tiles to stay in cache.
+  // Large matrices are split by columns into ForkJoin tasks.
+  
+  /** Edge length of the tiles used when transposing a block. */
+  private static final int TILE_SIZE = 64;
+  /** Number of elements in the scratch buffer used for transposing. */
+  private static final int SCRATCH_SIZE = 1 << 18;
+  /** Minimum number of elements before a transpose is split into parallel tasks. */
+  private static final long PARALLEL_THRESHOLD = 1 << 20;
+  
+  /**
+   * Fills <code>res</code>, which must be one of <code>double[Nr][Nc]</code>,
+   * <code>float[Nr][Nc]</code>, <code>long[Nr][Nc]</code>, <code>int[Nr][Nc]</code>,
+   * <code>short[Nr][Nc]</code>, <code>char[Nr][Nc]</code>, <code>byte[Nr][Nc]</code> or
+   * <code>boolean[Nr][Nc]</code>, with the column-major data at <code>p</code>,
+   * converting it as in {@link #copyFromNative}.
+   */
+  private void transposeFromNative(NativeData p, Object res, int Nr, int Nc) {
+    if ((Nr == 0) || (Nc == 0)) return;
+    if ((long)Nr*Nc < PARALLEL_THRESHOLD)
+      transposeFromNative(p, res, getElementSize(), Nr, 0, Nc);
+    else
+      ForkJoinPool.commonPool().invoke(new TransposeTask(p, res, getElementSize(), Nr, 0, Nc));
+  }
+  
+  /** Transposes columns <code>c0</code> (inclusive) to <code>c1</code> (exclusive) into <code>res</code>. */
+  private void transposeFromNative(NativeData p, Object res, long elsize, int Nr, int c0, int c1) {
+    int R = Math.min(Nr, SCRATCH_SIZE/TILE_SIZE);  // rows per block
+    int C = Math.min(c1 - c0, SCRATCH_SIZE/R);  // columns per block
+    Object buf = newScratch(res, R*C);
+    for (int j0 = c0; j0 < c1; j0 += C) {
+      int c = Math.min(C, c1 - j0);
+      for (int i0 = 0; i0 < Nr; i0 += R) {
+        int r = Math.min(R, Nr - i0);
+        if (r == Nr)  // whole columns are contiguous in native memory
+          copyFromNative(p.share((long)j0*Nr*elsize), r*c, buf, 0);
+        else
+          for (int j = 0; j < c; j++)
+            copyFromNative(p.share(((long)(j0 + j)*Nr + i0)*elsize), r, buf, j*r);
+        if (buf instanceof double[]) transposeBlock((double[])buf, r, c, (double[][])res, i0, j0);
+        else if (buf instanceof float[]) transposeBlock((float[])buf, r, c, (float[][])res, i0, j0);
+        else if (buf instanceof long[]) transposeBlock((long[])buf, r, c, (long[][])res, i0, j0);
+        else if (buf instanceof int[]) transposeBlock((int[])buf, r, c, (int[][])res, i0, j0);
+        else if (buf instanceof short[]) transposeBlock((short[])buf, r, c, (short[][])res, i0, j0);
+        else if (buf instanceof char[]) transposeBlock((char[])buf, r, c, (char[][])res, i0, j0);
+        else if (buf instanceof byte[]) transposeBlock((byte[])buf, r, c, (byte[][])res, i0, j0);
+        else transposeBlock((boolean[])buf, r, c, (boolean[][])res, i0, j0);
+      }
+    }
+  }
+  
+  /** Splits a transpose by columns until the pieces are small enough to run sequentially. */
+  private class TransposeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final NativeData p;
+    private final Object res;
+    private final long elsize;
+    private final int Nr, c0, c1;
+    TransposeTask(NativeData p, Object res, long elsize, int Nr, int c0, int c1) {
+      this.p = p; this.res = res; this.elsize = elsize; this.Nr = Nr; this.c0 = c0; this.c1 = c1;
+    }
+    protected void compute() {
+      if (((long)(c1 - c0)*Nr < PARALLEL_THRESHOLD) || (c1 - c0 <= TILE_SIZE))
+        transposeFromNative(p, res, elsize, Nr, c0, c1);
+      else {
+        int mid = (c0 + c1) >>> 1;
+        invokeAll(new TransposeTask(p, res, elsize, Nr, c0, mid), new TransposeTask(p, res, elsize, Nr, mid, c1));
+      }
+    }
   }
   
+  /**
+   * Writes the row-major matrix <code>rows</code>, which must be one of
+   * <code>double[Nr][Nc]</code>, <code>float[Nr][Nc]</code>, <code>long[Nr][Nc]</code>,
+   * <code>int[Nr][Nc]</code>, <code>short[Nr][Nc]</code>, <code>byte[Nr][Nc]</code>,
+   * <code>char[Nr][Nc]</code> or <code>boolean[Nr][Nc]</code>, to <code>p</code> in
+   * column-major order.  This is the reverse of {@link #transposeFromNative}.
+   */
+  private static void transposeToNative(Object rows, NativeData p, long elsize, int Nr, int Nc) {
+    if ((Nr == 0) || (Nc == 0)) return;
+    int R = Math.min(Nr, SCRATCH_SIZE/TILE_SIZE);  // rows per block
+    int C = Math.min(Nc, SCRATCH_SIZE/R);  // columns per block
+    Object buf = (rows instanceof boolean[][]) ? new byte[R*C] : newScratch(rows, R*C);
+    for (int j0 = 0; j0 < Nc; j0 += C) {
+      int c = Math.min(C, Nc - j0);
+      for (int i0 = 0; i0 < Nr; i0 += R) {
+        int r = Math.min(R, Nr - i0);
+        if (rows instanceof double[][]) gatherBlock((double[][])rows, i0, j0, r, c, (double[])buf);
+        else if (rows instanceof float[][]) gatherBlock((float[][])rows, i0, j0, r, c, (float[])buf);
+        else if (rows instanceof long[][]) gatherBlock((long[][])rows, i0, j0, r, c, (long[])buf);
+        else if (rows instanceof int[][]) gatherBlock((int[][])rows, i0, j0, r, c, (int[])buf);
+        else if (rows instanceof short[][]) gatherBlock((short[][])rows, i0, j0, r, c, (short[])buf);
+        else if (rows instanceof byte[][]) gatherBlock((byte[][])rows, i0, j0, r, c, (byte[])buf);
+        else if (rows instanceof char[][]) gatherBlock((char[][])rows, i0, j0, r, c, (char[])buf);
+        else gatherBlock((boolean[][])rows, i0, j0, r, c, (byte[])buf);
+        if (r == Nr)  // whole columns are contiguous in native memory
+          writeToNative(buf, 0, r*c, p, (long)j0*Nr*elsize);
+        else
+          for (int j = 0; j < c; j++)
+            writeToNative(buf, j*r, r, p, ((long)(j0 + j)*Nr + i0)*elsize);
+      }
+    }
+  }
+  
+  /** Writes <code>length</code> values from the 1-D array <code>buf</code> to <code>p</code> with one bulk write. */
+  private static void writeToNative(Object buf, int offset, int length, NativeData p, long poff) {
+    if (length == 0) return;
+    if (buf instanceof double[]) p.write(poff, (double[])buf, offset, length);
+    else if (buf instanceof float[]) p.write(poff, (float[])buf, offset, length);
+    else if (buf instanceof long[]) p.write(poff, (long[])buf, offset, length);
+    else if (buf instanceof int[]) p.write(poff, (int[])buf, offset, length);
+    else if (buf instanceof short[]) p.write(poff, (short[])buf, offset, length);
+    else if (buf instanceof byte[]) p.write(poff, (byte[])buf, offset, length);
+    else if (buf instanceof char[]) p.write(poff, (char[])buf, offset, length);
+    else {  // boolean[] is written as mxLogical, i.e., one byte per value
+      boolean bb[] = (boolean[])buf;
+      byte tmp[] = new byte[Math.min(length, CHUNK_SIZE)];
+      for (int off = 0; off < length; off += tmp.length) {
+        int n = Math.min(tmp.length, length - off);
+        for (int i = 0; i < n; i++)
+          tmp[i] = (byte)(bb[offset + off + i] ? 1 : 0);
+        p.write(poff + off, tmp, 0, n);
+      }
+    }
+  }
+  
+  private static void gatherBlock(double rows[][], int i0, int j0, int r, int c, double buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          double row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(float rows[][], int i0, int j0, int r, int c, float buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          float row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(long rows[][], int i0, int j0, int r, int c, long buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          long row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(int rows[][], int i0, int j0, int r, int c, int buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          int row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(short rows[][], int i0, int j0, int r, int c, short buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          short row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(byte rows[][], int i0, int j0, int r, int c, byte buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          byte row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(char rows[][], int i0, int j0, int r, int c, char buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          char row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = row[j0 + j];
+        }
+  }
+  
+  private static void gatherBlock(boolean rows[][], int i0, int j0, int r, int c, byte buf[]) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          boolean row[] = rows[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            buf[j*r + i] = (byte)(row[j0 + j] ? 1 : 0);
+        }
+  }
+  
+  /**
+   * Allocates a 1-D scratch array with the same component type as the matrix <code>res</code>.
+   */
+  private static Object newScratch(Object res, int length) {
+    if (res instanceof double[][]) return new double[length];
+    if (res instanceof float[][]) return new float[length];
+    if (res instanceof long[][]) return new long[length];
+    if (res instanceof int[][]) return new int[length];
+    if (res instanceof short[][]) return new short[length];
+    if (res instanceof char[][]) return new char[length];
+    if (res instanceof byte[][]) return new byte[length];
+    return new boolean[length];
+  }
+  
+  /** Dispatches to the <code>copyFromNative</code> method matching the type of <code>dst</code>. */
+  private void copyFromNative(NativeData p, int length, Object dst, int offset) {
+    if (dst instanceof double[]) copyFromNative(p, length, (double[])dst, offset);
+    else if (dst instanceof float[]) copyFromNative(p, length, (float[])dst, offset);
+    else if (dst instanceof long[]) copyFromNative(p, length, (long[])dst, offset);
+    else if (dst instanceof int[]) copyFromNative(p, length, (int[])dst, offset);
+    else if (dst instanceof short[]) copyFromNative(p, length, (short[])dst, offset);
+    else if (dst instanceof char[]) copyFromNative(p, length, (char[])dst, offset);
+    else if (dst instanceof byte[]) copyFromNative(p, length, (byte[])dst, offset);
+    else copyFromNative(p, length, (boolean[])dst, offset);
+  }
+  
+  private static void transposeBlock(double buf[], int r, int c, double res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          double row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(float buf[], int r, int c, float res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          float row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(long buf[], int r, int c, long res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          long row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(int buf[], int r, int c, int res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          int row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(short buf[], int r, int c, short res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          short row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(char buf[], int r, int c, char res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          char row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(byte buf[], int r, int c, byte res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          byte row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+  private static void transposeBlock(boolean buf[], int r, int c, boolean res[][], int i0, int j0) {
+    for (int ib = 0; ib < r; ib += TILE_SIZE)
+      for (int jb = 0; jb < c; jb += TILE_SIZE)
+        for (int i = ib, ie = Math.min(ib + TILE_SIZE, r); i < ie; i++) {
+          boolean row[] = res[i0 + i];
+          for (int j = jb, je = Math.min(jb + TILE_SIZE, c); j < je; j++)
+            row[j0 + j] = buf[j*r + i];
+        }
+  }
+  
+
+  // Cells and fields are part of this array's native memory; borrow() makes the
+  // returned arrays keep this array (or the array owning it) reachable.
 
   public MxArray getCell(int... subs) {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    long index = MxLibrary.mxCalcSingleSubscript(this, new NativeLong(subs.length), new NativeLongArray(subs)).longValue();
-    return MxLibrary.mxGetCell(this, new NativeLong(index));
+    return cellAt(getLinearIndex(subs));
+  }
+  
+  /** Returns the cell in row <code>i</code> and column <code>j</code>. */
+  public MxArray getCell(int i, int j) {
+    return cellAt(getLinearIndex(i, j));
+  }
+  
+  /**
+   * Returns the cell at the given column-major linear index.  Unlike
+   * {@link #getCell(int...)}, this needs no subscript array.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public MxArray getCell(long index) {
+    checkIndex(index);
+    return cellAt(index);
   }
 
   public MxArray getField(String fieldname) {
+    return fieldAt(fieldname, 0);
+  }
+  public MxArray getField(String fieldname, int... subs) {
+    return fieldAt(fieldname, getLinearIndex(subs));
+  }
+  /** Returns a field of the struct in row <code>i</code> and column <code>j</code>. */
+  public MxArray getField(String fieldname, int i, int j) {
+    return fieldAt(fieldname, getLinearIndex(i, j));
+  }
+  /**
+   * Returns a field of the struct at the given column-major linear index.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public MxArray getField(String fieldname, long index) {
+    checkIndex(index);
+    return fieldAt(fieldname, index);
+  }
+  public MxArray getFieldByNumber(int fieldnumber, int... subs) {
+    return fieldAt(fieldnumber, getLinearIndex(subs));
+  }
+  /** Returns a field of the struct in row <code>i</code> and column <code>j</code>. */
+  public MxArray getFieldByNumber(int fieldnumber, int i, int j) {
+    return fieldAt(fieldnumber, getLinearIndex(i, j));
+  }
+  /**
+   * Returns a field of the struct at the given column-major linear index.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public MxArray getFieldByNumber(int fieldnumber, long index) {
+    checkIndex(index);
+    return fieldAt(fieldnumber, index);
+  }
+  
+  private void checkIndex(long index) {
+    if ((index < 0) || (index >= getNumberOfElements()))
+      throw new IndexOutOfBoundsException("index " + index + " out of range for array of " + getNumberOfElements() + " elements");
+  }
+  
+  // JNA passes mwIndex as NativeLong, so each of these still allocates one.
+  
+  private MxArray cellAt(long index) {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetField(this, new NativeLong(0), fieldname);
+    return borrow(MxLibrary.mxGetCell(this, new NativeLong(index)));
   }
-  public MxArray getField(String fieldname, int... subs) {
+  private MxArray fieldAt(String fieldname, long index) {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    long index = MxLibrary.mxCalcSingleSubscript(this, new NativeLong(subs.length), new NativeLongArray(subs)).longValue();
-    return MxLibrary.mxGetField(this, new NativeLong(index), fieldname);
+    return borrow(MxLibrary.mxGetField(this, new NativeLong(index), fieldname));
   }
-  public MxArray getFieldByNumber(int fieldnumber, int... subs) {
+  private MxArray fieldAt(int fieldnumber, long index) {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    long index = MxLibrary.mxCalcSingleSubscript(this, new NativeLong(subs.length), new NativeLongArray(subs)).longValue();
-    return MxLibrary.mxGetFieldByNumber(this, new NativeLong(index), fieldnumber);
+    return borrow(MxLibrary.mxGetFieldByNumber(this, new NativeLong(index), fieldnumber));
   }
 
+  /**
+   * A field of a struct array, resolved to its field number once so that it can be
+   * read repeatedly with {@link MxArray#get(FieldHandle, long)} without passing the
+   * field name to <code>libmx</code>.  A handle can be used with any struct array
+   * that has the same field at the same position, e.g. all structs read from the
+   * same kind of file.
+   *
+   * @see MxArray#fieldHandle
+   */
+  public static final class FieldHandle {
+    private final String name;
+    private final int number;
+    
+    private FieldHandle(String name, int number) { this.name = name; this.number = number; }
+    
+    /** Returns the name of the field. */
+    public String getName() { return name; }
+    
+    /** Returns the 0-based field number. */
+    public int getNumber() { return number; }
+    
+    public String toString() { return name + " (field " + number + ")"; }
+  }
+  
+  /**
+   * Resolves a field of this struct array to a reusable handle.
+   *
+   * @param fieldname name of the field
+   * @return the handle
+   * @throws MatLibException if this is not a struct or has no such field
+   */
+  public FieldHandle fieldHandle(String fieldname) {
+    int number = getFieldIndex(fieldname);
+    if (number < 0)
+      throw new MatLibException("struct has no field '" + fieldname + "'");
+    return new FieldHandle(getFieldName(number), number);
+  }
+  
+  /** Checks that <code>field</code> refers to the same field in this struct array. */
+  private void checkHandle(FieldHandle field) {
+    if ((field.number >= getNumberOfFields()) || !getFieldName(field.number).equals(field.name))
+      throw new MatLibException("field handle " + field + " does not match the fields of this struct");
+  }
+  
+  /**
+   * Returns a field of the struct at the given linear index with a single call to
+   * <code>mxGetFieldByNumber</code>.  The returned array belongs to this struct array,
+   * which it keeps reachable.
+   *
+   * @param field the field, obtained from {@link #fieldHandle}
+   * @param index column-major linear index of the struct element
+   * @return the field's value, or <code>null</code> if it has not been set
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  public MxArray get(FieldHandle field, long index) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    checkHandle(field);
+    if ((index < 0) || (index >= getNumberOfElements()))
+      throw new IndexOutOfBoundsException("index " + index + " out of range for struct array of " + getNumberOfElements() + " elements");
+    return borrow(MxLibrary.mxGetFieldByNumber(this, new NativeLong(index), field.number));
+  }
+  
+  /**
+   * Returns a field of every element of this struct array, in column-major order.
+   * The handle is checked once, and each element costs one native call.  The returned
+   * arrays belong to this struct array, which they keep reachable.
+   *
+   * @param field the field, obtained from {@link #fieldHandle}
+   * @return the field values; elements whose field has not been set are <code>null</code>
+   */
+  public MxArray[] getFieldColumn(FieldHandle field) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    checkHandle(field);
+    MxArray res[] = new MxArray[getDataLength()];
+    NativeLong index = new NativeLong();
+    for (int i = 0; i < res.length; i++) {
+      index.setValue(i);
+      res[i] = borrow(MxLibrary.mxGetFieldByNumber(this, index, field.number));
+    }
+    return res;
+  }
+  
+  // A traversal with MxVisitor gets the children of a cell or struct array with
+  // one native call each, reusing the index argument within a batch of children.
+  // In parallel mode, long runs of children are split into ForkJoin tasks, and
+  // every child that is itself a cell or struct array is visited in its own task.
+  
+  /** Maximum number of children of a cell or struct array that one task visits. */
+  private static final int VISIT_BATCH = 256;
+  
+  /**
+   * Traverses this array and all arrays nested in it.
+   *
+   * @param visitor the callbacks
+   * @return the visitor's result for this array
+   * @see MxVisitor
+   */
+  public <R> R accept(MxVisitor<R> visitor) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    return visit(this, visitor, false);
+  }
+  
+  /**
+   * Traverses this array and all arrays nested in it, visiting independent
+   * subtrees in parallel.  The visitor's callbacks must be thread-safe.
+   *
+   * @param visitor the callbacks
+   * @param pool the pool that runs the traversal, e.g. <code>ForkJoinPool.commonPool()</code>
+   * @return the visitor's result for this array
+   * @see MxVisitor
+   */
+  public <R> R accept(MxVisitor<R> visitor, ForkJoinPool pool) {
+    if (!MxLibrary.isLoaded())
+      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+    Object res[] = new Object[1];
+    pool.invoke(new VisitTask<R>(this, visitor, res, 0));
+    return cast(res[0]);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static <R> R cast(Object obj) { return (R)obj; }
+  
+  private static <R> R visit(MxArray pm, MxVisitor<R> visitor, boolean parallel) {
+    try {  // the buffers passed to the visitor view the memory of pm
+      switch (pm.getClassID()) {
+        case CELL_CLASS:
+        case STRUCT_CLASS: {
+          int nfields = pm.isCell() ? 1 : pm.getNumberOfFields();
+          long n = pm.getNumberOfElements()*nfields;
+          if (n > Integer.MAX_VALUE)
+            throw new MatLibException("too many elements to visit: " + n);
+          Object res[] = new Object[(int)n];
+          new VisitTask<R>(pm, visitor, parallel, nfields, res, 0, res.length).compute();
+          List<R> list = Collections.unmodifiableList(MxArray.<List<R>>cast(Arrays.asList(res)));
+          return pm.isCell() ? visitor.visitCell(pm, list) : visitor.visitStruct(pm, list);
+        }
+        case LOGICAL_CLASS:
+          if (pm.isSparse()) return visitor.visitSparse(pm, pm.getSparseMatrix());
+          return visitor.visitLogical(pm, readOnly(pm.getNativeLogicals()));
+        case CHAR_CLASS:
+          return visitor.visitChar(pm, readOnly(pm.getNativeData()).asCharBuffer());
+        default:
+          if (!pm.isNumeric()) return visitor.visitOther(pm);
+          if (pm.isSparse()) return visitor.visitSparse(pm, pm.getSparseMatrix());
+          return visitor.visitNumeric(pm, readOnly(pm.getNativeData()), pm.isComplex() ? readOnly(pm.getNativeImagData()) : null);
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(pm);
+    }
+  }
+  
+  /** Returns a read-only view of <code>p</code>, or an empty buffer if there is no data. */
+  private static ByteBuffer readOnly(NativeData p) {
+    ByteBuffer b = ((p == null) || (p.size() == 0)) ? ByteBuffer.allocateDirect(0) : p.asByteBuffer();
+    return b.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+  }
+  
+  /**
+   * Visits either a range of children of a cell or struct array, storing the
+   * results in <code>res[from]</code> to <code>res[to - 1]</code>, or (in parallel
+   * mode) a single array, storing the result in <code>res[from]</code>.
+   */
+  private static final class VisitTask<R> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final MxArray pm;
+    private final MxVisitor<R> visitor;
+    private final boolean parallel, single;
+    private final int nfields;
+    private final Object res[];
+    private final int from, to;
+    
+    VisitTask(MxArray pm, MxVisitor<R> visitor, boolean parallel, int nfields, Object res[], int from, int to) {
+      this.pm = pm; this.visitor = visitor; this.parallel = parallel; this.single = false;
+      this.nfields = nfields; this.res = res; this.from = from; this.to = to;
+    }
+    
+    VisitTask(MxArray pm, MxVisitor<R> visitor, Object res[], int slot) {
+      this.pm = pm; this.visitor = visitor; this.parallel = true; this.single = true;
+      this.nfields = 0; this.res = res; this.from = slot; this.to = slot + 1;
+    }
+    
+    protected void compute() {
+      if (single) {
+        res[from] = visit(pm, visitor, true);
+        return;
+      }
+      if (parallel && (to - from > VISIT_BATCH)) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new VisitTask<R>(pm, visitor, true, nfields, res, from, mid), new VisitTask<R>(pm, visitor, true, nfields, res, mid, to));
+        return;
+      }
+      boolean cell = pm.isCell();
+      NativeLong index = new NativeLong();
+      List<ForkJoinTask<?>> forked = null;
+      for (int i = from; i < to; i++) {
+        index.setValue(i/nfields);
+        MxArray child = pm.borrow(cell ? MxLibrary.mxGetCell(pm, index) : MxLibrary.mxGetFieldByNumber(pm, index, i % nfields));
+        if (child == null)
+          res[i] = null;
+        else if (parallel && (child.isCell() || child.isStruct())) {
+          if (forked == null) forked = new ArrayList<ForkJoinTask<?>>();
+          forked.add(new VisitTask<R>(child, visitor, res, i).fork());
+        } else
+          res[i] = visit(child, visitor, parallel);
+      }
+      if (forked != null)
+        for (ForkJoinTask<?> t : forked)
+          t.join();
+    }
+  }
+  
+  /**
+   * Returns the contents of this char array as a string, like <code>mxArrayToString</code>
+   * but decoded in Java, so that no native string has to be allocated and freed.
+   * For character matrices, the characters are returned in column-major order.
+   *
+   * @return the string, or <code>null</code> if this is not a char array
+   * @see #getChars
+   */
   public String arrayToString() {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxArrayToString(this);
+    return isChar() ? getChars() : null;
   }
+
+  /**
+   * Returns the contents of this char array as a string.  For character matrices,
+   * the characters are returned in column-major order.
+   *
+   * @throws MatLibException if this is not a char array
+   * @see #charValues
+   * @see #charRows
+   */
   public String getChars() {
+    return new String(charValues());
+  }
+
+  /**
+   * Returns the rows of this char matrix as strings, e.g. the labels created by
+   * MATLAB's <code>char</code> function.  The column-major data is transposed in
+   * blocks, as for {@link #getDataAsMatrix}.  Rows keep the blanks that pad them
+   * to the same length.
+   *
+   * @return one string per row
+   * @throws MatLibException if this is not a 2-D char array
+   */
+  public String[] charRows() {
+    NativeData p = getCharData();
+    if (getDimensionCount() != 2)
+      throw new MatLibException("variable is not a matrix (num dim = " + getDimensionCount() + ")");
+    long M = getM(), N = getN();
+    if ((M > Integer.MAX_VALUE) || (N > Integer.MAX_VALUE))
+      throw new MatLibException("char matrix is too large: " + M + "x" + N);
+    char rows[][] = new char[(int)M][(int)N];
+    transposeFromNative(p, rows, (int)M, (int)N);
+    String res[] = new String[rows.length];
+    for (int i = 0; i < res.length; i++)
+      res[i] = new String(rows[i]);
+    return res;
+  }
+
+  /**
+   * Returns the strings in this cell array of strings (a <code>cellstr</code>).
+   *
+   * @return the strings in column-major order
+   * @see #cellstrValues(Map)
+   */
+  public String[] cellstrValues() {
+    return cellstrValues(null);
+  }
+
+  /**
+   * Returns the strings in this cell array of strings (a <code>cellstr</code>),
+   * replacing repeated strings with a single instance.  Each string is looked up
+   * in <code>pool</code>; if it is found, the pooled instance is returned in its
+   * place, and otherwise it is added to the pool.  Passing the same pool for several
+   * arrays shares the strings among them, e.g. for the categories of a table.
+   * <p>
+   * The cells are read with three native calls each (and without reading the full
+   * metadata of every cell), and their characters are decoded into a reused buffer.
+   *
+   * @param pool the strings seen so far, or <code>null</code> to not deduplicate
+   * @return the strings in column-major order; cells that have not been set are <code>null</code>
+   * @throws MatLibException if this is not a cell array, or if a cell is not a char array
+   */
+  public String[] cellstrValues(Map<String, String> pool) {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetChars(this);
+    if (!isCell())
+      throw new MatLibException("not a cell array (class " + getClassName() + ")");
+    String res[] = new String[getDataLength()];
+    NativeBackend backend = NativeBackend.get();
+    NativeLong index = new NativeLong();
+    char buf[] = new char[64];
+    for (int i = 0; i < res.length; i++) {
+      index.setValue(i);
+      MxArray cell = MxLibrary.mxGetCell(this, index);
+      if (cell == null) continue;
+      if (MxLibrary.mxGetClassID(cell) != CHAR_CLASS)
+        throw new MatLibException("cell " + i + " is not a char array");
+      long n = MxLibrary.mxGetNumberOfElements(cell).longValue();
+      if (n > Integer.MAX_VALUE)
+        throw new MatLibException("string in cell " + i + " is too long: " + n);
+      if (n > buf.length)
+        buf = new char[Math.max((int)n, Math.min(2*buf.length, Integer.MAX_VALUE/2))];
+      if (n > 0) {
+        NativeData p = backend.getData(cell, 2*n);
+        if (p == null)
+          throw new MatLibException("mxGetData returned null for cell " + i);
+        p.read(0, buf, 0, (int)n);
+      }
+      String str = new String(buf, 0, (int)n);
+      if (pool != null) {
+        String prev = pool.get(str);
+        if (prev == null)
+          pool.put(str, str);
+        else
+          str = prev;
+      }
+      res[i] = str;
+    }
+    NativeCleaner.reachabilityFence(this);  // the cells belong to this array
+    return res;
   }
+
   public int getString(byte str[], long strlen) {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
@@ -427,10 +2621,5 @@ public class MxArray extends MxArrayInfo {
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
     return MxLibrary.mxGetNzmax(this).longValue();
   }
-  
-  
-  /** Overrides {@link MxArrayInfo#finalize} as to not destroy the native
-   * <code>struct MxArray</struct> automatically when this instance is gc'd. */
-  protected void finalize() { }
 
 }
@@ -21,6 +21,7 @@
 package edu.northwestern.rocs.jnmatlib;
 import com.sun.jna.*;
 import com.sun.jna.ptr.*;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * This class is used to provide metadata on MATLAB variables.
@@ -37,6 +38,13 @@ import com.sun.jna.ptr.*;
  * Instances of this class cannot be directly created, but are returned by
  * {@link MatFile#getVariableInfo}.
  * <p>
+ * Native arrays returned by {@link MatFile} or created by the factory methods
+ * in {@link MxArray} are owned by their Java object and should be destroyed
+ * with {@link #close} (e.g., in a try-with-resources statement) or by an
+ * {@link MxArena}.  As a safety net, arrays that are neither closed nor in an
+ * arena are destroyed when their Java object becomes unreachable.  Arrays
+ * obtained from cells or fields of other arrays belong to their parent.
+ * <p>
  * All methods may throw a {@link MatLibException} if the native library
  * has not been loaded or any of the native functions returns unexpected output.
  *
@@ -46,7 +54,7 @@ import com.sun.jna.ptr.*;
  * @author Christian Thiemann
  * @version 1.0
  */
-public class MxArrayInfo extends PointerType {
+public class MxArrayInfo extends PointerType implements AutoCloseable {
 
   // enum mxClassID
   public static final int UNKNOWN_CLASS = 0;
@@ -81,8 +89,193 @@ public class MxArrayInfo extends PointerType {
     null
   };
   
-  /** True if the native counter-part has to be destroyed by us. */
-  private boolean doomed;
+  /** Destroys the native array if this object owns it, or <code>null</code>. */
+  private NativeCleaner.Cleanable cleanable;
+  /** The action of <code>cleanable</code>, shared with the objects passed to {@link #keepAlive}. */
+  private Release release;
+  /** The array whose native array contains this one (for cells and fields), or <code>null</code>. */
+  private MxArrayInfo owner;
+  
+  /**
+   * Destroys a native array once its owner and all objects that keep it alive
+   * have been cleaned, or right away when the owner is closed.
+   */
+  private static final class Release implements Runnable {
+    private final Pointer p;
+    private int holders = 1;
+    private boolean done = false;
+    
+    Release(Pointer p) { this.p = p; }
+    
+    /** Adds a holder, unless the array has already been destroyed or given away. */
+    synchronized boolean retain() {
+      if (done) return false;
+      holders++;
+      return true;
+    }
+    
+    /** Called by the cleaner when the owner or another holder has become unreachable. */
+    public void run() {
+      synchronized (this) {
+        if (done || (--holders > 0)) return;
+        done = true;
+      }
+      MxLibrary.mxDestroyArray(new MxArrayInfo(p));
+    }
+    
+    /** Destroys the array now, regardless of the other holders. */
+    void destroy() {
+      synchronized (this) {
+        if (done) return;
+        done = true;
+      }
+      MxLibrary.mxDestroyArray(new MxArrayInfo(p));
+    }
+    
+    /** Forgets the array without destroying it. */
+    synchronized void abandon() { done = true; }
+  }
+  
+  public MxArrayInfo() { super(); }
+  MxArrayInfo(Pointer p) { super(p); }
+  
+  /**
+   * Makes <code>pm</code> the owner of its native array: the array is destroyed by
+   * {@link #close}, by the current {@link MxArena}, or when <code>pm</code> becomes
+   * unreachable.
+   *
+   * @return <code>pm</code>
+   */
+  static <T extends MxArrayInfo> T own(T pm) {
+    Release r = new Release(pm.getPointer());
+    ((MxArrayInfo)pm).release = r;
+    ((MxArrayInfo)pm).cleanable = NativeCleaner.register(pm, r);
+    MxArena arena = MxArena.current();
+    if (arena != null) arena.add(pm);
+    return pm;
+  }
+  
+  /** Returns <code>true</code> if the native array is destroyed together with this object. */
+  public boolean isOwned() { return cleanable != null; }
+  
+  /**
+   * Gives up ownership of the native array, which must then be destroyed by someone
+   * else, e.g. the struct or cell array in which it has been stored.
+   */
+  void disown() {
+    if (cleanable == null) return;
+    cleanable.cancel();
+    cleanable = null;
+    release.abandon();
+    release = null;
+  }
+  
+  /**
+   * Keeps the native array from being destroyed by the cleaner while
+   * <code>holder</code> is reachable, even if this object is not, e.g. for buffers
+   * that view the array's data.  {@link #close} still destroys the array right away.
+   * Does nothing if neither this object nor the array it belongs to owns the native array.
+   */
+  void keepAlive(Object holder) {
+    Release r = (owner != null) ? owner.release : release;
+    if ((r != null) && r.retain())
+      NativeCleaner.register(holder, r);
+  }
+
+  /**
+   * Returns <code>child</code>, an array stored in this one (a cell or a field), after
+   * making it refer to the owner of this array.  The owner is thus reachable as long
+   * as <code>child</code> is, and the native memory that <code>child</code> is part of
+   * is not destroyed by the cleaner while it is in use.
+   *
+   * @return <code>child</code>, which may be <code>null</code>
+   */
+  <T extends MxArrayInfo> T borrow(T child) {
+    if (child != null)
+      ((MxArrayInfo)child).owner = (owner != null) ? owner : this;
+    return child;
+  }
+
+  /**
+   * Metadata of the native array, read once through <code>libmx</code>.  Nothing in
+   * this library changes the class, dimensions, or fields of an existing array.
+   * Snapshots are immutable; a change replaces the whole snapshot.
+   */
+  private static final class Metadata {
+    final int classID;
+    final String className;
+    final boolean complex, sparse, global;
+    final long elementSize, numel;
+    final long dims[];
+    final String fieldNames[];  // null if not a struct
+    final NativeData data;  // cached by MxArray for element access, or null
+    
+    Metadata(MxArrayInfo pm) {
+      if (!MxLibrary.isLoaded())
+        throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
+      if (pm.getPointer() == null)
+        throw new MatLibException("array has been closed");
+      classID = MxLibrary.mxGetClassID(pm);
+      className = MxLibrary.mxGetClassName(pm);
+      complex = MxLibrary.mxIsComplex(pm);
+      sparse = MxLibrary.mxIsSparse(pm);
+      global = MxLibrary.mxIsFromGlobalWS(pm);
+      elementSize = MxLibrary.mxGetElementSize(pm).longValue();
+      numel = MxLibrary.mxGetNumberOfElements(pm).longValue();
+      dims = MxLibrary.mxGetDimensions(pm).longValues(MxLibrary.mxGetNumberOfDimensions(pm).intValue());
+      if (classID == STRUCT_CLASS) {
+        fieldNames = new String[MxLibrary.mxGetNumberOfFields(pm)];
+        for (int i = 0; i < fieldNames.length; i++)
+          fieldNames[i] = MxLibrary.mxGetFieldNameByNumber(pm, i);
+      } else
+        fieldNames = null;
+      data = null;
+    }
+    
+    /** Copies <code>m</code>, replacing the cached data region. */
+    Metadata(Metadata m, NativeData data) {
+      classID = m.classID;
+      className = m.className;
+      complex = m.complex;
+      sparse = m.sparse;
+      global = m.global;
+      elementSize = m.elementSize;
+      numel = m.numel;
+      dims = m.dims;
+      fieldNames = m.fieldNames;
+      this.data = data;
+    }
+  }
+  
+  private volatile Metadata meta;
+  private static final AtomicReferenceFieldUpdater<MxArrayInfo, Metadata> META =
+    AtomicReferenceFieldUpdater.newUpdater(MxArrayInfo.class, Metadata.class, "meta");
+  
+  /** Returns the metadata, reading it from the native array on first use. */
+  private Metadata meta() {
+    Metadata m = meta;
+    if (m == null) meta = m = new Metadata(this);
+    return m;
+  }
+  
+  /**
+   * Re-reads the metadata from the native array.  The class, dimensions, and fields
+   * are read only once and then cached, so this method has to be called after
+   * modifying them directly through {@link MxLibrary} (e.g., with <code>mxSetDimensions</code>).
+   */
+  public void refresh() { meta = null; }
+  
+  /** Returns the data region that {@link MxArray} cached together with the metadata, or <code>null</code>. */
+  NativeData getCachedData() { return meta().data; }
+  
+  /**
+   * Caches a data region together with the metadata, so that it is dropped when the metadata is.
+   * Nothing is cached if the metadata is refreshed concurrently.
+   */
+  void setCachedData(NativeData data) {
+    Metadata m = meta();
+    META.compareAndSet(this, m, new Metadata(m, data));
+  }
 
   /**
    * Asserts the variable's underlying data type. Every <code>MxArray</code>
@@ -108,145 +301,107 @@ public class MxArrayInfo extends PointerType {
    * @see #isUint64
    */
   public boolean isClass(String classname) {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsClass(this, classname);
+    return meta().className.equals(classname);
   }
   
   /** @see #isClass */
   public boolean isCell() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsCell(this);
+    return meta().classID == CELL_CLASS;
   }
   
   /** @see #isClass */
   public boolean isChar() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsChar(this);
+    return meta().classID == CHAR_CLASS;
   }
   
   /** @see #isClass */
   public boolean isStruct() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsStruct(this);
+    return meta().classID == STRUCT_CLASS;
   }
   
   /** @see #isClass */
   public boolean isLogical() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsLogical(this);
+    return meta().classID == LOGICAL_CLASS;
   }
   
   /** @see #isClass */
   public boolean isNumeric() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsNumeric(this);
+    int cid = meta().classID;
+    return (cid >= DOUBLE_CLASS) && (cid <= UINT64_CLASS);
   }
   
   /** @see #isClass */
   public boolean isDouble() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsDouble(this);
+    return meta().classID == DOUBLE_CLASS;
   }
   
   /** @see #isClass */
   public boolean isSingle() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsSingle(this);
+    return meta().classID == SINGLE_CLASS;
   }
   
   /** @see #isClass */
   public boolean isInt8() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsInt8(this);
+    return meta().classID == INT8_CLASS;
   }
   
   /** @see #isClass */
   public boolean isUint8() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsUint8(this);
+    return meta().classID == UINT8_CLASS;
   }
   
   /** @see #isClass */
   public boolean isInt16() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsInt16(this);
+    return meta().classID == INT16_CLASS;
   }
   
   /** @see #isClass */
   public boolean isUint16() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsUint16(this);
+    return meta().classID == UINT16_CLASS;
   }
   
   /** @see #isClass */
   public boolean isInt32() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsInt32(this);
+    return meta().classID == INT32_CLASS;
   }
   
   /** @see #isClass */
   public boolean isUint32() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsUint32(this);
+    return meta().classID == UINT32_CLASS;
   }
   
   /** @see #isClass */
   public boolean isInt64() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsInt64(this);
+    return meta().classID == INT64_CLASS;
   }
   
   /** @see #isClass */
   public boolean isUint64() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsUint64(this);
+    return meta().classID == UINT64_CLASS;
   }
   
 
   /** Returns <code>true</code> if the underlying data is stored as a sparse matrix. */
   public boolean isSparse() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsSparse(this);
+    return meta().sparse;
   }
   
   /** Returns <code>true</code> if the underlying data are complex numbers. */
   public boolean isComplex() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsComplex(this);
+    return meta().complex;
   }
   
 
   /** Returns <code>true</code> if the variable lives in the global workspace. */
   public boolean isFromGlobalWS() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsFromGlobalWS(this);
+    return meta().global;
   }
   
 
   /** Returns <code>true</code> if variable data is exactly one logical (<code>boolean</code>). */
   public boolean isLogicalScalar() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxIsLogicalScalar(this);
+    Metadata m = meta();
+    return (m.classID == LOGICAL_CLASS) && (m.numel == 1);
   }
   
 
@@ -259,9 +414,7 @@ public class MxArrayInfo extends PointerType {
    * @see #isClass
    */
   public int getClassID() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetClassID(this);
+    return meta().classID;
   }
   
   /**
@@ -271,9 +424,7 @@ public class MxArrayInfo extends PointerType {
    * @see #isClass
    */
   public String getClassName() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetClassName(this);
+    return meta().className;
   }
   
 
@@ -288,9 +439,7 @@ public class MxArrayInfo extends PointerType {
    * @see #getN
    */
   public int getDimensionCount() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetNumberOfDimensions(this).intValue();
+    return meta().dims.length;
   }
   
   /** 
@@ -305,10 +454,25 @@ public class MxArrayInfo extends PointerType {
    * @see #getN
    */
   public int[] getDimensions() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetDimensions(this).intValues(getDimensionCount());
+    long dims[] = meta().dims;
+    int res[] = new int[dims.length];
+    for (int i = 0; i < dims.length; i++) {
+      if (dims[i] > Integer.MAX_VALUE)
+        throw new MatLibException("dimension " + i + " is too large for an int: " + dims[i] + "; use getLongDimensions()");
+      res[i] = (int)dims[i];
+    }
+    return res;
+  }  
+  /**
+   * Get this variable's dimensions as <code>long</code> values.
+   *
+   * @return array of dimensions
+   * @see #getDimensions
+   */
+  public long[] getLongDimensions() {
+    return meta().dims.clone();
   }
+
   
 
   /** 
@@ -322,9 +486,7 @@ public class MxArrayInfo extends PointerType {
    * @see #getN
    */
   public long getM() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetM(this).longValue();
+    return meta().dims[0];
   }
   
   /** 
@@ -338,42 +500,136 @@ public class MxArrayInfo extends PointerType {
    * @see #getM
    */
   public long getN() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetN(this).longValue();
+    long dims[] = meta().dims, n = 1;
+    for (int i = 1; i < dims.length; i++) n *= dims[i];
+    return n;
   }
   
 
+  /**
+   * Returns the column-major linear index of the element in row <code>i</code> and
+   * column <code>j</code> (both 0-based).  As in MATLAB, the column subscript spans
+   * all dimensions after the first.  This is computed in Java, without a native call.
+   *
+   * @throws IndexOutOfBoundsException if a subscript is out of range
+   * @see #getLinearIndex(int...)
+   */
+  public long getLinearIndex(int i, int j) {
+    long dims[] = meta().dims;
+    long M = dims[0], N = (dims.length == 2) ? dims[1] : trailing(dims, 1);
+    if ((i < 0) || (i >= M) || (j < 0) || (j >= N))
+      throw new IndexOutOfBoundsException("subscripts (" + i + ", " + j + ") out of range for " + M + " x " + N + " array");
+    return i + j*M;
+  }
+  
+  /**
+   * Returns the column-major linear index of the element at the 0-based subscripts
+   * <code>(i, j, k)</code>.  The last subscript spans all dimensions after the second.
+   *
+   * @throws IndexOutOfBoundsException if a subscript is out of range
+   * @see #getLinearIndex(int...)
+   */
+  public long getLinearIndex(int i, int j, int k) {
+    long dims[] = meta().dims;
+    long M = dims[0], N = dims[1], P = trailing(dims, 2);
+    if ((i < 0) || (i >= M) || (j < 0) || (j >= N) || (k < 0) || (k >= P))
+      throw new IndexOutOfBoundsException("subscripts (" + i + ", " + j + ", " + k + ") out of range for " + M + " x " + N + " x " + P + " array");
+    return i + (j + k*N)*M;
+  }
+  
+  /**
+   * Returns the column-major linear index of the element at the given 0-based
+   * subscripts.  As in MATLAB, the last subscript spans all remaining dimensions,
+   * subscripts beyond the number of dimensions must be 0, a single subscript is a
+   * linear index itself, and no subscripts denote the first element.  This replaces
+   * <code>mxCalcSingleSubscript</code>.
+   *
+   * @throws IndexOutOfBoundsException if a subscript is out of range
+   */
+  public long getLinearIndex(int... subs) {
+    long dims[] = meta().dims;
+    long index = 0, stride = 1;
+    for (int s = 0; s < subs.length; s++) {
+      long extent = (s == subs.length - 1) ? trailing(dims, s) : (s < dims.length) ? dims[s] : 1;
+      if ((subs[s] < 0) || (subs[s] >= extent))
+        throw new IndexOutOfBoundsException("subscript " + (s + 1) + " (" + subs[s] + ") out of range for " + dimensionString(dims) + " array");
+      index += subs[s]*stride;
+      stride *= extent;
+    }
+    return index;
+  }
+  
+  /** Returns the product of the dimensions starting at <code>from</code>, which is 1 if there are none. */
+  private static long trailing(long dims[], int from) {
+    long n = 1;
+    for (int i = from; i < dims.length; i++) n *= dims[i];
+    return n;
+  }
+  
+  private static String dimensionString(long dims[]) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < dims.length; i++)
+      sb.append((i > 0) ? " x " : "").append(dims[i]);
+    return sb.toString();
+  }
+  
   /** Returns the size of this variable's underlying data elements (in bytes per element). */
   public long getElementSize() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetElementSize(this).longValue();
+    return meta().elementSize;
   }
   
   /** Returns the number of values in this variable. */
   public long getNumberOfElements() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    return MxLibrary.mxGetNumberOfElements(this).longValue();
+    return meta().numel;
   }
   
 
+  /**
+   * Destroys the native array if this object owns it, and detaches this object from it.
+   * Arrays that belong to a parent array (cells and fields) are not destroyed.  This
+   * object must not be used afterwards.  Calling this method more than once has no
+   * effect.
+   */
+  public void close() {
+    if (cleanable == null) return;
+    cleanable.cancel();
+    cleanable = null;
+    release.destroy();
+    release = null;
+    meta = null;
+    setPointer(null);
+  }
+  
+  /**
+   * Destroys the native array.  For arrays owned by this object, this is the same as
+   * {@link #close}; otherwise, <code>mxDestroyArray</code> is called regardless of ownership.
+   */
   public void destroy() {
     if (!MxLibrary.isLoaded())
       throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    MxLibrary.mxDestroyArray(this);
+    if (cleanable != null)
+      close();
+    else if (getPointer() != null) {
+      MxLibrary.mxDestroyArray(this);
+      meta = null;
+      setPointer(null);
+    }
   }
   
 
 
+  /** Returns the field names from a single metadata snapshot. */
+  private String[] fieldNames() {
+    String names[] = meta().fieldNames;
+    if (names == null)
+      throw new MatLibException("variable is not a struct");
+    return names;
+  }
+
   /** Returns the number of fields this variable has (assuming it's of type <code>struct</code>). */
   public int getNumberOfFields() {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    if (!isStruct())
-      throw new MatLibException("variable is not a struct");
-    return MxLibrary.mxGetNumberOfFields(this);
+    String names[] = fieldNames();
+    return names.length;
   }
   
   /**
@@ -383,13 +639,10 @@ public class MxArrayInfo extends PointerType {
    * @return field's name
    */
   public String getFieldName(int index) {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    if (!isStruct())
-      throw new MatLibException("variable is not a struct");
-    if ((index < 0) && (index >= getNumberOfFields()))
+    String names[] = fieldNames();
+    if ((index < 0) || (index >= names.length))
       throw new ArrayIndexOutOfBoundsException(index);
-    return MxLibrary.mxGetFieldNameByNumber(this, index);
+    return names[index];
   }
   
   /**
@@ -399,21 +652,11 @@ public class MxArrayInfo extends PointerType {
    * @return field's index, or <code>-1</code> on failure
    */
   public int getFieldIndex(String name) {
-    if (!MxLibrary.isLoaded())
-      throw new MatLibException("MxLibrary (libmx) not loaded", MxLibrary.getError());
-    if (!isStruct())
-      throw new MatLibException("variable is not a struct");
-    return MxLibrary.mxGetFieldNumber(this, name);
-  }
-
-  
-  /**
-   * Overrides {@link Object#finalize} in order to call {@link MxLibrary#mxDestroyArray}
-   * as required for <code>struct MxArray</code>s returned by {@link MatLibrary#matGetVariableInfo}.
-   */
-  protected void finalize() {
-    if (MxLibrary.isLoaded() && doomed)
-      MxLibrary.mxDestroyArray(this);
+    String names[] = fieldNames();
+    for (int i = 0; i < names.length; i++)
+      if (names[i].equals(name))
+        return i;
+    return -1;
   }
 
 }
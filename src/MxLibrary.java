@@ -88,7 +88,7 @@ public class MxLibrary {
   // typedef ptrdiff_t mwSignedIndex -> NativeLong
   // typedef size_t mxSize -> NativeLong
   public static native int mxAddField(MxArray pm, String fieldname);
-  public static native String mxArrayToString(MxArray array_ptr);  // FIXME: multibyte characters? returns char*
+  public static native Pointer mxArrayToString(MxArray array_ptr);  // returns char* in the locale encoding, free with mxFree
   //public static native void mxAssert(int expr, String error_message);
   //public static native void mxAssertS(int expr, String error_message);
   private static native NativeLong mxCalcSingleSubscript_730(MxArrayInfo pm, NativeLong nsubs, NativeLongArray subs);
@@ -144,7 +144,7 @@ public class MxLibrary {
   private static native MxArray mxGetCell_730(MxArray pm, NativeLong index);
     public static MxArray mxGetCell(MxArray pm, NativeLong index) {
       return mxGetCell_730(pm, index); }
-  public static native String mxGetChars(MxArray array_ptr);  // FIXME: multibyte? returns mxChar*
+  public static native Pointer mxGetChars(MxArray array_ptr);  // returns mxChar* (UTF-16 code units, not NUL-terminated)
   public static native int mxGetClassID(MxArrayInfo pm);
   public static native String mxGetClassName(MxArrayInfo pm);
   public static native Pointer mxGetData(MxArray pm);
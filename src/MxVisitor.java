@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import java.nio.*;
+import java.util.List;
+
+/**
+ * Callbacks for traversing a (nested) MATLAB array with {@link MxArray#accept}.
+ * The traversal is a post-order fold: the elements of a cell array and the
+ * field values of a struct array are visited first, and their results are passed
+ * to {@link #visitCell} or {@link #visitStruct}.  The result of the root array is
+ * returned by <code>accept</code>.
+ * <p>
+ * The data of numeric, char and logical arrays is passed as read-only buffers in
+ * native byte order that view the native memory directly, so nothing is copied and
+ * no values are boxed.  The buffers, like the <code>MxArray</code>s passed to the
+ * callbacks, belong to the traversed array and must not be used after it has been
+ * destroyed.  The class and dimensions of an array can be queried from the
+ * <code>MxArray</code> argument.
+ * <p>
+ * When traversing in parallel, the callbacks for different subtrees are called
+ * concurrently from the threads of a <code>ForkJoinPool</code>, so they must be
+ * thread-safe.  The callbacks for the elements of a cell or struct array are
+ * always completed before the callback for the array itself.
+ *
+ * @see MxArray#accept(MxVisitor)
+ * @see MxArray#accept(MxVisitor, java.util.concurrent.ForkJoinPool)
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public interface MxVisitor<R> {
+  
+  /**
+   * Visits a non-sparse numeric array.
+   *
+   * @param pm the array; {@link MxArray#getClassID} tells how to read the buffers
+   * @param re the real data in column-major order
+   * @param im the imaginary data, or <code>null</code> if the array is real
+   */
+  R visitNumeric(MxArray pm, ByteBuffer re, ByteBuffer im);
+  
+  /**
+   * Visits a sparse (double or logical) matrix.
+   *
+   * @param pm the array
+   * @param sm the matrix, as returned by {@link MxArray#getSparseMatrix}
+   */
+  R visitSparse(MxArray pm, SparseMatrix sm);
+  
+  /**
+   * Visits a char array.
+   *
+   * @param pm the array
+   * @param chars the UTF-16 code units in column-major order
+   */
+  R visitChar(MxArray pm, CharBuffer chars);
+  
+  /**
+   * Visits a non-sparse logical array.
+   *
+   * @param pm the array
+   * @param values the values in column-major order, one byte (0 or 1) each
+   */
+  R visitLogical(MxArray pm, ByteBuffer values);
+  
+  /**
+   * Visits a cell array after its elements.
+   *
+   * @param pm the array
+   * @param elements the results of the elements in column-major order; elements
+   *   that have not been set are <code>null</code>
+   */
+  R visitCell(MxArray pm, List<R> elements);
+  
+  /**
+   * Visits a struct array after its field values.
+   *
+   * @param pm the array; {@link MxArray#getFieldName} gives the field names
+   * @param values the results of the field values, with the value of field
+   *   <code>f</code> of element <code>i</code> (in column-major order) at index
+   *   <code>i*pm.getNumberOfFields() + f</code>; values that have not been set are
+   *   <code>null</code>
+   */
+  R visitStruct(MxArray pm, List<R> values);
+  
+  /**
+   * Visits an array of any other class, e.g. a function handle or an object.
+   *
+   * @param pm the array
+   */
+  R visitOther(MxArray pm);
+  
+  /**
+   * A visitor whose callbacks all return {@link #defaultResult}, to be extended by
+   * visitors that only handle some kinds of arrays.
+   */
+  public static abstract class Adapter<R> implements MxVisitor<R> {
+    
+    /** Returns the result of the callbacks that are not overridden; <code>null</code> by default. */
+    protected R defaultResult(MxArray pm) { return null; }
+    
+    public R visitNumeric(MxArray pm, ByteBuffer re, ByteBuffer im) { return defaultResult(pm); }
+    public R visitSparse(MxArray pm, SparseMatrix sm) { return defaultResult(pm); }
+    public R visitChar(MxArray pm, CharBuffer chars) { return defaultResult(pm); }
+    public R visitLogical(MxArray pm, ByteBuffer values) { return defaultResult(pm); }
+    public R visitCell(MxArray pm, List<R> elements) { return defaultResult(pm); }
+    public R visitStruct(MxArray pm, List<R> values) { return defaultResult(pm); }
+    public R visitOther(MxArray pm) { return defaultResult(pm); }
+  }
+  
+}
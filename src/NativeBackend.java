@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import com.sun.jna.*;
+
+/**
+ * The binding layer used to get at the data of <code>mxArray</code>s.  The default
+ * implementation goes through the JNA direct mappings in {@link MxLibrary}.  For Java 22
+ * and later, the multi-release jar also contains a backend built on <code>java.lang.foreign</code>
+ * downcall handles and memory segments, which is used if the Java runtime permits it
+ * (i.e., unless native access has been denied with <code>--enable-native-access</code>
+ * or <code>--illegal-native-access=deny</code>).
+ * <p>
+ * The backend is selected once, when this class is initialized, and can be chosen
+ * with the system property <code>jnmatlib.backend</code>: <code>jna</code> always uses
+ * JNA, <code>ffm</code> or <code>auto</code> (the default) use the foreign function
+ * backend if it can be loaded and fall back to JNA otherwise.
+ *
+ * @see JNMatLib#getBackend
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+abstract class NativeBackend {
+  
+  /** Name of the system property that selects the backend. */
+  static final String PROPERTY = "jnmatlib.backend";
+  
+  private static final NativeBackend instance = select(System.getProperty(PROPERTY, "auto"));
+  
+  /** Returns the backend selected at start-up. */
+  static NativeBackend get() { return instance; }
+  
+  private static NativeBackend select(String name) {
+    if (!name.equals("jna")) {
+      try {
+        return (NativeBackend)Class.forName(NativeBackend.class.getPackage().getName() + ".ForeignBackend").getDeclaredConstructor().newInstance();
+      } catch (Throwable t) {
+        /* not Java 22 or later, or native access denied; use JNA */
+      }
+    }
+    return new Jna();
+  }
+  
+  /** Returns the short name of this backend (<code>"jna"</code> or <code>"ffm"</code>). */
+  abstract String getName();
+  
+  /**
+   * Wraps the <code>size</code> bytes at <code>p</code>.  Returns an empty region if
+   * <code>size</code> is 0 (MATLAB has no data pointer for empty arrays), and
+   * <code>null</code> if <code>p</code> is <code>null</code> otherwise.
+   */
+  abstract NativeData wrap(Pointer p, long size);
+  
+  /** Returns the first <code>size</code> bytes of the array's real data (<code>mxGetData</code>), or <code>null</code>, as for {@link #wrap}. */
+  abstract NativeData getData(MxArray pm, long size);
+  
+  /** Returns the first <code>size</code> bytes of the array's imaginary data (<code>mxGetImagData</code>), or <code>null</code>, as for {@link #wrap}. */
+  abstract NativeData getImagData(MxArray pm, long size);
+  
+  /** Returns the first <code>size</code> bytes of the array's logical data (<code>mxGetLogicals</code>), or <code>null</code>, as for {@link #wrap}. */
+  abstract NativeData getLogicals(MxArray pm, long size);
+  
+  /** The JNA backend, which calls the direct mappings in {@link MxLibrary}. */
+  static class Jna extends NativeBackend {
+    String getName() { return "jna"; }
+    NativeData wrap(Pointer p, long size) { return ((p == null) && (size > 0)) ? null : new NativeData.Jna(p, size); }
+    NativeData getData(MxArray pm, long size) { return wrap(MxLibrary.mxGetData(pm), size); }
+    NativeData getImagData(MxArray pm, long size) { return wrap(MxLibrary.mxGetImagData(pm), size); }
+    NativeData getLogicals(MxArray pm, long size) { return wrap(MxLibrary.mxGetLogicals(pm), size); }
+  }
+  
+}
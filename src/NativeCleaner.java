@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+ * Runs clean-up actions for native resources when the Java objects owning them
+ * become phantom reachable.  This works like <code>java.lang.ref.Cleaner</code>
+ * (which requires Java 9) and replaces the finalizers that were used before: the
+ * actions must not refer to the owning objects, and they run in a single daemon
+ * thread.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+class NativeCleaner {
+  
+  private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+  /** Keeps the registered references reachable until they are cleaned. */
+  private static final Set<Cleanable> registered = Collections.synchronizedSet(new HashSet<Cleanable>());
+  
+  static {
+    Thread t = new Thread("JNMatLib Cleaner") {
+      public void run() {
+        while (true) {
+          try {
+            ((Cleanable)queue.remove()).clean();
+          } catch (InterruptedException e) {
+            /* never mind... */
+          } catch (Throwable t) {
+            /* the action failed, but the thread must go on */
+          }
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  /** A registered clean-up action. */
+  static class Cleanable extends PhantomReference<Object> {
+    private Runnable action;
+    
+    private Cleanable(Object owner, Runnable action) {
+      super(owner, queue);
+      this.action = action;
+    }
+    
+    /** Runs the action, unless it has already been run or cancelled. */
+    void clean() {
+      Runnable a = take();
+      if (a != null) a.run();
+    }
+    
+    /** Unregisters the action without running it. */
+    void cancel() { take(); }
+    
+    private synchronized Runnable take() {
+      Runnable a = action;
+      action = null;
+      registered.remove(this);
+      clear();
+      return a;
+    }
+  }
+  
+  /**
+   * Registers an action to be run when <code>owner</code> becomes phantom reachable.
+   *
+   * @return the handle used to run the action early or to cancel it
+   */
+  static Cleanable register(Object owner, Runnable action) {
+    Cleanable c = new Cleanable(owner, action);
+    registered.add(c);
+    return c;
+  }
+  
+  /**
+   * Keeps <code>obj</code> reachable at least until this method is called, like
+   * <code>Reference.reachabilityFence</code> (which requires Java 9).  Called after
+   * reading or writing the native memory of an owner, whose last other use may come
+   * before the native access has finished.
+   */
+  static void reachabilityFence(Object obj) {
+    if (obj != null)
+      synchronized (obj) { }
+  }
+  
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+import com.sun.jna.*;
+import java.nio.*;
+
+/**
+ * A bounded region of native memory, such as the data of an <code>mxArray</code>.
+ * The bulk <code>read</code> and <code>write</code> methods have the same signatures
+ * as those of JNA's {@link Pointer}, but every access is checked against the size
+ * of the region, so that a wrong element count results in an
+ * <code>IndexOutOfBoundsException</code> instead of a crash.  Instances are
+ * obtained from the current {@link NativeBackend}.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+abstract class NativeData {
+  
+  protected final long size;
+  
+  protected NativeData(long size) {
+    if (size < 0)
+      throw new IllegalArgumentException("size must be non-negative: " + size);
+    this.size = size;
+  }
+  
+  /** Returns the size of this region in bytes. */
+  long size() { return size; }
+  
+  /** Returns the part of this region starting <code>offset</code> bytes into it. */
+  abstract NativeData share(long offset);
+  
+  abstract void read(long offset, byte buf[], int index, int length);
+  abstract void read(long offset, short buf[], int index, int length);
+  abstract void read(long offset, char buf[], int index, int length);
+  abstract void read(long offset, int buf[], int index, int length);
+  abstract void read(long offset, long buf[], int index, int length);
+  abstract void read(long offset, float buf[], int index, int length);
+  abstract void read(long offset, double buf[], int index, int length);
+  
+  abstract byte getByte(long offset);
+  abstract short getShort(long offset);
+  abstract int getInt(long offset);
+  abstract long getLong(long offset);
+  abstract float getFloat(long offset);
+  abstract double getDouble(long offset);
+  
+  abstract void write(long offset, byte buf[], int index, int length);
+  abstract void write(long offset, short buf[], int index, int length);
+  abstract void write(long offset, char buf[], int index, int length);
+  abstract void write(long offset, int buf[], int index, int length);
+  abstract void write(long offset, long buf[], int index, int length);
+  abstract void write(long offset, float buf[], int index, int length);
+  abstract void write(long offset, double buf[], int index, int length);
+  
+  byte[] getByteArray(long offset, int length) { byte res[] = new byte[length]; read(offset, res, 0, length); return res; }
+  short[] getShortArray(long offset, int length) { short res[] = new short[length]; read(offset, res, 0, length); return res; }
+  char[] getCharArray(long offset, int length) { char res[] = new char[length]; read(offset, res, 0, length); return res; }
+  int[] getIntArray(long offset, int length) { int res[] = new int[length]; read(offset, res, 0, length); return res; }
+  long[] getLongArray(long offset, int length) { long res[] = new long[length]; read(offset, res, 0, length); return res; }
+  float[] getFloatArray(long offset, int length) { float res[] = new float[length]; read(offset, res, 0, length); return res; }
+  double[] getDoubleArray(long offset, int length) { double res[] = new double[length]; read(offset, res, 0, length); return res; }
+  
+  /**
+   * Returns this region as a direct buffer in native byte order, without copying.
+   * The buffer must not be used after the native memory has been freed.
+   */
+  ByteBuffer asByteBuffer() { return asByteBuffer(0, size); }
+  
+  /** Returns <code>length</code> bytes at <code>offset</code> as a direct buffer in native byte order, without copying. */
+  ByteBuffer asByteBuffer(long offset, long length) {
+    check(offset, length);
+    if (length > Integer.MAX_VALUE)
+      throw new MatLibException("native region of " + length + " bytes is too large for a buffer");
+    return byteBuffer(offset, (int)length).order(ByteOrder.nativeOrder());
+  }
+  
+  /** Returns part of this region as a direct buffer; called by {@link #asByteBuffer} after checking the bounds. */
+  protected abstract ByteBuffer byteBuffer(long offset, int length);
+  
+  /** Checks that <code>nbytes</code> bytes at <code>offset</code> lie within this region. */
+  protected void check(long offset, long nbytes) {
+    if ((offset < 0) || (nbytes < 0) || (offset > size - nbytes))
+      throw new IndexOutOfBoundsException("cannot access " + nbytes + " bytes at offset " + offset + " of native region of " + size + " bytes");
+  }
+  
+  /** Checks that <code>length</code> values fit into an array of length <code>bufLength</code> at <code>index</code>. */
+  protected static void checkArray(int bufLength, int index, int length) {
+    if ((index < 0) || (length < 0) || (index > bufLength - length))
+      throw new ArrayIndexOutOfBoundsException("cannot copy " + length + " values at index " + index + " of array of length " + bufLength);
+  }
+  
+  /** Native data accessed through a JNA {@link Pointer}. */
+  static class Jna extends NativeData {
+    private final Pointer p;
+    
+    Jna(Pointer p, long size) {
+      super(size);
+      if ((p == null) && (size > 0))
+        throw new IllegalArgumentException("null pointer for " + size + " bytes of data");
+      this.p = p;
+    }
+    
+    NativeData share(long offset) {
+      check(offset, 0);
+      return new Jna((p == null) ? null : p.share(offset), size - offset);
+    }
+    
+    void read(long offset, byte buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    void read(long offset, short buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 2L*length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    void read(long offset, char buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 2L*length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    void read(long offset, int buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 4L*length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    void read(long offset, long buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 8L*length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    void read(long offset, float buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 4L*length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    void read(long offset, double buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 8L*length);
+      if (length > 0) p.read(offset, buf, index, length);
+    }
+    
+    byte getByte(long offset) { check(offset, 1); return p.getByte(offset); }
+    short getShort(long offset) { check(offset, 2); return p.getShort(offset); }
+    int getInt(long offset) { check(offset, 4); return p.getInt(offset); }
+    long getLong(long offset) { check(offset, 8); return p.getLong(offset); }
+    float getFloat(long offset) { check(offset, 4); return p.getFloat(offset); }
+    double getDouble(long offset) { check(offset, 8); return p.getDouble(offset); }
+    
+    void write(long offset, byte buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    void write(long offset, short buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 2L*length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    void write(long offset, char buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 2L*length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    void write(long offset, int buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 4L*length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    void write(long offset, long buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 8L*length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    void write(long offset, float buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 4L*length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    void write(long offset, double buf[], int index, int length) {
+      checkArray(buf.length, index, length); check(offset, 8L*length);
+      if (length > 0) p.write(offset, buf, index, length);
+    }
+    
+    protected ByteBuffer byteBuffer(long offset, int length) {
+      return (length == 0) ? ByteBuffer.allocateDirect(0) : p.getByteBuffer(offset, length);
+    }
+  }
+  
+}
@@ -41,9 +41,13 @@ public class NativeLongArray extends PointerType {
    * @param ll the values
    */
   public NativeLongArray(long ll[]) {
-    Memory p = new Memory(ll.length*NativeLong.SIZE);
-    for (int i = 0; i < ll.length; i++)
-      p.setNativeLong(i*NativeLong.SIZE, new NativeLong(ll[i]));
+    Memory p = new Memory(Math.max(1, ll.length)*NativeLong.SIZE);
+    if (NativeLong.SIZE == 8)
+      p.write(0, ll, 0, ll.length);
+    else
+      for (int i = 0; i < ll.length; i++)
+        p.setInt(i*4L, (int)ll[i]);
+    setPointer(p);
   }
   
   /**
@@ -53,9 +57,13 @@ public class NativeLongArray extends PointerType {
    * @param ii the values
    */
   public NativeLongArray(int ii[]) {
-    Memory p = new Memory(ii.length*NativeLong.SIZE);
-    for (int i = 0; i < ii.length; i++)
-      p.setNativeLong(i*NativeLong.SIZE, new NativeLong(ii[i]));
+    Memory p = new Memory(Math.max(1, ii.length)*NativeLong.SIZE);
+    if (NativeLong.SIZE == 4)
+      p.write(0, ii, 0, ii.length);
+    else
+      for (int i = 0; i < ii.length; i++)
+        p.setLong(i*8L, ii[i]);
+    setPointer(p);
   }
   
   /**
@@ -78,8 +86,14 @@ public class NativeLongArray extends PointerType {
   public long[] longValues(int n, int off) {
     Pointer p = getPointer();
     long ll[] = new long[n];
-    for (int i = 0; i < n; i++)
-      ll[i] = p.getNativeLong((off + i)*NativeLong.SIZE).longValue();
+    if (NativeLong.SIZE == 8)
+      p.read(off*8L, ll, 0, n);
+    else {
+      int ii[] = new int[n];
+      p.read(off*4L, ii, 0, n);
+      for (int i = 0; i < n; i++)
+        ll[i] = ii[i];
+    }
     return ll;
   }
   
@@ -99,12 +113,25 @@ public class NativeLongArray extends PointerType {
    *
    * @param n number of values to retrieve
    * @param off index of first value to retrieve
+   * @throws MatLibException if a value does not fit into an <code>int</code>
    */
   public int[] intValues(int n, int off) {
     Pointer p = getPointer();
     int ii[] = new int[n];
-    for (int i = 0; i < n; i++)
-      ii[i] = p.getNativeLong((off + i)*NativeLong.SIZE).intValue();
+    if (NativeLong.SIZE == 4)
+      p.read(off*4L, ii, 0, n);
+    else {
+      long ll[] = new long[Math.min(n, 8192)];  // convert in chunks to limit scratch memory
+      for (int k = 0; k < n; k += ll.length) {
+        int m = Math.min(ll.length, n - k);
+        p.read((off + k)*8L, ll, 0, m);
+        for (int i = 0; i < m; i++) {
+          if (ll[i] != (int)ll[i])
+            throw new MatLibException("value " + ll[i] + " at index " + (off + k + i) + " does not fit into an int, use longValues() instead");
+          ii[k + i] = (int)ll[i];
+        }
+      }
+    }
     return ii;
   }
 
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+
+/**
+ * An N-dimensional view of the data of a MATLAB array that is not copied to Java.
+ * A view consists of the native data, an offset, and a size and a stride (in
+ * elements) for each dimension.  {@link MxArray#getNdView} returns a view of the
+ * whole array in MATLAB's column-major layout; {@link #slice}, {@link #range},
+ * {@link #block}, {@link #permute} and {@link #squeeze} derive new views by
+ * changing the offset, sizes and strides, without touching the data.  Values are
+ * read one at a time with {@link #getDouble(long...)} and {@link #getLong(long...)},
+ * or copied in bulk with {@link #toArray} and {@link #toDoubleArray}.
+ * <p>
+ * For example, the data of channel <code>c</code> at time <code>t</code> of a
+ * 4-D (time x channel x X x Y) recording, as a 2-D view, is
+ * <pre>
+ *   NdView frame = pm.getNdView().slice(0, t).slice(0, c);
+ * </pre>
+ * and all time points of a 10x10 spatial window of that channel, with time as the
+ * last dimension, are
+ * <pre>
+ *   NdView ch = pm.getNdView().slice(1, c);
+ *   NdView win = ch.block(new long[] { 0, x0, y0 }, new long[] { ch.getDimension(0), x0 + 10, y0 + 10 }).permute(1, 2, 0);
+ * </pre>
+ * Indices are 0-based.  A view keeps its array reachable, but it must not be used
+ * after the array has been closed or destroyed.  Views are immutable and can be
+ * shared among threads.
+ *
+ * @see MxArray#getNdView
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public final class NdView {
+  
+  private final Object owner;  // keeps the array, and thus its native data, reachable
+  private final NativeData data;
+  private final int classID;
+  private final int elsize;
+  private final long offset;  // in elements
+  private final long dims[], strides[];  // strides in elements
+  
+  /** Creates a column-major view of all of <code>data</code>. */
+  NdView(Object owner, NativeData data, int classID, long dims[]) {
+    this.owner = owner;
+    this.data = data;
+    this.classID = classID;
+    this.elsize = elementSize(classID);
+    this.offset = 0;
+    this.dims = dims.clone();
+    this.strides = new long[dims.length];
+    long stride = 1;
+    for (int d = 0; d < dims.length; d++) {
+      strides[d] = stride;
+      stride *= dims[d];
+    }
+    if (stride*elsize > data.size())
+      throw new MatLibException("native data of " + data.size() + " bytes is too small for " + stride + " elements");
+  }
+  
+  private NdView(NdView v, long offset, long dims[], long strides[]) {
+    this.owner = v.owner; this.data = v.data; this.classID = v.classID; this.elsize = v.elsize;
+    this.offset = offset; this.dims = dims; this.strides = strides;
+  }
+  
+  private static int elementSize(int classID) {
+    switch (classID) {
+      case MxArrayInfo.LOGICAL_CLASS: case MxArrayInfo.INT8_CLASS: case MxArrayInfo.UINT8_CLASS: return 1;
+      case MxArrayInfo.CHAR_CLASS: case MxArrayInfo.INT16_CLASS: case MxArrayInfo.UINT16_CLASS: return 2;
+      case MxArrayInfo.SINGLE_CLASS: case MxArrayInfo.INT32_CLASS: case MxArrayInfo.UINT32_CLASS: return 4;
+      case MxArrayInfo.DOUBLE_CLASS: case MxArrayInfo.INT64_CLASS: case MxArrayInfo.UINT64_CLASS: return 8;
+      default: throw new MatLibException("cannot view data class " + classID);
+    }
+  }
+  
+  /** Returns the data class, one of the <code>XXX_CLASS</code> constants of {@link MxArrayInfo}. */
+  public int getClassID() { return classID; }
+  
+  /** Returns the number of dimensions, which may be less than 2 after {@link #slice} or {@link #squeeze}. */
+  public int getDimensionCount() { return dims.length; }
+  
+  /** Returns the size of each dimension. */
+  public long[] getDimensions() { return dims.clone(); }
+  
+  /** Returns the size of dimension <code>dim</code>. */
+  public long getDimension(int dim) { checkDim(dim); return dims[dim]; }
+  
+  /** Returns the distance, in elements of the native data, between neighbors along each dimension. */
+  public long[] getStrides() { return strides.clone(); }
+  
+  /** Returns the number of elements in this view. */
+  public long getNumberOfElements() {
+    long n = 1;
+    for (long d : dims) n *= d;
+    return n;
+  }
+  
+  /** Returns <code>true</code> if the elements of this view are stored contiguously in column-major order. */
+  public boolean isContiguous() {
+    long stride = 1;
+    for (int d = 0; d < dims.length; d++) {
+      if ((dims[d] != 1) && (strides[d] != stride)) return false;
+      stride *= dims[d];
+    }
+    return true;
+  }
+  
+  private void checkDim(int dim) {
+    if ((dim < 0) || (dim >= dims.length))
+      throw new IndexOutOfBoundsException("dimension " + dim + " out of range for " + dims.length + "-D view");
+  }
+  
+  private void checkIndex(int dim, long index, long limit) {
+    if ((index < 0) || (index >= limit))
+      throw new IndexOutOfBoundsException("index " + index + " out of range for dimension " + dim + " of size " + dims[dim]);
+  }
+  
+  /**
+   * Returns the view at a fixed index along one dimension, which is removed.
+   *
+   * @param dim the dimension
+   * @param index the index along <code>dim</code>
+   */
+  public NdView slice(int dim, long index) {
+    checkDim(dim);
+    checkIndex(dim, index, dims[dim]);
+    return new NdView(this, offset + index*strides[dim], remove(dims, dim), remove(strides, dim));
+  }
+  
+  /**
+   * Returns the view of the indices <code>from</code> (inclusive) to <code>to</code>
+   * (exclusive) along one dimension.
+   */
+  public NdView range(int dim, long from, long to) {
+    return range(dim, from, to, 1);
+  }
+  
+  /**
+   * Returns the view of every <code>step</code>-th index from <code>from</code>
+   * (inclusive) to <code>to</code> (exclusive) along one dimension.
+   */
+  public NdView range(int dim, long from, long to, long step) {
+    checkDim(dim);
+    if ((from < 0) || (from > to) || (to > dims[dim]))
+      throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") out of range for dimension " + dim + " of size " + dims[dim]);
+    if (step <= 0)
+      throw new IllegalArgumentException("step must be positive: " + step);
+    long newDims[] = dims.clone(), newStrides[] = strides.clone();
+    newDims[dim] = (to - from + step - 1)/step;
+    newStrides[dim] *= step;
+    return new NdView(this, offset + from*strides[dim], newDims, newStrides);
+  }
+  
+  /**
+   * Returns the view of the sub-block from <code>from[d]</code> (inclusive) to
+   * <code>to[d]</code> (exclusive) along each dimension <code>d</code>.
+   */
+  public NdView block(long from[], long to[]) {
+    if ((from.length != dims.length) || (to.length != dims.length))
+      throw new IllegalArgumentException("expected " + dims.length + " bounds, got " + from.length + " and " + to.length);
+    NdView res = this;
+    for (int d = 0; d < dims.length; d++)
+      res = res.range(d, from[d], to[d]);
+    return res;
+  }
+  
+  /**
+   * Returns the view with the dimensions rearranged, like MATLAB's
+   * <code>permute</code>: dimension <code>d</code> of the result is dimension
+   * <code>order[d]</code> of this view.
+   *
+   * @param order a permutation of <code>0</code> to <code>getDimensionCount() - 1</code>
+   */
+  public NdView permute(int... order) {
+    if (order.length != dims.length)
+      throw new IllegalArgumentException("expected a permutation of " + dims.length + " dimensions, got " + order.length);
+    boolean seen[] = new boolean[dims.length];
+    long newDims[] = new long[dims.length], newStrides[] = new long[dims.length];
+    for (int d = 0; d < order.length; d++) {
+      checkDim(order[d]);
+      if (seen[order[d]])
+        throw new IllegalArgumentException("dimension " + order[d] + " appears twice in permutation");
+      seen[order[d]] = true;
+      newDims[d] = dims[order[d]];
+      newStrides[d] = strides[order[d]];
+    }
+    return new NdView(this, offset, newDims, newStrides);
+  }
+  
+  /** Returns the view with all dimensions of size 1 removed. */
+  public NdView squeeze() {
+    int n = 0;
+    for (long d : dims) if (d != 1) n++;
+    long newDims[] = new long[n], newStrides[] = new long[n];
+    for (int d = 0, k = 0; d < dims.length; d++)
+      if (dims[d] != 1) {
+        newDims[k] = dims[d];
+        newStrides[k++] = strides[d];
+      }
+    return new NdView(this, offset, newDims, newStrides);
+  }
+  
+  private static long[] remove(long a[], int i) {
+    long res[] = new long[a.length - 1];
+    System.arraycopy(a, 0, res, 0, i);
+    System.arraycopy(a, i + 1, res, i, a.length - i - 1);
+    return res;
+  }
+  
+  /** Returns the byte offset in the native data of the element at the given subscripts. */
+  private long byteOffset(long subs[]) {
+    if (subs.length != dims.length)
+      throw new IllegalArgumentException("expected " + dims.length + " subscripts, got " + subs.length);
+    long index = offset;
+    for (int d = 0; d < subs.length; d++) {
+      checkIndex(d, subs[d], dims[d]);
+      index += subs[d]*strides[d];
+    }
+    return index*elsize;
+  }
+  
+  /**
+   * Returns the element at the given subscripts, converted as described in
+   * {@link MxArray#doubleValues}.
+   */
+  public double getDouble(long... subs) {
+    long off = byteOffset(subs);
+    try {
+      switch (classID) {
+        case MxArrayInfo.DOUBLE_CLASS: return data.getDouble(off);
+        case MxArrayInfo.SINGLE_CLASS: return data.getFloat(off);
+        case MxArrayInfo.UINT64_CLASS: return Mat5.unsignedToDouble(data.getLong(off));
+        default: return getLongAt(off);
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(owner);
+    }
+  }
+  
+  /**
+   * Returns the element at the given subscripts, converted as described in
+   * {@link MxArray#longValues}.
+   */
+  public long getLong(long... subs) {
+    long off = byteOffset(subs);
+    try {
+      switch (classID) {
+        case MxArrayInfo.DOUBLE_CLASS: return (long)data.getDouble(off);
+        case MxArrayInfo.SINGLE_CLASS: return (long)data.getFloat(off);
+        default: return getLongAt(off);
+      }
+    } finally {
+      NativeCleaner.reachabilityFence(owner);
+    }
+  }
+  
+  /** Reads an integer, logical or char element, treating unsigned classes as unsigned. */
+  private long getLongAt(long off) {
+    switch (classID) {
+      case MxArrayInfo.LOGICAL_CLASS: case MxArrayInfo.INT8_CLASS: return data.getByte(off);
+      case MxArrayInfo.UINT8_CLASS: return data.getByte(off) & 0xFF;
+      case MxArrayInfo.INT16_CLASS: return data.getShort(off);
+      case MxArrayInfo.CHAR_CLASS: case MxArrayInfo.UINT16_CLASS: return data.getShort(off) & 0xFFFF;
+      case MxArrayInfo.INT32_CLASS: return data.getInt(off);
+      case MxArrayInfo.UINT32_CLASS: return data.getInt(off) & 0xFFFFFFFFL;
+      default: return data.getLong(off);
+    }
+  }
+  
+  /**
+   * Copies the elements of this view, in column-major order, into a new Java array
+   * of the same width as the data class, as returned by {@link MxArray#getRawData}
+   * (<code>char[]</code> for char arrays).  Runs of contiguous elements are copied
+   * with one bulk read each.
+   */
+  public Object toArray() {
+    long n = getNumberOfElements();
+    if (n > Integer.MAX_VALUE)
+      throw new MatLibException("view of " + n + " elements is too large for a Java array");
+    Object res;
+    switch (elsize) {
+      case 1: res = new byte[(int)n]; break;
+      case 2: res = (classID == MxArrayInfo.CHAR_CLASS) ? (Object)new char[(int)n] : new short[(int)n]; break;
+      case 4: res = (classID == MxArrayInfo.SINGLE_CLASS) ? (Object)new float[(int)n] : new int[(int)n]; break;
+      default: res = (classID == MxArrayInfo.DOUBLE_CLASS) ? (Object)new double[(int)n] : new long[(int)n];
+    }
+    if (n > 0) copyTo(res);
+    NativeCleaner.reachabilityFence(owner);
+    return res;
+  }
+  
+  /**
+   * Copies the elements of this view, in column-major order, into a new
+   * <code>double[]</code>, converting them as described in {@link MxArray#doubleValues}.
+   */
+  public double[] toDoubleArray() {
+    Object raw = toArray();
+    if (raw instanceof double[]) return (double[])raw;
+    int n = java.lang.reflect.Array.getLength(raw);
+    double res[] = new double[n];
+    switch (classID) {
+      case MxArrayInfo.SINGLE_CLASS: { float a[] = (float[])raw; for (int i = 0; i < n; i++) res[i] = a[i]; break; }
+      case MxArrayInfo.LOGICAL_CLASS: case MxArrayInfo.INT8_CLASS: { byte a[] = (byte[])raw; for (int i = 0; i < n; i++) res[i] = a[i]; break; }
+      case MxArrayInfo.UINT8_CLASS: { byte a[] = (byte[])raw; for (int i = 0; i < n; i++) res[i] = a[i] & 0xFF; break; }
+      case MxArrayInfo.INT16_CLASS: { short a[] = (short[])raw; for (int i = 0; i < n; i++) res[i] = a[i]; break; }
+      case MxArrayInfo.UINT16_CLASS: { short a[] = (short[])raw; for (int i = 0; i < n; i++) res[i] = a[i] & 0xFFFF; break; }
+      case MxArrayInfo.CHAR_CLASS: { char a[] = (char[])raw; for (int i = 0; i < n; i++) res[i] = a[i]; break; }
+      case MxArrayInfo.INT32_CLASS: { int a[] = (int[])raw; for (int i = 0; i < n; i++) res[i] = a[i]; break; }
+      case MxArrayInfo.UINT32_CLASS: { int a[] = (int[])raw; for (int i = 0; i < n; i++) res[i] = a[i] & 0xFFFFFFFFL; break; }
+      case MxArrayInfo.INT64_CLASS: { long a[] = (long[])raw; for (int i = 0; i < n; i++) res[i] = a[i]; break; }
+      default: { long a[] = (long[])raw; for (int i = 0; i < n; i++) res[i] = Mat5.unsignedToDouble(a[i]); }
+    }
+    return res;
+  }
+  
+  /** Copies the elements into <code>dst</code>, one run along the first dimension at a time. */
+  private void copyTo(Object dst) {
+    int nd = dims.length;
+    int run = (nd == 0) ? 1 : (int)dims[0];
+    long runStride = (nd == 0) ? 1 : strides[0];
+    long idx[] = new long[nd];
+    long pos = offset;
+    for (int k = 0; ; k += run) {
+      copyRun(pos, runStride, run, dst, k);
+      int d = 1;  // advance the subscripts of the other dimensions
+      while (d < nd) {
+        pos += strides[d];
+        if (++idx[d] < dims[d]) break;
+        pos -= idx[d]*strides[d];
+        idx[d] = 0;
+        d++;
+      }
+      if (d >= nd) break;
+    }
+  }
+  
+  /** Copies <code>n</code> elements that are <code>stride</code> elements apart, starting at element <code>pos</code>. */
+  private void copyRun(long pos, long stride, int n, Object dst, int k) {
+    long off = pos*elsize;
+    if (stride == 1) {
+      if (dst instanceof double[]) data.read(off, (double[])dst, k, n);
+      else if (dst instanceof float[]) data.read(off, (float[])dst, k, n);
+      else if (dst instanceof long[]) data.read(off, (long[])dst, k, n);
+      else if (dst instanceof int[]) data.read(off, (int[])dst, k, n);
+      else if (dst instanceof short[]) data.read(off, (short[])dst, k, n);
+      else if (dst instanceof char[]) data.read(off, (char[])dst, k, n);
+      else data.read(off, (byte[])dst, k, n);
+      return;
+    }
+    long step = stride*elsize;
+    if (dst instanceof double[]) { double a[] = (double[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = data.getDouble(off); }
+    else if (dst instanceof float[]) { float a[] = (float[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = data.getFloat(off); }
+    else if (dst instanceof long[]) { long a[] = (long[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = data.getLong(off); }
+    else if (dst instanceof int[]) { int a[] = (int[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = data.getInt(off); }
+    else if (dst instanceof short[]) { short a[] = (short[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = data.getShort(off); }
+    else if (dst instanceof char[]) { char a[] = (char[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = (char)data.getShort(off); }
+    else { byte a[] = (byte[])dst; for (int i = 0; i < n; i++, off += step) a[k + i] = data.getByte(off); }
+  }
+  
+  public String toString() {
+    StringBuilder sb = new StringBuilder(MxArrayInfo.classnames[classID]).append(' ');
+    for (int d = 0; d < dims.length; d++)
+      sb.append((d == 0) ? "" : "x").append(dims[d]);
+    return sb.append((dims.length == 0) ? "scalar view" : " view").toString();
+  }
+  
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+
+/**
+ * A contiguous range of (zero-based) indices along one dimension of an array,
+ * used to read parts of variables with {@link Mat5File#readVariable(String, Range...)}.
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class Range {
+  
+  /** The range covering a whole dimension. */
+  public static final Range ALL = new Range(0, -1);
+  
+  private final int start, length;
+  
+  /**
+   * Creates a range of indices.
+   *
+   * @param start first index
+   * @param length number of indices, or <code>-1</code> for all indices from <code>start</code> on
+   */
+  public Range(int start, int length) {
+    if ((start < 0) || (length < -1))
+      throw new IllegalArgumentException("invalid range: start = " + start + ", length = " + length);
+    this.start = start;
+    this.length = length;
+  }
+  
+  /** Returns the range containing the single index <code>index</code>. */
+  public static Range single(int index) { return new Range(index, 1); }
+  
+  /** Returns the range of indices from <code>first</code> to <code>last</code> (inclusive). */
+  public static Range of(int first, int last) { return new Range(first, last - first + 1); }
+  
+  /** Returns the first index. */
+  public int getStart() { return start; }
+  
+  /** Returns the number of indices, or <code>-1</code> if the range extends to the end of the dimension. */
+  public int getLength() { return length; }
+  
+  /** Returns the number of indices in this range along a dimension of size <code>dim</code>. */
+  int getLength(int dim) {
+    int n = (length < 0) ? dim - start : length;
+    if ((start + n > dim) || (n < 0))
+      throw new IndexOutOfBoundsException(this + " exceeds dimension of size " + dim);
+    return n;
+  }
+  
+  public String toString() {
+    return (length < 0) ? "[" + start + ":end]" : "[" + start + ":" + (start + length - 1) + "]";
+  }
+  
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.northwestern.rocs.jnmatlib;
+
+/**
+ * A sparse matrix in compressed sparse column (CSC) format, as returned by
+ * {@link MxArray#getSparseMatrix}.  This is the same layout that MATLAB uses
+ * internally: the non-zero values are stored column by column, and for the
+ * <code>k</code>-th non-zero, <code>getRowIndex(k)</code> is its row index.
+ * The non-zeros of column <code>j</code> have the indices
+ * <code>getColumnStart(j)</code> (inclusive) to <code>getColumnEnd(j)</code>
+ * (exclusive).  All indices are zero-based.
+ * <p>
+ * The data is copied to the Java heap, and memory use scales with the number
+ * of non-zeros, not with the size of the matrix.  Column pointers are kept as
+ * <code>long</code>s, and row indices are kept as <code>int</code>s unless the
+ * matrix has more than <code>Integer.MAX_VALUE</code> rows.
+ * <p>
+ * Non-zeros can be traversed without allocating any objects either by looping
+ * over the index ranges directly,
+ * <pre>
+ *   for (int j = 0; j &lt; sm.getColumnCount(); j++)
+ *     for (int k = sm.getColumnStart(j); k &lt; sm.getColumnEnd(j); k++)
+ *       sum += sm.getValue(k);
+ * </pre>
+ * or by passing a {@link Visitor} to {@link #forEachNonZero}.
+ *
+ * @see MxArray#getSparseMatrix
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public class SparseMatrix {
+  
+  /**
+   * Callback interface for {@link SparseMatrix#forEachNonZero}.
+   */
+  public interface Visitor {
+    /**
+     * Called once for each stored non-zero.
+     *
+     * @param row row index
+     * @param column column index
+     * @param re real part of the value (1 or 0 for logical matrices)
+     * @param im imaginary part of the value (0 unless the matrix is complex)
+     */
+    void visit(long row, int column, double re, double im);
+  }
+  
+  private final long M;
+  private final int N;
+  private final long jc[];
+  private final int ir[];
+  private final long irLong[];
+  private final double pr[], pi[];
+  private final boolean logicals[];
+  
+  /**
+   * Creates a sparse matrix from its CSC arrays.  Exactly one of <code>ir</code>
+   * and <code>irLong</code>, and exactly one of <code>pr</code> and
+   * <code>logicals</code>, must be non-<code>null</code>.
+   */
+  SparseMatrix(long M, int N, long jc[], int ir[], long irLong[], double pr[], double pi[], boolean logicals[]) {
+    this.M = M; this.N = N; this.jc = jc;
+    this.ir = ir; this.irLong = irLong;
+    this.pr = pr; this.pi = pi; this.logicals = logicals;
+  }
+  
+  /** Returns the number of rows. */
+  public long getRowCount() { return M; }
+  
+  /** Returns the number of columns. */
+  public int getColumnCount() { return N; }
+  
+  /** Returns the number of stored non-zeros. */
+  public int getNonZeroCount() { return (int)jc[N]; }
+  
+  /** Returns <code>true</code> if this is a logical (<code>boolean</code>) matrix. */
+  public boolean isLogical() { return logicals != null; }
+  
+  /** Returns <code>true</code> if the values have an imaginary part. */
+  public boolean isComplex() { return pi != null; }
+  
+  /** Returns the index of the first non-zero in column <code>j</code>. */
+  public int getColumnStart(int j) { return (int)jc[j]; }
+  
+  /** Returns the index after the last non-zero in column <code>j</code>. */
+  public int getColumnEnd(int j) { return (int)jc[j+1]; }
+  
+  /** Returns the row index of the <code>k</code>-th non-zero. */
+  public long getRowIndex(int k) { return (ir != null) ? ir[k] : irLong[k]; }
+  
+  /**
+   * Returns the (real part of the) <code>k</code>-th non-zero.
+   * For logical matrices, this is either 1 or 0.
+   */
+  public double getValue(int k) { return (pr != null) ? pr[k] : (logicals[k] ? 1 : 0); }
+  
+  /** Returns the imaginary part of the <code>k</code>-th non-zero, or 0 if the matrix is not complex. */
+  public double getImagValue(int k) { return (pi != null) ? pi[k] : 0; }
+  
+  /** Returns the <code>k</code>-th non-zero of a logical matrix. */
+  public boolean getLogicalValue(int k) { return (logicals != null) ? logicals[k] : (pr[k] != 0); }
+  
+  /**
+   * Returns the column pointers, i.e., an array of length <code>getColumnCount() + 1</code>
+   * where the non-zeros of column <code>j</code> are at indices
+   * <code>[jc[j], jc[j+1])</code>.  The returned array is not a copy.
+   */
+  public long[] getColumnPointers() { return jc; }
+  
+  /**
+   * Returns the row indices of the non-zeros.  The returned array is not a copy.
+   *
+   * @throws MatLibException if the matrix has too many rows for <code>int</code> indices
+   * @see #getRowIndicesLong
+   */
+  public int[] getRowIndices() {
+    if (ir == null)
+      throw new MatLibException("row indices do not fit into int (" + M + " rows), use getRowIndicesLong() instead");
+    return ir;
+  }
+  
+  /** Returns the row indices of the non-zeros as <code>long</code>s. */
+  public long[] getRowIndicesLong() {
+    if (irLong != null)
+      return irLong;
+    long res[] = new long[ir.length];
+    for (int k = 0; k < ir.length; k++)
+      res[k] = ir[k];
+    return res;
+  }
+  
+  /**
+   * Returns the (real parts of the) non-zero values, or <code>null</code> if this is a
+   * logical matrix.  The returned array is not a copy.
+   */
+  public double[] getValues() { return pr; }
+  
+  /**
+   * Returns the imaginary parts of the non-zero values, or <code>null</code> if
+   * the matrix is not complex.  The returned array is not a copy.
+   */
+  public double[] getImagValues() { return pi; }
+  
+  /**
+   * Returns the non-zero values of a logical matrix, or <code>null</code> if
+   * this is not a logical matrix.  The returned array is not a copy.
+   */
+  public boolean[] getLogicalValues() { return logicals; }
+  
+  /**
+   * Returns the (real part of the) value at the given position, using
+   * binary search within the column.
+   *
+   * @param i row index
+   * @param j column index
+   */
+  public double get(long i, int j) {
+    int k = find(i, j);
+    return (k < 0) ? 0 : getValue(k);
+  }
+  
+  /**
+   * Returns the imaginary part of the value at the given position.
+   *
+   * @param i row index
+   * @param j column index
+   */
+  public double getImag(long i, int j) {
+    int k = find(i, j);
+    return (k < 0) ? 0 : getImagValue(k);
+  }
+  
+  /** Returns the index of the non-zero at <code>(i, j)</code>, or <code>-1</code> if there is none. */
+  private int find(long i, int j) {
+    if ((i < 0) || (i >= M))
+      throw new ArrayIndexOutOfBoundsException("row index " + i + " out of bounds [0, " + M + ")");
+    int lo = getColumnStart(j), hi = getColumnEnd(j) - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long r = getRowIndex(mid);
+      if (r < i) lo = mid + 1;
+      else if (r > i) hi = mid - 1;
+      else return mid;
+    }
+    return -1;
+  }
+  
+  /**
+   * Calls <code>v</code> for each stored non-zero, column by column.
+   *
+   * @param v the callback
+   */
+  public void forEachNonZero(Visitor v) {
+    for (int j = 0; j < N; j++)
+      forEachNonZero(j, v);
+  }
+  
+  /**
+   * Calls <code>v</code> for each stored non-zero in column <code>j</code>.
+   *
+   * @param j column index
+   * @param v the callback
+   */
+  public void forEachNonZero(int j, Visitor v) {
+    for (int k = getColumnStart(j), end = getColumnEnd(j); k < end; k++)
+      v.visit(getRowIndex(k), j, getValue(k), getImagValue(k));
+  }
+  
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of JNMatLib, a native interface to libmat and libmx.
+ *
+ * JNMatLib is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JNMatLib is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JNMatLib.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.northwestern.rocs.jnmatlib;
+
+/**
+ * Read access to the values of an unsigned integer array (<code>uint8</code>,
+ * <code>uint16</code>, <code>uint32</code> or <code>uint64</code>) that is stored
+ * in a Java array of the same width, i.e., in a <code>byte[]</code>,
+ * <code>short[]</code>, <code>int[]</code> or <code>long[]</code> holding the raw
+ * bits.  The values are converted to unsigned numbers only when they are read, so
+ * the data takes no more memory than in MATLAB.
+ * <p>
+ * <code>uint64</code> values that do not fit into a <code>long</code> are returned
+ * by {@link #getLong} with the same bits, i.e., as negative numbers.  {@link #compare},
+ * {@link #toString(int)} and {@link #getDouble} treat them as unsigned, as do
+ * <code>Long.compareUnsigned</code>, <code>Long.divideUnsigned</code> and friends.
+ *
+ * @see MxArray#getUnsignedView
+ * @see MxArray#getRawData
+ *
+ * @author Christian Thiemann
+ * @version 1.0
+ */
+public abstract class UnsignedView {
+  
+  private final int classID;
+  
+  private UnsignedView(int classID) { this.classID = classID; }
+  
+  /** Returns a view of <code>uint8</code> values. */
+  public static UnsignedView of(byte data[]) { return new Uint8(data); }
+  
+  /** Returns a view of <code>uint16</code> values. */
+  public static UnsignedView of(short data[]) { return new Uint16(data); }
+  
+  /** Returns a view of <code>uint32</code> values. */
+  public static UnsignedView of(int data[]) { return new Uint32(data); }
+  
+  /** Returns a view of <code>uint64</code> values. */
+  public static UnsignedView of(long data[]) { return new Uint64(data); }
+  
+  /**
+   * Returns a view of the raw data of an unsigned integer class, as returned by
+   * {@link MxArray#getRawData}.
+   *
+   * @param classID one of the <code>UINTxx_CLASS</code> constants of {@link MxArrayInfo}
+   * @param data array of the matching width
+   * @throws MatLibException if <code>classID</code> is not an unsigned integer class or does not match <code>data</code>
+   */
+  static UnsignedView of(int classID, Object data) {
+    if ((classID == MxArrayInfo.UINT8_CLASS) && (data instanceof byte[])) return of((byte[])data);
+    if ((classID == MxArrayInfo.UINT16_CLASS) && (data instanceof short[])) return of((short[])data);
+    if ((classID == MxArrayInfo.UINT32_CLASS) && (data instanceof int[])) return of((int[])data);
+    if ((classID == MxArrayInfo.UINT64_CLASS) && (data instanceof long[])) return of((long[])data);
+    throw new MatLibException("not an unsigned integer class: " + classID);
+  }
+  
+  /** Returns the data class, one of the <code>UINTxx_CLASS</code> constants of {@link MxArrayInfo}. */
+  public int getClassID() { return classID; }
+  
+  /** Returns the number of values. */
+  public abstract int length();
+  
+  /**
+   * Returns the value at <code>index</code>.  <code>uint64</code> values larger
+   * than <code>Long.MAX_VALUE</code> are returned as negative numbers with the same bits.
+   */
+  public abstract long getLong(int index);
+  
+  /** Returns the value at <code>index</code>, rounded to the nearest <code>double</code> for large <code>uint64</code> values. */
+  public double getDouble(int index) { return Mat5.unsignedToDouble(getLong(index)); }
+  
+  /** Compares the values at <code>i</code> and <code>j</code> as unsigned numbers, like <code>Long.compareUnsigned</code>. */
+  public int compare(int i, int j) { return Long.compareUnsigned(getLong(i), getLong(j)); }
+  
+  /** Returns the value at <code>index</code> in decimal notation. */
+  public String toString(int index) { return Long.toUnsignedString(getLong(index)); }
+  
+  /** Returns the Java array holding the raw bits; this is not a copy. */
+  public abstract Object getRawArray();
+  
+  public String toString() { return MxArrayInfo.classnames[classID] + " view of " + length() + " values"; }
+  
+  private static final class Uint8 extends UnsignedView {
+    private final byte data[];
+    Uint8(byte data[]) { super(MxArrayInfo.UINT8_CLASS); this.data = data; }
+    public int length() { return data.length; }
+    public long getLong(int index) { return data[index] & 0xFF; }
+    public double getDouble(int index) { return data[index] & 0xFF; }
+    public Object getRawArray() { return data; }
+  }
+  
+  private static final class Uint16 extends UnsignedView {
+    private final short data[];
+    Uint16(short data[]) { super(MxArrayInfo.UINT16_CLASS); this.data = data; }
+    public int length() { return data.length; }
+    public long getLong(int index) { return data[index] & 0xFFFF; }
+    public double getDouble(int index) { return data[index] & 0xFFFF; }
+    public Object getRawArray() { return data; }
+  }
+  
+  private static final class Uint32 extends UnsignedView {
+    private final int data[];
+    Uint32(int data[]) { super(MxArrayInfo.UINT32_CLASS); this.data = data; }
+    public int length() { return data.length; }
+    public long getLong(int index) { return data[index] & 0xFFFFFFFFL; }
+    public double getDouble(int index) { return data[index] & 0xFFFFFFFFL; }
+    public Object getRawArray() { return data; }
+  }
+  
+  private static final class Uint64 extends UnsignedView {
+    private final long data[];
+    Uint64(long data[]) { super(MxArrayInfo.UINT64_CLASS); this.data = data; }
+    public int length() { return data.length; }
+    public long getLong(int index) { return data[index]; }
+    public Object getRawArray() { return data; }
+  }
+  
+}
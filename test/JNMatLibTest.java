@@ -23,6 +23,7 @@ import static org.junit.Assert.*;
 import static org.junit.Assume.*;
 import edu.northwestern.rocs.jnmatlib.*;
 import java.lang.reflect.Array;
+import java.util.*;
 
 public class JNMatLibTest {
   
@@ -91,4 +92,557 @@ public class JNMatLibTest {
     mf.close();
   }
   
+  @Test public void testNonSquareMatrices() {
+    MatFile mf = new MatFile("test1.mat");
+    testAsFloat2(mf, "double1a", new float[] { 0 });
+    testAsFloat2(mf, "double1b", new float[] { -.2f, -.1f, 0, .1f, .2f });
+    testAsFloat2(mf, "single1b", new float[] { -.2f, -.1f, 0, .1f, .2f });
+    mf.close();
+  }
+  
+  @Test public void testSparseMatrix() {
+    MatFile mf = new MatFile("test1.mat");
+    MxArray arr = mf.readVariable("double2sp");
+    SparseMatrix sm = arr.getSparseMatrix();
+    double dense[][] = (double[][])arr.getDataAsMatrix();
+    assertEquals(dense.length, sm.getRowCount());
+    assertEquals(8, sm.getNonZeroCount());
+    for (int i = 0; i < dense.length; i++)
+      for (int j = 0; j < dense[i].length; j++)
+        assertEquals("double2sp(" + i + "," + j + "):", dense[i][j], sm.get(i, j), 0);
+    sm = mf.readVariable("logical2sp").getSparseMatrix();
+    assertTrue(sm.isLogical());
+    assertEquals(4, sm.getNonZeroCount());
+    mf.close();
+  }
+  
+  @Test public void testCreateArrays() {
+    double dd[][] = { { 1, 2, 3 }, { 4, 5, 6 } };
+    MxArray arr = MxArray.of(dd);
+    assertEquals(2, arr.getM());
+    assertEquals(3, arr.getN());
+    double res[][] = (double[][])arr.getDataAsMatrix();
+    for (int i = 0; i < dd.length; i++)
+      for (int j = 0; j < dd[i].length; j++)
+        assertEquals(dd[i][j], res[i][j], 0);
+    assertArrayEquals(new double[] { 1, 4, 2, 5, 3, 6 }, arr.doubleValues(), 0);
+    arr.destroy();
+    arr = MxArray.of(new boolean[] { true, false, true, true }, 2, 2);
+    assertTrue(arr.isLogical());
+    assertArrayEquals(new int[] { 1, 0, 1, 1 }, arr.intValues());
+    arr.destroy();
+    arr = MxArray.ofComplex(new double[] { 1, 2 }, new double[] { 3, 4 });
+    assertTrue(arr.isComplex());
+    assertArrayEquals(new double[] { 3, 4 }, (double[])arr.getImagData(), 0);
+    arr.destroy();
+  }
+  
+  @Test public void testTypedValues() {
+    MatFile mf = new MatFile("test1.mat");
+    MxArray arr = mf.readVariable("double2");
+    double dd[] = arr.doubleValues();
+    float ff[] = arr.floatValues();
+    assertEquals(dd.length, ff.length);
+    for (int i = 0; i < dd.length; i++)
+      assertEquals("value " + i + " of `double2':", dd[i], ff[i], 1e-7);
+    double buf[] = new double[dd.length + 2];
+    arr.into(buf, 2);
+    for (int i = 0; i < dd.length; i++)
+      assertEquals(dd[i], buf[i + 2], 0);
+    int count = 0;
+    for (boolean b : mf.readVariable("logical1a").booleanValues()) if (b) count++;
+    assertEquals("true values in `logical1a':", 2, count);
+    mf.close();
+  }
+  
+  @Test public void testElementAccess() {
+    MxArray arr = MxArray.of(new double[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 }, 2, 3, 2);
+    assertEquals(1 + 2*3 + 2*2*3, arr.getLinearIndex(1, 2, 1));
+    assertEquals(arr.getLinearIndex(1, 2, 1), arr.getLinearIndex(1, 5));
+    assertEquals(12.0, arr.getDouble(1, 2, 1), 0);
+    assertEquals(6.0, arr.getDouble(1, 2), 0);
+    assertEquals(6L, arr.getLong(5));
+    assertEquals(6.0, arr.getValueAt(1, 2).doubleValue(), 0);
+    try {
+      arr.getDouble(2, 0);
+      fail("row subscript out of range");
+    } catch (IndexOutOfBoundsException e) { /* expected */ }
+    MxArray u = MxArray.of(new int[] { -1 });
+    assertEquals(-1L, u.getLong(0));
+    arr.close();
+    u.close();
+  }
+  
+  @Test public void testFieldHandles() {
+    com.sun.jna.NativeLong one = new com.sun.jna.NativeLong(1), three = new com.sun.jna.NativeLong(3);
+    MxArray s = MxLibrary.mxCreateStructMatrix(one, three, 2, new com.sun.jna.StringArray(new String[] { "id", "w" }));
+    for (int i = 0; i < 3; i++)
+      MxLibrary.mxSetField(s, new com.sun.jna.NativeLong(i), "w", MxLibrary.mxCreateDoubleScalar(i + .5));
+    MxArray.FieldHandle w = s.fieldHandle("w");
+    assertEquals(1, w.getNumber());
+    assertEquals(2.5, s.get(w, 2).getScalar(), 0);
+    MxArray col[] = s.getFieldColumn(w);
+    assertEquals(3, col.length);
+    assertEquals(1.5, col[1].getScalar(), 0);
+    assertNull(s.getFieldColumn(s.fieldHandle("id"))[0]);
+    s.destroy();
+  }
+  
+  static class BoundPoint {
+    @MatField("id") long id;
+    @MatField("xy") double coords[];
+    @MatField String label;
+    @MatField boolean visible;
+    @MatField BoundPoint parent;
+    int ignored = 7;
+  }
+  
+  @Test public void testMatBinder() {
+    List<BoundPoint> pts = new ArrayList<BoundPoint>();
+    for (int i = 0; i < 3; i++) {
+      BoundPoint p = new BoundPoint();
+      p.id = 10 + i; p.coords = new double[] { i, -i }; p.label = "p" + i; p.visible = (i != 1);
+      pts.add(p);
+    }
+    pts.get(2).parent = pts.get(0);
+    MxArray s = MatBinder.writeList(pts, BoundPoint.class);
+    assertTrue(s.isStruct());
+    assertEquals(3, s.getNumberOfElements());
+    assertEquals(-1, s.getFieldIndex("coords"));
+    List<BoundPoint> back = MatBinder.readList(s, BoundPoint.class);
+    assertEquals(3, back.size());
+    assertEquals(11, back.get(1).id);
+    assertArrayEquals(new double[] { 2, -2 }, back.get(2).coords, 0);
+    assertEquals("p2", back.get(2).label);
+    assertFalse(back.get(1).visible);
+    assertNull(back.get(0).parent);
+    assertEquals("p0", back.get(2).parent.label);
+    MxArray one = MatBinder.write(pts.get(0));
+    assertEquals(10, MatBinder.read(one, BoundPoint.class).id);
+    one.close();
+    s.close();
+  }
+  
+  @Test public void testBorrowedFieldKeepsParentAlive() throws InterruptedException {
+    List<BoundPoint> pts = new ArrayList<BoundPoint>();
+    for (int i = 0; i < 200; i++) {
+      BoundPoint p = new BoundPoint();
+      p.coords = new double[] { i, -i };
+      pts.add(p);
+    }
+    // the parent structs are temporary; only the fields are kept
+    MxArray xy = MatBinder.writeList(pts, BoundPoint.class).getField("xy", 199);
+    MxArray col[] = MatBinder.writeList(pts, BoundPoint.class).getFieldColumn(MatBinder.write(pts.get(0)).fieldHandle("xy"));
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(20);
+      MatBinder.writeList(pts, BoundPoint.class);  // would reuse freed memory
+    }
+    assertArrayEquals(new double[] { 199, -199 }, xy.doubleValues(), 0);
+    assertArrayEquals(new double[] { 42, -42 }, col[42].doubleValues(), 0);
+  }
+  
+  @Test public void testFieldIndexing() {
+    List<BoundPoint> pts = new ArrayList<BoundPoint>();
+    for (int i = 0; i < 3; i++) {
+      BoundPoint p = new BoundPoint();
+      p.coords = new double[] { i, -i };
+      pts.add(p);
+    }
+    MxArray s = MatBinder.writeList(pts, BoundPoint.class);  // 1 x 3
+    int k = s.getFieldIndex("xy");
+    assertArrayEquals(new double[] { 2, -2 }, s.getField("xy", 2L).doubleValues(), 0);
+    assertArrayEquals(new double[] { 2, -2 }, s.getField("xy", 0, 2).doubleValues(), 0);
+    assertArrayEquals(new double[] { 1, -1 }, s.getFieldByNumber(k, 1).doubleValues(), 0);
+    assertArrayEquals(new double[] { 1, -1 }, s.getFieldByNumber(k, 0, 1).doubleValues(), 0);
+    assertArrayEquals(new double[] { 0, -0.0 }, s.getField("xy").doubleValues(), 0);
+    try {
+      s.getField("xy", 3L);
+      fail("expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) { }
+    try {
+      s.getFieldByNumber(k, 1, 0);
+      fail("expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) { }
+  }
+  
+  /** Sums all numeric and logical values and counts the characters in a tree. */
+  static class SumVisitor extends MxVisitor.Adapter<Double> {
+    protected Double defaultResult(MxArray pm) { return 0.0; }
+    public Double visitNumeric(MxArray pm, java.nio.ByteBuffer re, java.nio.ByteBuffer im) {
+      double sum = 0;
+      java.nio.DoubleBuffer db = re.asDoubleBuffer();
+      while (db.hasRemaining()) sum += db.get();
+      return sum;
+    }
+    public Double visitLogical(MxArray pm, java.nio.ByteBuffer values) {
+      double sum = 0;
+      while (values.hasRemaining()) sum += values.get();
+      return sum;
+    }
+    public Double visitChar(MxArray pm, java.nio.CharBuffer chars) { return (double)chars.remaining(); }
+    public Double visitCell(MxArray pm, List<Double> elements) { return total(elements); }
+    public Double visitStruct(MxArray pm, List<Double> values) { return total(values); }
+    private static double total(List<Double> values) {
+      double sum = 0;
+      for (Double v : values) if (v != null) sum += v;
+      return sum;
+    }
+  }
+  
+  @Test public void testVisitor() {
+    com.sun.jna.NativeLong one = new com.sun.jna.NativeLong(1), zero = new com.sun.jna.NativeLong(0);
+    MxArray s = MxLibrary.mxCreateStructMatrix(one, one, 1, new com.sun.jna.StringArray(new String[] { "flag" }));
+    MxLibrary.mxSetField(s, zero, "flag", MxLibrary.mxCreateLogicalScalar(true));
+    MxArray c = MxLibrary.mxCreateCellMatrix(one, new com.sun.jna.NativeLong(400));
+    for (int i = 0; i < 400; i++)
+      MxLibrary.mxSetCell(c, new com.sun.jna.NativeLong(i), MxLibrary.mxCreateDoubleScalar(i));
+    MxArray top = MxLibrary.mxCreateCellMatrix(one, new com.sun.jna.NativeLong(6));
+    MxLibrary.mxSetCell(top, zero, c);
+    MxLibrary.mxSetCell(top, one, MxLibrary.mxCreateString("ab"));
+    MxLibrary.mxSetCell(top, new com.sun.jna.NativeLong(2), s);
+    MxLibrary.mxSetCell(top, new com.sun.jna.NativeLong(4), MxLibrary.mxCreateDoubleMatrix(zero, zero, 0));  // []
+    MxLibrary.mxSetCell(top, new com.sun.jna.NativeLong(5), MxLibrary.mxCreateString(""));  // ''
+    double expected = 399*400/2 + 2 + 1;  // the fourth cell is not set
+    assertEquals(expected, top.accept(new SumVisitor()), 0);
+    assertEquals(expected, top.accept(new SumVisitor(), java.util.concurrent.ForkJoinPool.commonPool()), 0);
+    top.destroy();
+  }
+  
+  @Test public void testStrings() {
+    MxArray m = MxArray.of(new char[] { 'a', 'c', 'b', 'd', 'x', ' ' }, 2, 3);  // ['abx'; 'cd ']
+    assertArrayEquals(new String[] { "abx", "cd " }, m.charRows());
+    assertEquals("acbdx ", m.getChars());
+    assertEquals("acbdx ", m.arrayToString());
+    assertEquals("h\u00e9llo \u4e16\u754c", MxArray.of("h\u00e9llo \u4e16\u754c").getChars());
+    assertNull(MxArray.of(new double[] { 1 }).arrayToString());
+    MxArray empty = MxLibrary.mxCreateString("");  // '' has no data pointer
+    assertEquals("", empty.getChars());
+    assertEquals("", empty.arrayToString());
+    assertEquals(0, empty.charValues().length);
+    empty.destroy();
+    assertEquals("", MxArray.of("").getChars());
+    MxArray one = MxLibrary.mxCreateCellMatrix(new com.sun.jna.NativeLong(1), new com.sun.jna.NativeLong(1));
+    MxLibrary.mxSetCell(one, new com.sun.jna.NativeLong(0), MxLibrary.mxCreateString(""));  // {''}
+    assertArrayEquals(new String[] { "" }, one.cellstrValues());
+    one.destroy();
+    String labels[] = { "red", "green", "red", "", "green" };
+    MxArray c = MxLibrary.mxCreateCellMatrix(new com.sun.jna.NativeLong(5), new com.sun.jna.NativeLong(1));
+    for (int i = 0; i < labels.length; i++)
+      MxLibrary.mxSetCell(c, new com.sun.jna.NativeLong(i), MxLibrary.mxCreateString(labels[i]));
+    assertArrayEquals(labels, c.cellstrValues());
+    Map<String, String> pool = new HashMap<String, String>();
+    String values[] = c.cellstrValues(pool);
+    assertArrayEquals(labels, values);
+    assertSame(values[0], values[2]);
+    assertEquals(3, pool.size());
+    c.destroy();
+  }
+  
+  @Test public void testComplexValues() {
+    MxArray z = MxArray.ofComplex(new double[] { 1, 2, 3 }, new double[] { -1, 0, .5 });
+    assertArrayEquals(new double[] { 1, -1, 2, 0, 3, .5 }, z.complexValues(), 0);
+    assertArrayEquals(new float[] { 1, -1, 2, 0, 3, .5f }, z.complexFloatValues(), 0);
+    double re[] = new double[4], im[] = new double[4];
+    z.into(re, im, 1);
+    assertArrayEquals(new double[] { 0, 1, 2, 3 }, re, 0);
+    assertArrayEquals(new double[] { 0, -1, 0, .5 }, im, 0);
+    MxArray x = MxArray.of(new int[] { 7, 8 });
+    assertArrayEquals(new double[] { 7, 0, 8, 0 }, x.complexValues(), 0);
+    z.close();
+    x.close();
+  }
+  
+  @Test public void testUnsignedView() {
+    UnsignedView u16 = UnsignedView.of(new short[] { -1, 2 });
+    assertEquals(MxArrayInfo.UINT16_CLASS, u16.getClassID());
+    assertEquals(65535, u16.getLong(0));
+    assertEquals(65535.0, u16.getDouble(0), 0);
+    assertTrue(u16.compare(0, 1) > 0);
+    UnsignedView u64 = UnsignedView.of(new long[] { -1L, Long.MAX_VALUE });
+    assertEquals("18446744073709551615", u64.toString(0));
+    assertTrue(u64.compare(0, 1) > 0);
+    assertEquals(18446744073709551615.0, u64.getDouble(0), 0);
+    assertEquals(2, u64.length());
+  }
+  
+  @Test public void testNdView() {
+    double data[] = new double[2*3*4];
+    for (int i = 0; i < data.length; i++) data[i] = i;
+    MxArray arr = MxArray.of(data, 2, 3, 4);
+    NdView v = arr.getNdView();
+    assertEquals(3, v.getDimensionCount());
+    assertEquals(23, v.getDouble(1, 2, 3), 0);
+    assertArrayEquals(new double[] { 6, 7, 8, 9, 10, 11 }, v.slice(2, 1).toDoubleArray(), 0);
+    NdView p = v.permute(2, 0, 1);
+    assertArrayEquals(new long[] { 4, 2, 3 }, p.getDimensions());
+    assertEquals(v.getDouble(1, 2, 3), p.getDouble(3, 1, 2), 0);
+    assertFalse(p.isContiguous());
+    assertArrayEquals(new double[] { 2, 3, 8, 9, 14, 15, 20, 21 }, v.range(1, 1, 2).squeeze().toDoubleArray(), 0);
+    assertArrayEquals(new double[] { 8, 9, 10, 11 }, (double[])v.block(new long[] { 0, 1, 1 }, new long[] { 2, 3, 2 }).toArray(), 0);
+    arr.close();
+  }
+  
+  @Test public void testLongIndexing() {
+    MxArray arr = MxArray.of(new double[] { 1, 2, 3, 4, 5 });
+    double dst[] = new double[3];
+    arr.into(2L, dst, 1, 2);
+    assertArrayEquals(new double[] { 0, 3, 4 }, dst, 0);
+    java.nio.ByteBuffer bufs[] = arr.getDataBuffers();
+    assertEquals(1, bufs.length);
+    assertEquals(5, bufs[0].asDoubleBuffer().remaining());
+    assertEquals(5.0, arr.getDataBuffer().asDoubleBuffer().get(4), 0);
+    arr.close();
+  }
+  
+  @Test public void testDataBufferKeepsArrayAlive() throws InterruptedException {
+    double data[] = new double[1000];
+    for (int i = 0; i < data.length; i++) data[i] = i;
+    java.nio.DoubleBuffer buf = MxArray.of(data, 10, 100).getDataBuffers()[0].asDoubleBuffer();
+    java.nio.DoubleBuffer buf2 = MxArray.of(data).getDataBuffer().asDoubleBuffer();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(20);
+      // allocate more arrays, which would reuse freed memory
+      MxArray.of(new double[1000]);
+    }
+    for (int i = 0; i < data.length; i++) {
+      assertEquals(i, buf.get(i), 0);
+      assertEquals(i, buf2.get(i), 0);
+    }
+  }
+  
+  @Test public void testNativeLongArrayOverflow() {
+    assumeTrue(com.sun.jna.NativeLong.SIZE == 8);
+    NativeLongArray a = new NativeLongArray(new long[] { 7, 1L << 40 });
+    assertArrayEquals(new int[] { 7 }, a.intValues(1));
+    try {
+      a.intValues(2);
+      fail("expected MatLibException");
+    } catch (MatLibException e) { }
+  }
+  
+  @Test public void testMetadata() {
+    MatFile mf = new MatFile("test1.mat");
+    MxArray arr = mf.readVariable("double2");
+    assertTrue(arr.isDouble() && arr.isNumeric() && arr.isClass("double"));
+    assertFalse(arr.isSparse() || arr.isStruct());
+    long dims[] = arr.getLongDimensions();
+    assertEquals(arr.getDimensionCount(), dims.length);
+    assertEquals(arr.getM(), dims[0]);
+    assertEquals(arr.getNumberOfElements(), dims[0]*arr.getN());
+    assertEquals(8, arr.getElementSize());
+    mf.close();
+  }
+  
+  @Test public void testArena() {
+    MatFile mf = new MatFile("test1.mat");
+    MxArray kept;
+    try (MxArena arena = new MxArena()) {
+      MxArray arr = mf.readVariable("double2");
+      assertTrue(arr.isOwned());
+      kept = arena.detach(MxArray.of(arr.doubleValues()));
+      assertEquals(1, arena.size());
+    }
+    assertNull(MxArena.current());
+    assertTrue(kept.isOwned());
+    kept.close();
+    assertFalse(kept.isOwned());
+    mf.close();
+    mf.close();
+  }
+  
+  @Test public void testVariableIterator() {
+    MatFile mf = new MatFile("test1.mat");
+    String names[] = mf.getVariableNames();
+    MatFile.VariableIterator<MxArray> it = mf.variables();
+    int i = 0;
+    for (; it.hasNext(); i++) {
+      String name = (i % 2 == 0) ? it.skip() : it.next().getKey();
+      assertEquals(names[i], name);
+    }
+    assertEquals(names.length, i);
+    i = 0;
+    for (MatFile.VariableIterator<MxArrayInfo> infos = mf.variableInfos(); infos.hasNext(); i++)
+      assertEquals(names[i], infos.next().getKey());
+    mf.close();
+  }
+  
+  @Test public void testMatFilePool() {
+    MatFilePool pool = new MatFilePool("test1.mat", 3);
+    String names[] = pool.getVariableNames();
+    java.util.Map<String, MxArray> vars = pool.readVariables(java.util.Arrays.asList(names));
+    assertArrayEquals(names, vars.keySet().toArray(new String[0]));
+    MatFile mf = new MatFile("test1.mat");
+    for (String name : names)
+      assertEquals(mf.readVariable(name).getNumberOfElements(), vars.get(name).getNumberOfElements());
+    mf.close();
+    assertTrue(pool.getOpenHandles() <= 3);
+    MatFile leased = pool.acquire();
+    pool.close();
+    pool.release(leased);
+    assertNull(leased.getPointer());
+  }
+  
+  @Test public void testMat5RoundTrip() throws java.io.IOException {
+    java.io.File f = java.io.File.createTempFile("jnmatlib", ".mat");
+    f.deleteOnExit();
+    Mat5Writer w = new Mat5Writer(f);
+    Mat5Writer.Variable v = w.beginVariable("cols", MxArrayInfo.DOUBLE_CLASS, false, 3, Mat5Writer.UNKNOWN);
+    for (int j = 0; j < 5; j++)
+      v.append(new double[] { j, j + .5, -j });
+    v.finish();
+    v = w.beginVariable("z", MxArrayInfo.SINGLE_CLASS, true, 1, 2);
+    v.append(new float[] { 1, 2 }, new float[] { 3, 4 });
+    v.finish();
+    w.beginVariable("l", MxArrayInfo.LOGICAL_CLASS, false, 2, 2).append(new boolean[] { true, false, false, true });
+    w.beginVariable("str", MxArrayInfo.CHAR_CLASS, false, 1, Mat5Writer.UNKNOWN).append("hello");
+    w.close();
+    Mat5File mf = new Mat5File(f.getPath());
+    assertArrayEquals(new String[] { "cols", "z", "l", "str" }, mf.getVariableNames());
+    Mat5Array arr = mf.readVariable("cols");
+    assertEquals(3, arr.getM());
+    assertEquals(5, arr.getN());
+    assertEquals(-4, arr.doubleValues()[14], 0);
+    arr = mf.readVariable("z");
+    assertTrue(arr.isComplex());
+    assertArrayEquals(new float[] { 3, 4 }, (float[])arr.getImagData(), 0);
+    assertArrayEquals(new int[] { 1, 0, 0, 1 }, mf.readVariable("l").intValues());
+    assertEquals("hello", mf.readVariable("str").getString());
+    assertArrayEquals(new double[] { 4.5, -4 }, mf.readBlock("cols", Range.of(1, 2), Range.single(4)).doubleValues(), 0);
+    assertArrayEquals(new float[] { 4 }, (float[])mf.readVariable("z", Range.ALL, Range.single(1)).getImagData(), 0);
+    assertArrayEquals(new Object[] { "str", "cols" }, mf.readVariables("str", "cols").keySet().toArray());
+    mf.close();
+    for (int i = 0; i < 2; i++) {  // build the index file, then use it
+      mf = new Mat5File(f, true);
+      mf.getIndexFile().deleteOnExit();
+      assertTrue(mf.getIndexFile().isFile());
+      assertEquals(5, mf.getVariableInfo("cols").getN());
+      assertEquals("hello", mf.readVariable("str").getString());
+      mf.close();
+    }
+    // a corrupt index file is rebuilt: first a negative number of dimensions, then an entry beyond the end of the file
+    java.io.File idx = new Mat5File(f).getIndexFile();
+    for (int pos : new int[] { 57, 28 }) {
+      java.io.RandomAccessFile raf = new java.io.RandomAccessFile(idx, "rw");
+      raf.seek(pos);
+      raf.writeByte(0x80);
+      raf.close();
+      mf = new Mat5File(f, true);
+      assertEquals(5, mf.getVariableInfo("cols").getN());
+      assertEquals(-4, mf.readVariable("cols").doubleValues()[14], 0);
+      mf.close();
+    }
+  }
+  
+  /**
+   * Copies a MAT-file written by {@link Mat5Writer}, storing each variable as a
+   * <code>miCOMPRESSED</code> element like MATLAB's <code>save</code> does.
+   */
+  private static java.io.File compressMat5(java.io.File src) throws java.io.IOException {
+    byte data[] = java.nio.file.Files.readAllBytes(src.toPath());
+    java.nio.ByteBuffer in = java.nio.ByteBuffer.wrap(data).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+    java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+    out.write(data, 0, 128);
+    for (int pos = 128; pos < data.length; ) {
+      int len = 8 + ((in.getInt(pos + 4) + 7) & ~7);
+      java.io.ByteArrayOutputStream z = new java.io.ByteArrayOutputStream();
+      java.util.zip.DeflaterOutputStream dz = new java.util.zip.DeflaterOutputStream(z);
+      dz.write(data, pos, len);
+      dz.close();
+      java.nio.ByteBuffer tag = java.nio.ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+      tag.putInt(15).putInt(z.size());  // miCOMPRESSED
+      out.write(tag.array());
+      z.writeTo(out);
+      pos += len;
+    }
+    java.io.File dst = java.io.File.createTempFile("jnmatlib", ".mat");
+    dst.deleteOnExit();
+    java.nio.file.Files.write(dst.toPath(), out.toByteArray());
+    return dst;
+  }
+  
+  @Test public void testMat5Compressed() throws java.io.IOException {
+    java.io.File f = java.io.File.createTempFile("jnmatlib", ".mat");
+    f.deleteOnExit();
+    double x[] = new double[120];
+    for (int i = 0; i < x.length; i++) x[i] = i*i - .5;
+    try (Mat5Writer w = new Mat5Writer(f)) {
+      w.beginVariable("x", MxArrayInfo.DOUBLE_CLASS, false, 4, 5, 6).append(x);
+      int dims[] = new int[300];  // metadata larger than the first read in readInfo()
+      Arrays.fill(dims, 1);
+      dims[299] = 3;
+      w.beginVariable("many", MxArrayInfo.INT16_CLASS, false, dims).append(new short[] { 1, -2, 3 });
+      w.beginVariable("str", MxArrayInfo.CHAR_CLASS, false, 1, Mat5Writer.UNKNOWN).append("compressed");
+    }
+    try (Mat5File mf = new Mat5File(compressMat5(f))) {
+      checkCompressed(mf, x);
+    }
+  }
+  
+  private static void checkCompressed(Mat5File mf, double x[]) {
+    assertArrayEquals(new String[] { "x", "many", "str" }, mf.getVariableNames());
+    assertArrayEquals(new int[] { 4, 5, 6 }, mf.getVariableInfo("x").getDimensions());
+    assertEquals(300, mf.getVariableInfo("many").getDimensions().length);
+    assertArrayEquals(x, mf.readVariable("x").doubleValues(), 0);
+    assertArrayEquals(new int[] { 1, -2, 3 }, mf.readVariable("many").intValues());
+    assertEquals("compressed", mf.readVariable("str").getString());
+    Mat5Array slab = mf.readVariable("x", Range.ALL, Range.of(0, 1));
+    assertArrayEquals(new int[] { 4, 2, 6 }, slab.getDimensions());
+    double expected[] = new double[48];
+    for (int i = 0; i < expected.length; i++)
+      expected[i] = x[(i/8)*20 + i%8];
+    assertArrayEquals(expected, slab.doubleValues(), 0);
+    slab = mf.readBlock("x", Range.of(1, 2), Range.of(5, 9));
+    assertArrayEquals(new int[] { 2, 5 }, slab.getDimensions());
+    assertEquals(x[9*4 + 2], slab.doubleValues()[9], 0);
+  }
+  
+  @Test public void testMat5Truncated() throws java.io.IOException {
+    java.io.File f = java.io.File.createTempFile("jnmatlib", ".mat");
+    f.deleteOnExit();
+    try (Mat5Writer w = new Mat5Writer(f)) {
+      w.beginVariable("x", MxArrayInfo.DOUBLE_CLASS, false, 2, 2).append(new double[] { 1, 2, 3, 4 });
+    }
+    java.io.RandomAccessFile raf = new java.io.RandomAccessFile(f, "rw");
+    raf.seek(128 + 8 + 16 + 8);  // first dimension
+    raf.write(new byte[] { 3, 0, 0, 0 });  // 3x2, but only 4 values
+    raf.close();
+    try (Mat5File mf = new Mat5File(f)) {
+      try {
+        mf.readVariable("x").doubleValues();
+        fail("expected MatLibException");
+      } catch (MatLibException e) { }
+      try {
+        mf.readVariable("x").getData();
+        fail("expected MatLibException");
+      } catch (MatLibException e) { }
+    }
+  }
+  
+  @Test public void testMat5ConcurrentInflate() throws Exception {
+    java.io.File f = java.io.File.createTempFile("jnmatlib", ".mat");
+    f.deleteOnExit();
+    Mat5Writer w = new Mat5Writer(f);
+    Random rnd = new Random(42);
+    for (int k = 0; k < 4; k++) {
+      double x[] = new double[20000];
+      for (int i = 0; i < x.length; i++) x[i] = rnd.nextInt(100);
+      w.beginVariable("v" + k, MxArrayInfo.DOUBLE_CLASS, false, 100, 200).append(x);
+    }
+    w.close();
+    Mat5File plain = new Mat5File(f), mf = new Mat5File(compressMat5(f));
+    java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+    try {
+      Map<String, Mat5Array> res = mf.readVariables(executor, "v3", "v0", "v2", "v1");
+      assertArrayEquals(new Object[] { "v3", "v0", "v2", "v1" }, res.keySet().toArray());
+      for (Map.Entry<String, Mat5Array> e : res.entrySet())
+        assertArrayEquals(plain.readVariable(e.getKey()).doubleValues(), e.getValue().doubleValues(), 0);
+    } finally {
+      executor.shutdown();
+      mf.close();
+      plain.close();
+    }
+  }
+  
 }
\ No newline at end of file